@@ -0,0 +1,64 @@
+package com.nfaralli.particleflow;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PerformanceHintManager;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * ThermalSource of the device: PowerManager thermal status (API 29+) and headroom (API 30+),
+ * and a PerformanceHintManager session (API 31+) for the thread that creates it, so that the
+ * system can tune the CPU clocks to the actual frame work. Unknown values on older devices.
+ */
+public class AndroidThermalSource implements ThermalSource {
+
+    private static final String TAG = "AndroidThermalSource";
+
+    private final PowerManager mPowerManager;
+    private PerformanceHintManager.Session mHintSession;
+    private long mTargetWorkDurationNs;
+
+    /** Must be created on the thread whose work is reported (the GL thread). */
+    public AndroidThermalSource(Context context, long targetWorkDurationNs) {
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mTargetWorkDurationNs = targetWorkDurationNs;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            PerformanceHintManager hints = (PerformanceHintManager) context.getSystemService(Context.PERFORMANCE_HINT_SERVICE);
+            if (hints != null) mHintSession = hints.createHintSession(new int[] {Process.myTid()}, targetWorkDurationNs);
+            if (mHintSession == null) Log.i(TAG, "No performance hint session");
+        }
+    }
+
+    @Override
+    public int getThermalStatus() {
+        if (mPowerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return STATUS_NONE;
+        return mPowerManager.getCurrentThermalStatus();
+    }
+
+    @Override
+    public float getThermalHeadroom(int forecastSeconds) {
+        if (mPowerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.R) return Float.NaN;
+        return mPowerManager.getThermalHeadroom(forecastSeconds);
+    }
+
+    @Override
+    public void setTargetWorkDuration(long durationNs) {
+        if (mHintSession == null || durationNs <= 0 || durationNs == mTargetWorkDurationNs) return;
+        mTargetWorkDurationNs = durationNs;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) mHintSession.updateTargetWorkDuration(durationNs);
+    }
+
+    @Override
+    public void reportWorkDuration(long durationNs) {
+        if (mHintSession == null || durationNs <= 0) return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) mHintSession.reportActualWorkDuration(durationNs);
+    }
+
+    @Override
+    public void release() {
+        if (mHintSession != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) mHintSession.close();
+        mHintSession = null;
+    }
+}
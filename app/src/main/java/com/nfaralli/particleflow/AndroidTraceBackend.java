@@ -0,0 +1,26 @@
+package com.nfaralli.particleflow;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * PerfTrace backend writing to android.os.Trace. PerfTrace loads it by name, so that PerfTrace
+ * itself builds without Android (the desktop harness has no such class and gets NO_OP).
+ */
+final class AndroidTraceBackend implements PerfTrace.Backend {
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+
+    @Override
+    public void setCounter(String name, long value) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.setCounter(name, value);
+    }
+}
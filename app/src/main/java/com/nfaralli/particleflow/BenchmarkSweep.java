@@ -0,0 +1,237 @@
+package com.nfaralli.particleflow;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Configuration sweep benchmark: the cells of a matrix (particle count, particle size, motion
+ * blur, blending, single or double buffer, workgroup size) are run one after the other, each
+ * from a reset, with a deterministic attractor script and a fixed time step. Each run has a
+ * warm-up, then measures the frames for a fixed duration. The report gives the frame time
+ * percentiles of each cell as CSV or JSON.
+ * The matrix is given as a spec such as
+ * "particles=250000,1000000;size=1,3;blur=0,1;blend=none,alpha,glow;buffer=1,2;wg=64,256;seconds=10"
+ * where missing keys keep their defaults.
+ * This class has no Android dependencies, so that the desktop harness can run the same matrix.
+ */
+public class BenchmarkSweep {
+
+    public static final int BLEND_NONE = 0;
+    public static final int BLEND_ALPHA = 1;
+    public static final int BLEND_GLOW = 2;
+    private static final String[] BLEND_NAMES = {"none", "alpha", "glow"};
+
+    private static final int WARMUP_FRAMES = 120;
+    private static final int DEFAULT_SECONDS = 10;
+    private static final int NUM_ATTRACTORS = 3;
+
+    /** One configuration of the matrix, and its results once run. */
+    public static final class Cell {
+        public final int particles;
+        public final int particleSize;
+        public final boolean motionBlur;
+        public final int blend;
+        public final boolean doubleBuffer;
+        public final int workgroupSize;
+
+        private long[] mFrameNs = new long[0];
+        private long[] mWorkNs = new long[0];
+        private int mFrames = 0;
+        private String mMetricsJson = "{}";
+
+        Cell(int particles, int particleSize, boolean motionBlur, int blend, boolean doubleBuffer, int workgroupSize) {
+            this.particles = particles;
+            this.particleSize = particleSize;
+            this.motionBlur = motionBlur;
+            this.blend = blend;
+            this.doubleBuffer = doubleBuffer;
+            this.workgroupSize = workgroupSize;
+        }
+
+        public String getName() {
+            return String.format(Locale.US, "p%d_s%d_%s_%s_%s_wg%d", particles, particleSize,
+                    motionBlur ? "blur" : "noblur", BLEND_NAMES[blend], doubleBuffer ? "double" : "single", workgroupSize);
+        }
+
+        /** Percentile (0-100) of the measured frame intervals (work durations if work), in ms. */
+        public double getPercentileMs(double percentile, boolean work) {
+            if (mFrames == 0) return 0;
+            long[] sorted = Arrays.copyOf(work ? mWorkNs : mFrameNs, mFrames);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * mFrames) - 1;
+            return sorted[Math.max(0, Math.min(mFrames - 1, index))] * 1e-6;
+        }
+
+        public int getFrames() {
+            return mFrames;
+        }
+    }
+
+    /**
+     * Run of one cell, fed frame by frame by the render thread: WARMUP_FRAMES frames are
+     * dropped, then the frames are recorded until the duration is reached.
+     */
+    public static final class Run {
+        private final Cell mCell;
+        private final long mDurationNs;
+        private int mFrame = 0;
+        private long mMeasuredNs = 0;
+        private volatile boolean mDone = false;
+
+        Run(Cell cell, long durationNs) {
+            mCell = cell;
+            mDurationNs = durationNs;
+        }
+
+        public Cell getCell() {
+            return mCell;
+        }
+
+        /** Index of the frame to draw in the attractor script. */
+        public int getFrame() {
+            return mFrame;
+        }
+
+        /**
+         * Records a frame: its interval since the previous frame and the duration of its work.
+         * Returns true once the run is done.
+         */
+        public boolean recordFrame(long frameNs, long workNs) {
+            if (mDone) return true;
+            if (mFrame++ < WARMUP_FRAMES || frameNs <= 0) return false;
+            Cell cell = mCell;
+            if (cell.mFrames == cell.mFrameNs.length) {
+                int size = Math.max(256, cell.mFrames * 2);
+                cell.mFrameNs = Arrays.copyOf(cell.mFrameNs, size);
+                cell.mWorkNs = Arrays.copyOf(cell.mWorkNs, size);
+            }
+            cell.mFrameNs[cell.mFrames] = frameNs;
+            cell.mWorkNs[cell.mFrames] = workNs;
+            cell.mFrames++;
+            mMeasuredNs += frameNs;
+            mDone = mMeasuredNs >= mDurationNs;
+            return mDone;
+        }
+
+        /** Keeps the metrics of the run (a RenderMetrics JSON dump) in the report. */
+        public void setMetricsJson(String json) {
+            mCell.mMetricsJson = json;
+        }
+
+        public boolean isDone() {
+            return mDone;
+        }
+    }
+
+    private final List<Cell> mCells = new ArrayList<>();
+    private final long mDurationNs;
+    private int mNext = 0;
+
+    /** Builds the matrix of a spec (see the class comment); null or empty for the defaults. */
+    public BenchmarkSweep(String spec) {
+        int[] particles = {250000, 1000000, 4000000};
+        int[] sizes = {1, 3};
+        int[] blurs = {0, 1};
+        int[] blends = {BLEND_NONE, BLEND_ALPHA, BLEND_GLOW};
+        int[] buffers = {1, 2};
+        int[] workgroups = {64, 256};
+        int seconds = DEFAULT_SECONDS;
+        if (spec != null) {
+            for (String entry : spec.split(";")) {
+                int eq = entry.indexOf('=');
+                if (eq < 0) continue;
+                String key = entry.substring(0, eq).trim();
+                String[] values = entry.substring(eq + 1).split(",");
+                if (key.equals("particles")) particles = parseInts(values);
+                else if (key.equals("size")) sizes = parseInts(values);
+                else if (key.equals("blur")) blurs = parseInts(values);
+                else if (key.equals("blend")) blends = parseBlends(values);
+                else if (key.equals("buffer")) buffers = parseInts(values);
+                else if (key.equals("wg")) workgroups = parseInts(values);
+                else if (key.equals("seconds")) seconds = Integer.parseInt(values[0].trim());
+                else throw new IllegalArgumentException("Unknown sweep key: " + key);
+            }
+        }
+        mDurationNs = seconds * 1000000000L;
+        for (int p : particles) for (int s : sizes) for (int b : blurs) for (int m : blends)
+            for (int d : buffers) for (int w : workgroups) mCells.add(new Cell(p, s, b != 0, m, d > 1, w));
+    }
+
+    private static int[] parseInts(String[] values) {
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) ints[i] = Integer.parseInt(values[i].trim());
+        return ints;
+    }
+
+    private static int[] parseBlends(String[] values) {
+        int[] blends = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            blends[i] = Arrays.asList(BLEND_NAMES).indexOf(values[i].trim());
+            if (blends[i] < 0) throw new IllegalArgumentException("Unknown blend: " + values[i]);
+        }
+        return blends;
+    }
+
+    public List<Cell> getCells() {
+        return mCells;
+    }
+
+    /** Run of the next cell, or null once all the cells were run. */
+    public Run nextRun() {
+        return mNext < mCells.size() ? new Run(mCells.get(mNext++), mDurationNs) : null;
+    }
+
+    /**
+     * Positions of the attraction points of the script at a frame (60 frames per second of
+     * script): NUM_ATTRACTORS points on slow Lissajous curves over a width x height surface.
+     * Returns the number of points written to ids, xs and ys.
+     */
+    public static int getAttractors(int frame, int width, int height, int[] ids, float[] xs, float[] ys) {
+        double t = frame / 60.0;
+        for (int k = 0; k < NUM_ATTRACTORS; k++) {
+            ids[k] = k;
+            xs[k] = (float) (width * (0.5 + 0.35 * Math.sin(2 * Math.PI * (0.05 * (k + 1) * t + k / 3.0))));
+            ys[k] = (float) (height * (0.5 + 0.35 * Math.sin(2 * Math.PI * 0.07 * (k + 1) * t + k)));
+        }
+        return NUM_ATTRACTORS;
+    }
+
+    private static final String CSV_HEADER = "cell,particles,particle_size,motion_blur,blend,double_buffer,"
+            + "workgroup_size,frames,frame_p50_ms,frame_p90_ms,frame_p99_ms,frame_max_ms,work_p50_ms,work_p99_ms\n";
+
+    public void writeCsv(Writer writer) throws IOException {
+        writer.write(CSV_HEADER);
+        for (Cell cell : mCells) {
+            writer.write(String.format(Locale.US, "%s,%d,%d,%d,%s,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+                    cell.getName(), cell.particles, cell.particleSize, cell.motionBlur ? 1 : 0,
+                    BLEND_NAMES[cell.blend], cell.doubleBuffer ? 1 : 0, cell.workgroupSize, cell.mFrames,
+                    cell.getPercentileMs(50, false), cell.getPercentileMs(90, false),
+                    cell.getPercentileMs(99, false), cell.getPercentileMs(100, false),
+                    cell.getPercentileMs(50, true), cell.getPercentileMs(99, true)));
+        }
+    }
+
+    /** One JSON object per cell, with its percentiles and the metrics of its run. */
+    public void writeJson(Writer writer) throws IOException {
+        writer.write("[\n");
+        for (int i = 0; i < mCells.size(); i++) {
+            Cell cell = mCells.get(i);
+            writer.write(String.format(Locale.US,
+                    "{\"cell\":\"%s\",\"particles\":%d,\"particle_size\":%d,\"motion_blur\":%b,\"blend\":\"%s\","
+                    + "\"double_buffer\":%b,\"workgroup_size\":%d,\"frames\":%d,"
+                    + "\"frame_time_ms\":{\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"max\":%.3f},"
+                    + "\"work_time_ms\":{\"p50\":%.3f,\"p99\":%.3f},\"metrics\":%s}%s\n",
+                    cell.getName(), cell.particles, cell.particleSize, cell.motionBlur, BLEND_NAMES[cell.blend],
+                    cell.doubleBuffer, cell.workgroupSize, cell.mFrames,
+                    cell.getPercentileMs(50, false), cell.getPercentileMs(90, false),
+                    cell.getPercentileMs(99, false), cell.getPercentileMs(100, false),
+                    cell.getPercentileMs(50, true), cell.getPercentileMs(99, true),
+                    cell.mMetricsJson, i + 1 < mCells.size() ? "," : ""));
+        }
+        writer.write("]\n");
+    }
+}
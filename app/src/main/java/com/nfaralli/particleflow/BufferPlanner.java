@@ -0,0 +1,102 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Plans the GPU allocation of the particle buffers.
+ * The footprint of the requested configuration (number of particles times ring depth) is checked
+ * against the largest shader storage block the device supports and against a memory budget.
+ * When it does not fit, the plan steps down: first to the smallest ring the caller can run with
+ * (a single buffer unless other contexts or threads read a slot while the next one is written),
+ * then to fewer particles.
+ * Every step down is recorded in the plan's reason so that it can be reported to the user.
+ * This class has no GL or Android dependency; the limits are given by the caller.
+ */
+public class BufferPlanner {
+
+    public static final int POS_BYTES = 8;  // vec2 FP32 per particle.
+    public static final int VEL_BYTES = 4;  // 2 x FP16 per particle.
+    public static final int MIN_PARTICLES = 1000;
+
+    public static final class Plan {
+        public final int numParticles;
+        public final int ringDepth;
+        public final String reason; // null if the requested configuration was kept.
+
+        Plan(int numParticles, int ringDepth, String reason) {
+            this.numParticles = numParticles;
+            this.ringDepth = ringDepth;
+            this.reason = reason;
+        }
+
+        public long getBytes() {
+            return getFootprint(numParticles, ringDepth);
+        }
+    }
+
+    private final long mMaxBlockSize;
+
+    /**
+     * @param maxBlockSize value of GL_MAX_SHADER_STORAGE_BLOCK_SIZE, or 0 if unknown.
+     */
+    public BufferPlanner(long maxBlockSize) {
+        mMaxBlockSize = maxBlockSize > 0 ? maxBlockSize : Long.MAX_VALUE;
+    }
+
+    /** Bytes needed by numParticles particles in a ring of ringDepth slots. */
+    public static long getFootprint(int numParticles, int ringDepth) {
+        return (long) numParticles * (POS_BYTES + VEL_BYTES) * ringDepth;
+    }
+
+    /**
+     * Returns the largest configuration, no bigger than the requested one and with at least
+     * minRingDepth slots, that fits in the given memory budget (in bytes, 0 for no budget).
+     */
+    public Plan plan(int numParticles, int ringDepth, int minRingDepth, long budget) {
+        int n = numParticles;
+        int depth = ringDepth;
+        String reason = null;
+        long maxByBlock = mMaxBlockSize / POS_BYTES;
+        if (n > maxByBlock) {
+            n = toEven(maxByBlock);
+            reason = "Particle count limited to " + n + " by the max shader storage block size";
+        }
+        if (budget > 0 && getFootprint(n, depth) > budget && depth > minRingDepth) {
+            depth = Math.max(1, minRingDepth);
+            reason = append(reason, describeDepth(depth) + ": " + getFootprint(n, ringDepth) / (1 << 20)
+                    + " MB exceeds the " + budget / (1 << 20) + " MB memory budget");
+        }
+        if (budget > 0 && getFootprint(n, depth) > budget) {
+            n = toEven(budget / ((POS_BYTES + VEL_BYTES) * depth));
+            reason = append(reason, "Particle count reduced to " + n + " to fit the "
+                    + budget / (1 << 20) + " MB memory budget");
+        }
+        if (n < MIN_PARTICLES) n = Math.min(numParticles, MIN_PARTICLES);
+        return new Plan(n, depth, reason);
+    }
+
+    /**
+     * Returns the next smaller configuration, with at least minRingDepth slots, after the given
+     * plan failed to allocate, or null if there is nothing left to try.
+     */
+    public Plan stepDown(Plan failed, int minRingDepth, String cause) {
+        if (failed.ringDepth > minRingDepth) {
+            int depth = Math.max(1, minRingDepth);
+            return new Plan(failed.numParticles, depth,
+                    append(failed.reason, describeDepth(depth) + " (" + cause + ")"));
+        }
+        int n = toEven(failed.numParticles / 2);
+        if (n < MIN_PARTICLES) return null;
+        return new Plan(n, failed.ringDepth, append(failed.reason, "Particle count reduced to " + n + " (" + cause + ")"));
+    }
+
+    private static String describeDepth(int depth) {
+        return depth == 1 ? "Double buffering disabled" : "Buffer ring reduced to " + depth + " slots";
+    }
+
+    private static int toEven(long n) {
+        return (int) Math.min(Integer.MAX_VALUE - 1, n) & ~1;
+    }
+
+    private static String append(String reason, String step) {
+        return reason == null ? step : reason + ". " + step;
+    }
+}
@@ -0,0 +1,104 @@
+package com.nfaralli.particleflow;
+
+import android.content.Context;
+import android.content.pm.FeatureInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Backend running the simulation and the drawing of a surface, chosen at runtime with the
+ * compute_backend setting (see select). GLES (ParticleSimulation and ParticlesRenderer) runs
+ * everywhere and is the fallback of the others.
+ * The Vulkan backend would step the particles on a compute queue, with timeline semaphores and
+ * push constants, so that the step of frame N+1 overlaps the draw of frame N. It needs Vulkan
+ * 1.2 compute (timeline semaphores are core in 1.2) and a native implementation, which this
+ * build does not include yet: it is probed, and GLES runs instead with the reason logged. Until
+ * it ships the setting is not offered in the settings dialog.
+ */
+public abstract class ComputeBackend {
+
+    private static final String TAG = "ComputeBackend";
+
+    public static final int GLES = 0;
+    public static final int VULKAN = 1;
+
+    /** One of the backend ids above, as stored in the compute_backend setting. */
+    public abstract int getId();
+
+    public abstract String getName();
+
+    /** Why the backend cannot run on this device, or null if it can. */
+    public abstract String getUnavailableReason();
+
+    /**
+     * The backend to use for the requested one: the requested backend if it can run, GLES
+     * otherwise. Records the choice (and any fallback) in metrics.
+     */
+    public static ComputeBackend select(Context context, int requested, RenderMetrics metrics) {
+        ComputeBackend backend = requested == VULKAN ? new Vulkan(context) : new Gles();
+        String reason = backend.getUnavailableReason();
+        if (reason != null) {
+            Log.w(TAG, backend.getName() + " backend unavailable (" + reason + "), using GLES");
+            metrics.increment("compute_backend_fallbacks");
+            backend = new Gles();
+        }
+        metrics.set("compute_backend", backend.getId());
+        return backend;
+    }
+
+    private static final class Gles extends ComputeBackend {
+        @Override
+        public int getId() {
+            return GLES;
+        }
+
+        @Override
+        public String getName() {
+            return "GLES";
+        }
+
+        @Override
+        public String getUnavailableReason() {
+            return null;
+        }
+    }
+
+    private static final class Vulkan extends ComputeBackend {
+        // VK_API_VERSION_1_2, as reported by FEATURE_VULKAN_HARDWARE_VERSION.
+        private static final int VULKAN_1_2 = (1 << 22) | (2 << 12);
+
+        private final Context mContext;
+
+        Vulkan(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public int getId() {
+            return VULKAN;
+        }
+
+        @Override
+        public String getName() {
+            return "Vulkan";
+        }
+
+        @Override
+        public String getUnavailableReason() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return "needs Android 7.0";
+            PackageManager pm = mContext.getPackageManager();
+            if (!pm.hasSystemFeature(PackageManager.FEATURE_VULKAN_HARDWARE_COMPUTE)) return "no Vulkan compute";
+            if (!hasVersion(pm, VULKAN_1_2)) return "needs Vulkan 1.2 for timeline semaphores";
+            return "not included in this build";
+        }
+
+        private static boolean hasVersion(PackageManager pm, int version) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return false;
+            for (FeatureInfo feature : pm.getSystemAvailableFeatures()) {
+                if (PackageManager.FEATURE_VULKAN_HARDWARE_VERSION.equals(feature.name)) return feature.version >= version;
+            }
+            return false;
+        }
+    }
+}
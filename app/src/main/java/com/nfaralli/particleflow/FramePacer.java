@@ -0,0 +1,241 @@
+package com.nfaralli.particleflow;
+
+import android.content.Context;
+import android.os.Build;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.Surface;
+import android.view.WindowManager;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the frames of a ParticlesSurfaceView from the display vsync (Choreographer) instead of
+ * the GLSurfaceView continuous loop.
+ * Frames are requested every mDivisor vsyncs, and the frame rate is lowered (or raised again)
+ * depending on how many vsyncs the renderer actually misses. On API 30+ the chosen rate is also
+ * passed to Surface.setFrameRate so that the panel can switch to a matching mode.
+ * Missed and janky frames are counted so that uneven pacing can be displayed.
+ */
+public class FramePacer implements Choreographer.FrameCallback {
+
+    public interface Target {
+        /** Called on the UI thread with the vsync timestamp of the frame to render. */
+        void onVsync(long frameTimeNanos);
+        /** Surface used to request a frame rate (may return null). */
+        Surface getPacedSurface();
+    }
+
+    // Length of the window used to decide whether to change the frame rate.
+    private static final long WINDOW_NS = 2000000000L;
+    // Step down when more than this fraction of the frames missed their vsync.
+    private static final float STEP_DOWN_MISS_RATIO = 0.1f;
+    // Step up after this many consecutive windows without any missed frame.
+    private static final int STEP_UP_CLEAN_WINDOWS = 5;
+    private static final float MIN_FRAME_RATE = 30f;
+
+    private final Target mTarget;
+    private final float[] mFrameRates; // Candidate frame rates, in decreasing order.
+    private Choreographer mChoreographer;
+    private boolean mRunning = false;
+
+    // UI thread state.
+    private long mVsyncCount = 0;
+    private long mLastVsyncNs = 0;
+    private float mAppliedFrameRate = 0f;
+
+    // Shared between the UI and GL threads.
+    private volatile long mVsyncPeriodNs = 16666667L;
+    private volatile int mRateIndex = 0;
+    // Highest rate allowed by setMaxFrameRate (index in mFrameRates).
+    private volatile int mMinRateIndex = 0;
+
+    // GL thread state.
+    private long mLastDrawnNs = 0;
+    private long mWindowStartNs = 0;
+    private int mWindowFrames = 0;
+    private int mWindowMissed = 0;
+    private int mCleanWindows = 0;
+
+    private final AtomicInteger mMissedFrames = new AtomicInteger(0);
+    private final AtomicInteger mJankyFrames = new AtomicInteger(0);
+
+    @SuppressWarnings("deprecation")
+    public FramePacer(Context context, Target target) {
+        mTarget = target;
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        Display display = wm != null ? wm.getDefaultDisplay() : null;
+        mFrameRates = getCandidateFrameRates(display);
+        if (mFrameRates.length > 0) {
+            mVsyncPeriodNs = (long) (1e9f / mFrameRates[0]);
+        }
+    }
+
+    /**
+     * Returns the refresh rates supported by the display (at its current resolution) and their
+     * integer divisors down to MIN_FRAME_RATE, sorted in decreasing order.
+     */
+    private static float[] getCandidateFrameRates(Display display) {
+        float[] rates;
+        if (display == null) {
+            rates = new float[] {60f};
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Display.Mode current = display.getMode();
+            Display.Mode[] modes = display.getSupportedModes();
+            rates = new float[modes.length];
+            int n = 0;
+            for (Display.Mode mode : modes) {
+                if (mode.getPhysicalWidth() == current.getPhysicalWidth()
+                        && mode.getPhysicalHeight() == current.getPhysicalHeight()) {
+                    rates[n++] = mode.getRefreshRate();
+                }
+            }
+            rates = Arrays.copyOf(rates, Math.max(n, 1));
+            if (n == 0) rates[0] = display.getRefreshRate();
+        } else {
+            rates = new float[] {display.getRefreshRate()};
+        }
+        float[] candidates = new float[rates.length * 4];
+        int count = 0;
+        for (float rate : rates) {
+            for (int div = 1; div <= 4 && rate / div >= MIN_FRAME_RATE - 0.5f; div++) {
+                float r = rate / div;
+                boolean duplicate = false;
+                for (int i = 0; i < count && !duplicate; i++) {
+                    duplicate = Math.abs(candidates[i] - r) < 1f;
+                }
+                if (!duplicate) candidates[count++] = r;
+            }
+        }
+        candidates = Arrays.copyOf(candidates, Math.max(count, 1));
+        if (count == 0) candidates[0] = 60f;
+        Arrays.sort(candidates);
+        for (int i = 0, j = candidates.length - 1; i < j; i++, j--) {
+            float tmp = candidates[i]; candidates[i] = candidates[j]; candidates[j] = tmp;
+        }
+        return candidates;
+    }
+
+    public void start() {
+        if (mRunning) return;
+        mRunning = true;
+        if (mChoreographer == null) mChoreographer = Choreographer.getInstance();
+        mLastVsyncNs = 0;
+        mLastDrawnNs = 0;
+        mWindowStartNs = 0;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        mChoreographer.removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) return;
+        if (mLastVsyncNs != 0) {
+            long delta = frameTimeNanos - mLastVsyncNs;
+            // Only consecutive vsyncs give a period estimate; ignore callbacks delivered late.
+            if (delta > 0 && delta < mVsyncPeriodNs * 3 / 2) {
+                mVsyncPeriodNs = (mVsyncPeriodNs * 7 + delta) / 8;
+            }
+        }
+        mLastVsyncNs = frameTimeNanos;
+        applyFrameRate();
+        if (mVsyncCount++ % getDivisor() == 0) {
+            mTarget.onVsync(frameTimeNanos);
+        }
+        mChoreographer.postFrameCallback(this);
+    }
+
+    /** Number of vsyncs between two rendered frames for the current target frame rate. */
+    private int getDivisor() {
+        float displayRate = 1e9f / mVsyncPeriodNs;
+        return Math.max(1, Math.round(displayRate / mFrameRates[getRateIndex()]));
+    }
+
+    private void applyFrameRate() {
+        float rate = mFrameRates[getRateIndex()];
+        if (rate == mAppliedFrameRate || Build.VERSION.SDK_INT < Build.VERSION_CODES.R) return;
+        Surface surface = mTarget.getPacedSurface();
+        if (surface == null || !surface.isValid()) return;
+        surface.setFrameRate(rate, Surface.FRAME_RATE_COMPATIBILITY_DEFAULT);
+        mAppliedFrameRate = rate;
+    }
+
+    /**
+     * Must be called by the renderer (GL thread) once a frame has been drawn, with the vsync
+     * timestamp that frame was rendered for.
+     */
+    public void onFrameDrawn(long frameTimeNanos) {
+        long expected = mVsyncPeriodNs * getDivisor();
+        if (mLastDrawnNs != 0) {
+            int skipped = (int) ((frameTimeNanos - mLastDrawnNs + expected / 2) / expected) - 1;
+            if (skipped > 0) {
+                mMissedFrames.addAndGet(skipped);
+                mJankyFrames.incrementAndGet();
+                mWindowMissed += skipped;
+            }
+        }
+        mLastDrawnNs = frameTimeNanos;
+        mWindowFrames++;
+        if (mWindowStartNs == 0) mWindowStartNs = frameTimeNanos;
+        if (frameTimeNanos - mWindowStartNs >= WINDOW_NS) {
+            updateFrameRate();
+            mWindowStartNs = frameTimeNanos;
+            mWindowFrames = 0;
+            mWindowMissed = 0;
+        }
+    }
+
+    private void updateFrameRate() {
+        float missRatio = mWindowMissed / (float) (mWindowFrames + mWindowMissed);
+        if (missRatio > STEP_DOWN_MISS_RATIO && mRateIndex < mFrameRates.length - 1) {
+            mRateIndex++;
+            mCleanWindows = 0;
+        } else if (mWindowMissed == 0) {
+            if (++mCleanWindows >= STEP_UP_CLEAN_WINDOWS && mRateIndex > 0) {
+                mRateIndex--;
+                mCleanWindows = 0;
+            }
+        } else {
+            mCleanWindows = 0;
+        }
+    }
+
+    private int getRateIndex() {
+        return Math.max(mRateIndex, mMinRateIndex);
+    }
+
+    /**
+     * Caps the frame rate to the highest candidate rate not above maxFrameRate (0 for no cap).
+     * Can be called from any thread.
+     */
+    public void setMaxFrameRate(float maxFrameRate) {
+        int index = 0;
+        if (maxFrameRate > 0f) {
+            while (index < mFrameRates.length - 1 && mFrameRates[index] > maxFrameRate + 0.5f) index++;
+        }
+        mMinRateIndex = index;
+    }
+
+    public float getTargetFrameRate() {
+        return mFrameRates[getRateIndex()];
+    }
+
+    public int getMissedFrames() {
+        return mMissedFrames.get();
+    }
+
+    public int getJankyFrames() {
+        return mJankyFrames.get();
+    }
+
+    public void resetCounters() {
+        mMissedFrames.set(0);
+        mJankyFrames.set(0);
+    }
+}
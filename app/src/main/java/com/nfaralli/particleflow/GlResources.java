@@ -0,0 +1,263 @@
+package com.nfaralli.particleflow;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * Registry of the live GL objects (programs, shaders, buffers, textures, framebuffers,
+ * renderbuffers and queries), with their owner, their size when known and, in debug mode,
+ * their creation site. The objects are registered by group, i.e. by share group: a private
+ * context has its own group, all the wallpaper contexts share one (see SharedSimulation).
+ * Each thread making GL calls sets the group of its current context (see setCurrentGroup).
+ * Framebuffers and queries are not shared between contexts: they are also told apart by the
+ * context of the thread that created them.
+ * Objects still registered when their group is released are leaks; in debug mode each one is
+ * logged with its creation site. Objects created for a released group (e.g. by a compiler worker
+ * finishing late) are deleted instead of registered. The live counts and bytes are exposed as
+ * metrics.
+ */
+public final class GlResources {
+
+    private static final String TAG = "GlResources";
+
+    public static final int PROGRAM = 0;
+    public static final int SHADER = 1;
+    public static final int BUFFER = 2;
+    public static final int TEXTURE = 3;
+    public static final int FRAMEBUFFER = 4;
+    public static final int RENDERBUFFER = 5;
+    public static final int QUERY = 6;
+    private static final String[] TYPE_NAMES = {
+        "program", "shader", "buffer", "texture", "framebuffer", "renderbuffer", "query"};
+
+    private static final class Entry {
+        final String owner;
+        final String site;
+        long bytes = 0;
+
+        Entry(String owner, String site) {
+            this.owner = owner;
+            this.site = site;
+        }
+    }
+
+    // Group and context of the current thread: {group, context}.
+    private static final ThreadLocal<int[]> sCurrent = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+    private static final Map<Integer, Map<Long, Entry>> sGroups = new HashMap<>();
+    // Groups released and not opened again (see openGroup).
+    private static final Set<Integer> sReleased = new HashSet<>();
+    private static int sNextGroup = 0;
+    private static int sNextContext = 0;
+    private static long sLeaks = 0;
+    private static volatile boolean sDebug = false;
+
+    private GlResources() {}
+
+    /** In debug mode the creation sites are recorded, and leaks are logged with them. */
+    public static void setDebug(boolean debug) {
+        sDebug = debug;
+    }
+
+    /** A new group id, for a context that shares nothing. Shared groups use negative ids. */
+    public static synchronized int newGroup() {
+        return ++sNextGroup;
+    }
+
+    /**
+     * Opens a group again after releaseGroup, e.g. a share group whose contexts outlived its
+     * objects and that gets a new surface. New groups are open.
+     */
+    public static synchronized void openGroup(int group) {
+        sReleased.remove(group);
+    }
+
+    /**
+     * Sets the group of the context now current on this thread. Must be called again for each
+     * new context, as it also tells the contexts apart.
+     */
+    public static void setCurrentGroup(int group) {
+        int[] current = sCurrent.get();
+        current[0] = group;
+        synchronized (GlResources.class) {
+            current[1] = ++sNextContext;
+        }
+    }
+
+    public static int getCurrentGroup() {
+        return sCurrent.get()[0];
+    }
+
+    /** The creation site to register: the first caller outside of the GL helpers (debug mode). */
+    public static String getCallSite() {
+        if (!sDebug) return null;
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            String name = frame.getClassName();
+            if (name.startsWith(GlResources.class.getName()) || name.startsWith(ProgramCompiler.class.getName())
+                    || name.startsWith(ShaderUtils.class.getName())) {
+                continue;
+            }
+            return frame.toString();
+        }
+        return null;
+    }
+
+    private static long key(int type, int name, int context) {
+        // Framebuffers and queries are names of the context, the others of the share group.
+        long ctx = type == FRAMEBUFFER || type == QUERY ? context & 0xFFFFFF : 0;
+        return ((long) type << 56) | (ctx << 32) | (name & 0xFFFFFFFFL);
+    }
+
+    public static void track(int type, int name, String owner) {
+        track(type, name, owner, getCallSite());
+    }
+
+    public static void track(int type, int[] names, int offset, int count, String owner) {
+        String site = getCallSite();
+        for (int i = offset; i < offset + count; i++) track(type, names[i], owner, site);
+    }
+
+    /**
+     * Registers an object of the current group; site may be null. If the group was released the
+     * object is deleted instead, and false is returned.
+     */
+    public static boolean track(int type, int name, String owner, String site) {
+        if (name == 0) return true;
+        int[] current = sCurrent.get();
+        synchronized (GlResources.class) {
+            if (!sReleased.contains(current[0])) {
+                Map<Long, Entry> entries = sGroups.get(current[0]);
+                if (entries == null) {
+                    entries = new HashMap<>();
+                    sGroups.put(current[0], entries);
+                }
+                entries.put(key(type, name, current[1]), new Entry(owner, site));
+                return true;
+            }
+        }
+        if (sDebug) {
+            Log.w(TAG, "Deleting " + TYPE_NAMES[type] + " " + name + " of " + owner + ", created for the released group "
+                    + current[0] + " at " + site);
+        }
+        deleteNames(type, new int[] {name}, 0, 1);
+        return false;
+    }
+
+    /** Sets the size of a registered object, e.g. after glBufferData. */
+    public static void setBytes(int type, int name, long bytes) {
+        if (name == 0) return;
+        int[] current = sCurrent.get();
+        synchronized (GlResources.class) {
+            Map<Long, Entry> entries = sGroups.get(current[0]);
+            Entry entry = entries != null ? entries.get(key(type, name, current[1])) : null;
+            if (entry != null) entry.bytes = bytes;
+        }
+    }
+
+    private static void untrack(int type, int name) {
+        int[] current = sCurrent.get();
+        synchronized (GlResources.class) {
+            Map<Long, Entry> entries = sGroups.get(current[0]);
+            if ((entries == null || entries.remove(key(type, name, current[1])) == null) && sDebug) {
+                Log.w(TAG, "Deleting an unregistered " + TYPE_NAMES[type] + " " + name);
+            }
+            // Late deletions (e.g. by a compiler worker) must not keep released groups around.
+            if (entries != null && entries.isEmpty()) sGroups.remove(current[0]);
+        }
+    }
+
+    /** Deletes an object (nothing for 0) and unregisters it. */
+    public static void delete(int type, int name) {
+        if (name == 0) return;
+        delete(type, new int[] {name}, 0, 1);
+    }
+
+    /** Deletes count objects of the same type (0s are skipped) and unregisters them. */
+    public static void delete(int type, int[] names, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            if (names[i] != 0) untrack(type, names[i]);
+        }
+        deleteNames(type, names, offset, count);
+    }
+
+    /** Deletes count objects of the same type (0s are skipped) without unregistering them. */
+    private static void deleteNames(int type, int[] names, int offset, int count) {
+        switch (type) {
+            case PROGRAM:
+                for (int i = offset; i < offset + count; i++) {
+                    if (names[i] != 0) GLES31.glDeleteProgram(names[i]);
+                }
+                break;
+            case SHADER:
+                for (int i = offset; i < offset + count; i++) {
+                    if (names[i] != 0) GLES31.glDeleteShader(names[i]);
+                }
+                break;
+            case BUFFER: GLES31.glDeleteBuffers(count, names, offset); break;
+            case TEXTURE: GLES31.glDeleteTextures(count, names, offset); break;
+            case FRAMEBUFFER: GLES31.glDeleteFramebuffers(count, names, offset); break;
+            case RENDERBUFFER: GLES31.glDeleteRenderbuffers(count, names, offset); break;
+            default: GLES31.glDeleteQueries(count, names, offset); break;
+        }
+    }
+
+    /**
+     * Drops the registrations of a group whose last context is being (or was) destroyed. With
+     * expectEmpty, whatever is left was never deleted by its owner and is reported as a leak.
+     * The objects created for the group from then on are deleted (see track). Returns the number
+     * of objects dropped.
+     */
+    public static synchronized int releaseGroup(int group, boolean expectEmpty) {
+        sReleased.add(group);
+        Map<Long, Entry> entries = sGroups.remove(group);
+        if (entries == null || entries.isEmpty()) return 0;
+        if (expectEmpty) {
+            sLeaks += entries.size();
+            Log.e(TAG, entries.size() + " GL objects leaked by group " + group);
+            if (sDebug) {
+                for (Map.Entry<Long, Entry> leak : entries.entrySet()) {
+                    Entry entry = leak.getValue();
+                    Log.e(TAG, "  " + TYPE_NAMES[(int) (leak.getKey() >>> 56)] + " " + (int) (long) leak.getKey()
+                            + " of " + entry.owner + ", " + entry.bytes + " bytes, created at " + entry.site);
+                }
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * Records the live objects of a group in metrics: gl_<type>s counts, gl_<type>_bytes for the
+     * types with a known size, gl_bytes in total, and the gl_leaks of all the groups so far.
+     */
+    public static synchronized void recordMetrics(int group, RenderMetrics metrics) {
+        int[] counts = new int[TYPE_NAMES.length];
+        long[] bytes = new long[TYPE_NAMES.length];
+        Map<Long, Entry> entries = sGroups.get(group);
+        if (entries != null) {
+            for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+                int type = (int) (entry.getKey() >>> 56);
+                counts[type]++;
+                bytes[type] += entry.getValue().bytes;
+            }
+        }
+        long total = 0;
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            metrics.set("gl_" + TYPE_NAMES[type] + "s", counts[type]);
+            if (type == BUFFER || type == TEXTURE || type == RENDERBUFFER) {
+                metrics.set("gl_" + TYPE_NAMES[type] + "_bytes", bytes[type]);
+            }
+            total += bytes[type];
+        }
+        metrics.set("gl_bytes", total);
+        metrics.set("gl_leaks", sLeaks);
+    }
+}
@@ -0,0 +1,83 @@
+package com.nfaralli.particleflow;
+
+import android.opengl.GLES31;
+
+/**
+ * Measures the GPU time of sections of the command stream with GL_EXT_disjoint_timer_query.
+ * Each section has a small ring of queries: a result is read a few frames after its query was
+ * issued, when it is available, so that the GL thread never waits for the GPU.
+ * Results of a frame in which the GPU was disjoint (e.g. frequency change) are dropped.
+ * Only one section can be measured at a time (GL_TIME_ELAPSED queries do not nest).
+ */
+public class GpuTimer {
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int QUERIES_PER_SECTION = 4;
+
+    private final boolean mSupported;
+    private final String[] mNames;
+    private final int[] mQueries;
+    private final boolean[] mPending;
+    private final int[] mNext;
+    private int mActive = -1;
+
+    /** Must be created on the GL thread. names are the metric names of the sections. */
+    public GpuTimer(String... names) {
+        String extensions = GLES31.glGetString(GLES31.GL_EXTENSIONS);
+        mSupported = extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+        mNames = names;
+        mQueries = new int[names.length * QUERIES_PER_SECTION];
+        mPending = new boolean[mQueries.length];
+        mNext = new int[names.length];
+        if (mSupported) {
+            GLES31.glGenQueries(mQueries.length, mQueries, 0);
+            GlResources.track(GlResources.QUERY, mQueries, 0, mQueries.length, "GpuTimer");
+        }
+    }
+
+    public boolean isSupported() {
+        return mSupported;
+    }
+
+    /** Starts measuring the given section, unless all its queries are still in flight. */
+    public void begin(int section) {
+        if (!mSupported || mActive >= 0) return;
+        int index = section * QUERIES_PER_SECTION + mNext[section];
+        if (mPending[index]) return;
+        GLES31.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[index]);
+        mActive = index;
+    }
+
+    public void end() {
+        if (mActive < 0) return;
+        GLES31.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mPending[mActive] = true;
+        int section = mActive / QUERIES_PER_SECTION;
+        mNext[section] = (mNext[section] + 1) % QUERIES_PER_SECTION;
+        mActive = -1;
+    }
+
+    /** Records the available results, in milliseconds, as gauges of the given metrics. */
+    public void collect(RenderMetrics metrics) {
+        if (!mSupported) return;
+        int[] value = new int[1];
+        GLES31.glGetIntegerv(GL_GPU_DISJOINT_EXT, value, 0);
+        boolean disjoint = value[0] != 0;
+        for (int i = 0; i < mQueries.length; i++) {
+            if (!mPending[i] || i == mActive) continue;
+            GLES31.glGetQueryObjectuiv(mQueries[i], GLES31.GL_QUERY_RESULT_AVAILABLE, value, 0);
+            if (value[0] == 0) continue;
+            mPending[i] = false;
+            if (disjoint) continue;
+            // The result is a 64 bit count of nanoseconds, the low 32 bits are enough here.
+            GLES31.glGetQueryObjectuiv(mQueries[i], GLES31.GL_QUERY_RESULT, value, 0);
+            metrics.set(mNames[i / QUERIES_PER_SECTION], (value[0] & 0xFFFFFFFFL) * 1e-6);
+        }
+    }
+
+    /** Deletes the queries (only with the context they were created in). */
+    public void release() {
+        if (mSupported) GlResources.delete(GlResources.QUERY, mQueries, 0, mQueries.length);
+    }
+}
@@ -0,0 +1,42 @@
+package com.nfaralli.particleflow;
+
+/**
+ * IEEE 754 half float conversions, matching the packHalf2x16/unpackHalf2x16 storage of the
+ * particle velocities and the RGBA16F palettes.
+ * This class has no Android dependencies.
+ */
+public final class HalfFloat {
+
+    private HalfFloat() {}
+
+    /** Converts a float to a half float (no NaN handling). */
+    public static short fromFloat(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+        if (exp <= 0) {
+            if (exp < -10) return (short) sign;
+            mantissa = (mantissa | 0x800000) >> (1 - exp);
+            return (short) (sign | ((mantissa + 0x1000) >> 13));
+        }
+        if (exp >= 31) return (short) (sign | 0x7C00);
+        // Adding (not or-ing) lets a rounding carry increment the exponent.
+        return (short) (sign | ((exp << 10) + ((mantissa + 0x1000) >> 13)));
+    }
+
+    /** Converts the low 16 bits of half to a float. */
+    public static float toFloat(int half) {
+        int sign = (half >>> 15) & 1, exp = (half >>> 10) & 0x1F, mantissa = half & 0x3FF;
+        float value;
+        if (exp == 0) value = mantissa * (1f / (1 << 24));
+        else if (exp == 31) value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        else value = Float.intBitsToFloat(((exp - 15 + 127) << 23) | (mantissa << 13));
+        return sign != 0 ? -value : value;
+    }
+
+    /** Rounds a float to the nearest half float, as stored by packHalf2x16. */
+    public static float round(float value) {
+        return toFloat(fromFloat(value));
+    }
+}
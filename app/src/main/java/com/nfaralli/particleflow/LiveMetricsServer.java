@@ -0,0 +1,101 @@
+package com.nfaralli.particleflow;
+
+import java.io.IOException;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+/**
+ * Process wide local socket streaming the metrics of the registered renderers (see
+ * MetricsStream), one JSON line per renderer every PERIOD_MS. The socket is in the abstract
+ * namespace, so it needs no permission and can be read from a computer with
+ *   adb forward tcp:7777 localabstract:particleflow_metrics
+ * (then e.g. the MetricsClient of the harness). The server only listens while at least one
+ * source is registered; with no client connected, its only thread is blocked in accept.
+ */
+public final class LiveMetricsServer {
+
+    private static final String TAG = "LiveMetricsServer";
+    public static final String SOCKET_NAME = "particleflow_metrics";
+    private static final long PERIOD_MS = 250;
+
+    private static final MetricsStream sStream = new MetricsStream(PERIOD_MS);
+    private static LocalServerSocket sServer;
+    private static Thread sAcceptor;
+
+    private LiveMetricsServer() {}
+
+    /** Streams the samples of source, and starts listening if it is the first one. */
+    public static synchronized void register(MetricsStream.Source source) {
+        sStream.addSource(source);
+        if (sServer != null) return;
+        final LocalServerSocket server;
+        try {
+            server = new LocalServerSocket(SOCKET_NAME);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot listen on " + SOCKET_NAME, e);
+            return;
+        }
+        sServer = server;
+        sAcceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(server);
+            }
+        }, TAG);
+        sAcceptor.setDaemon(true);
+        sAcceptor.start();
+        Log.i(TAG, "Streaming metrics on localabstract:" + SOCKET_NAME);
+    }
+
+    /** Stops streaming the samples of source, and stops listening after the last one. */
+    public static synchronized void unregister(MetricsStream.Source source) {
+        sStream.removeSource(source);
+        if (sStream.getSourceCount() > 0 || sServer == null) return;
+        LocalServerSocket server = sServer;
+        sServer = null;
+        sAcceptor = null;
+        try {
+            server.close();
+            // Closing does not unblock accept on every release: wake it up with a connection.
+            LocalSocket wakeUp = new LocalSocket();
+            wakeUp.connect(new LocalSocketAddress(SOCKET_NAME));
+            wakeUp.close();
+        } catch (IOException e) {
+            // Already unblocked.
+        }
+        sStream.closeClients();
+    }
+
+    private static void accept(LocalServerSocket server) {
+        while (true) {
+            LocalSocket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (LiveMetricsServer.class) {
+                if (sServer != server) {
+                    close(socket);
+                    return;
+                }
+                try {
+                    sStream.addClient(socket.getOutputStream(), socket);
+                } catch (IOException e) {
+                    close(socket);
+                }
+            }
+        }
+    }
+
+    private static void close(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
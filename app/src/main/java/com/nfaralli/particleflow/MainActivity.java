@@ -7,11 +7,21 @@ import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.util.Log;
 import android.view.View;
+import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Super basic Activity:
@@ -20,6 +30,22 @@ import java.util.Locale;
  */
 public class MainActivity extends Activity {
 
+    // Touch benchmark: record the touches into, or replay them from, a file of the app's
+    // external files directory, e.g.
+    // adb shell am start -n com.nfaralli.particleflow/.MainActivity --es replay_touch run1.bin
+    // The recording stops when the activity is paused.
+    public static final String EXTRA_RECORD_TOUCH = "record_touch";
+    public static final String EXTRA_REPLAY_TOUCH = "replay_touch";
+    // Sweep benchmark (see BenchmarkSweep) over a matrix of settings, e.g.
+    // adb shell am start -n com.nfaralli.particleflow/.MainActivity --es benchmark_sweep "particles=250000,1000000;seconds=5"
+    // The report is written to sweep-<time>.csv and .json in the same directory, and the
+    // settings are restored at the end.
+    public static final String EXTRA_BENCHMARK_SWEEP = "benchmark_sweep";
+    private static final String[] SWEEP_KEYS = {"NumParticles", "ParticleSize", "motion_blur",
+            "alpha_blending", "glow_mode", "use_double_buffer", "WorkgroupSize"};
+
+    private static final String TAG = "MainActivity";
+
     private ParticlesSurfaceView mGLView;
     private GearView mGearView;
     private SettingsView mSettingsView;
@@ -31,7 +57,10 @@ public class MainActivity extends Activity {
     private Runnable mFpsRunnable;
     private boolean mShowFpsCached = false;
     private int mLastDisplayedFps = -1;
+    private int mLastDisplayedJank = -1;
     private final StringBuilder mFpsStringBuilder = new StringBuilder(10);
+    private BenchmarkSweep mSweep;
+    private final Map<String, Object> mSweepSavedPrefs = new HashMap<>();
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -57,11 +86,17 @@ public class MainActivity extends Activity {
                 if (elapsedTime > 0) {
                     int frames = mFrameCount.getAndSet(0);
                     int fps = (int) (frames * 1000L / elapsedTime);
-                    
-                    if (fps != mLastDisplayedFps) {
+                    int jank = mGLView.getFramePacer().getJankyFrames();
+
+                    if (fps != mLastDisplayedFps || jank != mLastDisplayedJank) {
                         mLastDisplayedFps = fps;
+                        mLastDisplayedJank = jank;
                         mFpsStringBuilder.setLength(0);
                         mFpsStringBuilder.append(fps);
+                        if (jank > 0) {
+                            mFpsStringBuilder.append(" j").append(jank)
+                                    .append('/').append(mGLView.getFramePacer().getMissedFrames());
+                        }
                         mFpsTextView.setText(mFpsStringBuilder);
                         mFpsTextView.setTypeface(android.graphics.Typeface.create(android.graphics.Typeface.MONOSPACE, android.graphics.Typeface.BOLD));
                     }
@@ -70,14 +105,43 @@ public class MainActivity extends Activity {
                 mHandler.postDelayed(this, 200);
             }
         };
-        mSettingsView = new SettingsView(this);
-        mSettingsDialog = getSettingsDialog();
+        final String record = getIntent().getStringExtra(EXTRA_RECORD_TOUCH);
+        final String replay = getIntent().getStringExtra(EXTRA_REPLAY_TOUCH);
+        final String sweep = getIntent().getStringExtra(EXTRA_BENCHMARK_SWEEP);
+        if (sweep != null) {
+            mGLView.post(new Runnable() {
+                @Override
+                public void run() {
+                    startSweep(sweep);
+                }
+            });
+        } else if (record != null || replay != null) {
+            // Posted so that the view has its size.
+            mGLView.post(new Runnable() {
+                @Override
+                public void run() {
+                    startTouchBenchmark(record, replay);
+                }
+            });
+        }
+        // The settings view and its dialog are only created on the first gear tap, so that they
+        // do not delay the first frame.
         mGearView = (GearView)findViewById(R.id.gear_view);
         mGearView.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
                 if (mGearView.isGearVisible()) {
-                    mGLView.onPause();
+                    // The simulation keeps running behind the dialog to preview the tuning.
                     mGearView.hideGear();
+                    if (mSettingsDialog == null) {
+                        mSettingsView = new SettingsView(MainActivity.this);
+                        mSettingsView.setOnTuningChangedListener(new SettingsView.OnTuningChangedListener() {
+                            @Override
+                            public void onTuningChanged(int attraction, int dragPercent, float glowIntensity, float blurStrength) {
+                                mGLView.previewTuning(attraction, dragPercent, glowIntensity, blurStrength);
+                            }
+                        });
+                        mSettingsDialog = getSettingsDialog();
+                    }
                     mSettingsDialog.show();
                 } else {
                     mGearView.showGear();
@@ -86,9 +150,103 @@ public class MainActivity extends Activity {
         });
     }
 
+    private void startTouchBenchmark(String record, String replay) {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) dir = getFilesDir();
+        try {
+            if (replay != null) {
+                mGLView.startReplay(new File(dir, replay));
+            } else {
+                mGLView.startRecording(new File(dir, record));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot start the touch benchmark", e);
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void startSweep(String spec) {
+        try {
+            mSweep = new BenchmarkSweep(spec);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid sweep: " + spec, e);
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        Map<String, ?> prefs = getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME, MODE_PRIVATE).getAll();
+        mSweepSavedPrefs.clear();
+        for (String key : SWEEP_KEYS) mSweepSavedPrefs.put(key, prefs.get(key));
+        Log.i(TAG, "Benchmark sweep of " + mSweep.getCells().size() + " cells");
+        runNextSweepCell();
+    }
+
+    /** Saves the settings of the next cell and runs it; writes the report after the last one. */
+    private void runNextSweepCell() {
+        BenchmarkSweep.Run run = mSweep.nextRun();
+        if (run == null) {
+            finishSweep();
+            return;
+        }
+        BenchmarkSweep.Cell cell = run.getCell();
+        SharedPreferences.Editor editor = getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME, MODE_PRIVATE).edit();
+        editor.putInt("NumParticles", cell.particles);
+        editor.putInt("ParticleSize", cell.particleSize);
+        editor.putBoolean("motion_blur", cell.motionBlur);
+        editor.putBoolean("alpha_blending", cell.blend == BenchmarkSweep.BLEND_ALPHA);
+        editor.putBoolean("glow_mode", cell.blend == BenchmarkSweep.BLEND_GLOW);
+        editor.putBoolean("use_double_buffer", cell.doubleBuffer);
+        editor.putInt("WorkgroupSize", cell.workgroupSize);
+        editor.commit();
+        mGLView.startBenchmarkRun(run, new Runnable() {
+            @Override
+            public void run() {
+                runNextSweepCell();
+            }
+        });
+    }
+
+    private void finishSweep() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) dir = getFilesDir();
+        String name = "sweep-" + System.currentTimeMillis();
+        try {
+            Writer csv = new FileWriter(new File(dir, name + ".csv"));
+            try {
+                mSweep.writeCsv(csv);
+            } finally {
+                csv.close();
+            }
+            Writer json = new FileWriter(new File(dir, name + ".json"));
+            try {
+                mSweep.writeJson(json);
+            } finally {
+                json.close();
+            }
+            Log.i(TAG, "Benchmark sweep written to " + new File(dir, name + ".csv"));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write the sweep report", e);
+        }
+        mSweep = null;
+        SharedPreferences.Editor editor = getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME, MODE_PRIVATE).edit();
+        for (Map.Entry<String, Object> e : mSweepSavedPrefs.entrySet()) {
+            Object value = e.getValue();
+            if (value instanceof Integer) editor.putInt(e.getKey(), (Integer) value);
+            else if (value instanceof Boolean) editor.putBoolean(e.getKey(), (Boolean) value);
+            else editor.remove(e.getKey());
+        }
+        editor.apply();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mGLView != null) mGLView.onTrimMemory(level);
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
+        mGLView.stopRecording();
         mGLView.onPause();
         mGearView.hideGear();
         mHandler.removeCallbacks(mFpsRunnable);
@@ -113,6 +271,8 @@ public class MainActivity extends Activity {
             mLastFpsUpdateTime = System.currentTimeMillis();
             mFrameCount.set(0);
             mLastDisplayedFps = -1;
+            mLastDisplayedJank = -1;
+            mGLView.getFramePacer().resetCounters();
             mHandler.removeCallbacks(mFpsRunnable);
             mHandler.postDelayed(mFpsRunnable, 200);
         }
@@ -159,6 +319,13 @@ public class MainActivity extends Activity {
         mFpsTextView.setLayoutParams(params);
     }
 
+    /** Dumps the render metrics as JSON (adb shell dumpsys activity com.nfaralli.particleflow). */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mGLView != null) writer.println(prefix + mGLView.getMetrics().toJson());
+    }
+
     @SuppressWarnings("deprecation")
     Dialog getSettingsDialog() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -168,8 +335,8 @@ public class MainActivity extends Activity {
                 .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int id) {
+                        // Only the settings that need new buffers or programs reset the particles.
                         mSettingsView.saveValues();
-                        mGLView.onResume();
                         
                         SharedPreferences prefs = getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME, MODE_PRIVATE);
                         mShowFpsCached = prefs.getBoolean("show_fps", false);
@@ -189,16 +356,19 @@ public class MainActivity extends Activity {
                     @Override
                     public void onClick(DialogInterface dialog, int id) {
                         mSettingsView.loadValues();
-                        mGLView.onResume();
+                        mGLView.cancelPreview();
                     }
                 })
                 .setOnCancelListener(new DialogInterface.OnCancelListener() {
                     @Override
                     public void onCancel(DialogInterface dialog) {
                         mSettingsView.loadValues();
-                        mGLView.onResume();
+                        mGLView.cancelPreview();
                     }
                 });
-        return builder.create();
+        Dialog dialog = builder.create();
+        // Do not dim the particles being previewed.
+        dialog.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_DIM_BEHIND);
+        return dialog;
     }
 }
@@ -0,0 +1,121 @@
+package com.nfaralli.particleflow;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Newline-delimited JSON stream of metrics samples, written to every connected client. Each
+ * period, each source gives one sample (a JSON object on one line). The publisher thread only
+ * runs while there are clients: without any, nothing is sampled and no thread is awake, so the
+ * sources pay nothing. A client whose write fails is dropped.
+ * The transport is up to the caller (see LiveMetricsServer for the app, MetricsClient for the
+ * desktop). This class has no Android dependencies.
+ */
+public class MetricsStream {
+
+    /** Gives the current sample of something that renders, e.g. one renderer. */
+    public interface Source {
+        /** One JSON object, without line breaks. Called on the publisher thread. */
+        String sampleJson();
+    }
+
+    private static final class Client {
+        final OutputStream out;
+        final AutoCloseable connection;
+
+        Client(OutputStream out, AutoCloseable connection) {
+            this.out = out;
+            this.connection = connection;
+        }
+    }
+
+    private final List<Source> mSources = new CopyOnWriteArrayList<>();
+    private final List<Client> mClients = new CopyOnWriteArrayList<>();
+    private final long mPeriodMs;
+    private Thread mPublisher; // Guarded by this.
+
+    public MetricsStream(long periodMs) {
+        mPeriodMs = Math.max(1, periodMs);
+    }
+
+    public void addSource(Source source) {
+        mSources.add(source);
+    }
+
+    public void removeSource(Source source) {
+        mSources.remove(source);
+    }
+
+    public int getSourceCount() {
+        return mSources.size();
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * Streams the samples to out from the next period on, until a write fails or closeClients.
+     * connection (may be null) is closed with the client.
+     */
+    public synchronized void addClient(OutputStream out, AutoCloseable connection) {
+        mClients.add(new Client(out, connection));
+        if (mPublisher != null) return;
+        mPublisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, "MetricsStream");
+        mPublisher.setDaemon(true);
+        mPublisher.start();
+    }
+
+    /** Disconnects all the clients; the publisher thread stops. */
+    public void closeClients() {
+        for (Client client : mClients) drop(client);
+    }
+
+    private void publish() {
+        StringBuilder sb = new StringBuilder(2048);
+        while (true) {
+            synchronized (this) {
+                if (mClients.isEmpty()) {
+                    mPublisher = null;
+                    return;
+                }
+            }
+            sb.setLength(0);
+            for (Source source : mSources) sb.append(source.sampleJson()).append('\n');
+            if (sb.length() > 0) {
+                byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+                for (Client client : mClients) {
+                    try {
+                        client.out.write(bytes);
+                        client.out.flush();
+                    } catch (IOException e) {
+                        drop(client);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(mPeriodMs);
+            } catch (InterruptedException e) {
+                closeClients();
+            }
+        }
+    }
+
+    private void drop(Client client) {
+        if (!mClients.remove(client)) return;
+        try {
+            client.out.close();
+            if (client.connection != null) client.connection.close();
+        } catch (Exception e) {
+            // Already gone.
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * Uniform grid used to find the neighbors of each particle on the GPU, rebuilt every step by
+ * three compute passes:
+ * - count: each particle atomically increments the counter of its cell,
+ * - prefix sum: a single workgroup turns the counters into the start of each cell (and zeroes
+ *   the counters for the next step),
+ * - scatter: each particle is copied, with its velocity, to the next free entry of its cell.
+ * The particles are then sorted by cell: a query reads binding SORTED_BINDING and only scans
+ * the particles of the 3x3 cells around a particle, between cellStart[c] and cellStart[c + 1].
+ * The cell size is the interaction radius (larger if the grid would have too many cells).
+ * Every pass uses at most four storage blocks, the minimum supported by GLES 3.1 compute shaders.
+ */
+public class NeighborGrid {
+
+    private static final String TAG = "NeighborGrid";
+
+    // Storage bindings (the particle buffers use 0 to 3).
+    public static final int COUNT_BINDING = 4;
+    public static final int START_BINDING = 5;
+    public static final int CURSOR_BINDING = 6;
+    public static final int SORTED_BINDING = 7;
+    // A sorted particle: vec2 position, packed half2 velocity and padding (std430).
+    public static final int SORTED_BYTES = 16;
+
+    private static final int MAX_CELLS = 1 << 18;
+    private static final int PREFIX_WORKGROUP_SIZE = 128;
+
+    private ProgramCompiler.Program mCountJob, mPrefixJob, mScatterJob;
+    private int mCountProgram = 0, mPrefixProgram = 0, mScatterProgram = 0;
+    private int mWorkgroupSize;
+
+    private int mCountBuffer = 0, mStartBuffer = 0, mCursorBuffer = 0, mSortedBuffer = 0;
+    private int mNumParticles = 0;
+    private int mGridWidth = 0, mGridHeight = 0;
+    private float mCellSize = 1f;
+
+    /** GLSL of a sorted particle, shared with the query shader. */
+    public static String getSortedParticleCode(boolean readonly) {
+        return "struct SortedParticle { vec2 p; uint v; uint pad; };\n" +
+            "layout(std430, binding = " + SORTED_BINDING + ") " + (readonly ? "readonly" : "writeonly") +
+            " restrict buffer Sorted { SortedParticle sP[]; };\n";
+    }
+
+    /** GLSL returning the cell of a position (needs the SimParams block). */
+    public static String getCellCode() {
+        return "ivec2 cellOf(vec2 p) { return clamp(ivec2(p * uGrid.y), ivec2(0), ivec2(uGrid.zw) - 1); }\n" +
+            "uint cellIndex(ivec2 c) { return uint(c.y * int(uGrid.z) + c.x); }\n";
+    }
+
+    /**
+     * Submits the three grid programs to the compiler. simParamsBlock is the declaration of the
+     * SimParams uniform block (with uNumP and uGrid).
+     */
+    public void buildPrograms(ProgramCompiler compiler, String simParamsBlock, int workgroupSize) {
+        deletePrograms();
+        mWorkgroupSize = workgroupSize;
+        mCountJob = compiler.compileCompute("#version 310 es\n" +
+            "layout (local_size_x = " + workgroupSize + ") in;\n" +
+            "precision highp float;\n" +
+            "layout(std430, binding = 0) readonly restrict buffer InPos { vec2 inP[]; };\n" +
+            "layout(std430, binding = " + COUNT_BINDING + ") restrict buffer Count { uint cellCount[]; };\n" +
+            simParamsBlock + getCellCode() +
+            "void main() {\n" +
+            "  uint i = gl_GlobalInvocationID.x;\n" +
+            "  if (i >= uint(uNumP)) return;\n" +
+            "  atomicAdd(cellCount[cellIndex(cellOf(inP[i]))], 1u);\n" +
+            "}\n");
+        mPrefixJob = compiler.compileCompute("#version 310 es\n" +
+            "layout (local_size_x = " + PREFIX_WORKGROUP_SIZE + ") in;\n" +
+            "precision highp float;\n" +
+            "layout(std430, binding = " + COUNT_BINDING + ") restrict buffer Count { uint cellCount[]; };\n" +
+            "layout(std430, binding = " + START_BINDING + ") writeonly restrict buffer Start { uint cellStart[]; };\n" +
+            "layout(std430, binding = " + CURSOR_BINDING + ") writeonly restrict buffer Cursor { uint cellCursor[]; };\n" +
+            simParamsBlock +
+            "shared uint sums[" + PREFIX_WORKGROUP_SIZE + "];\n" +
+            "void main() {\n" +
+            "  uint t = gl_LocalInvocationIndex;\n" +
+            "  uint n = uint(uGrid.z * uGrid.w);\n" +
+            // Each invocation owns a contiguous chunk of cells.
+            "  uint chunk = (n + " + (PREFIX_WORKGROUP_SIZE - 1) + "u) / " + PREFIX_WORKGROUP_SIZE + "u;\n" +
+            "  uint b = min(t * chunk, n), e = min(b + chunk, n);\n" +
+            "  uint s = 0u;\n" +
+            "  for (uint c = b; c < e; c++) s += cellCount[c];\n" +
+            "  sums[t] = s;\n" +
+            "  barrier();\n" +
+            // Inclusive scan of the chunk sums (Hillis-Steele).
+            getScanCode() +
+            "  uint run = sums[t] - s;\n" +
+            "  for (uint c = b; c < e; c++) {\n" +
+            "    uint k = cellCount[c];\n" +
+            "    cellStart[c] = run; cellCursor[c] = run; cellCount[c] = 0u;\n" +
+            "    run += k;\n" +
+            "  }\n" +
+            "  if (t == " + (PREFIX_WORKGROUP_SIZE - 1) + "u) cellStart[n] = sums[t];\n" +
+            "}\n");
+        mScatterJob = compiler.compileCompute("#version 310 es\n" +
+            "layout (local_size_x = " + workgroupSize + ") in;\n" +
+            "precision highp float;\n" +
+            "layout(std430, binding = 0) readonly restrict buffer InPos { vec2 inP[]; };\n" +
+            "layout(std430, binding = 1) readonly restrict buffer InVel { uint inV[]; };\n" +
+            "layout(std430, binding = " + CURSOR_BINDING + ") restrict buffer Cursor { uint cellCursor[]; };\n" +
+            getSortedParticleCode(false) + simParamsBlock + getCellCode() +
+            "void main() {\n" +
+            "  uint i = gl_GlobalInvocationID.x;\n" +
+            "  if (i >= uint(uNumP)) return;\n" +
+            "  vec2 p = inP[i];\n" +
+            "  uint dst = atomicAdd(cellCursor[cellIndex(cellOf(p))], 1u);\n" +
+            "  sP[dst] = SortedParticle(p, inV[i], 0u);\n" +
+            "}\n");
+    }
+
+    /** Unrolled steps of the prefix pass scan (barrier() is not allowed in control flow). */
+    private static String getScanCode() {
+        String code = "  uint v;\n";
+        for (int off = 1; off < PREFIX_WORKGROUP_SIZE; off <<= 1) {
+            code += "  v = t >= " + off + "u ? sums[t - " + off + "u] : 0u;\n" +
+                "  barrier();\n" +
+                "  sums[t] += v;\n" +
+                "  barrier();\n";
+        }
+        return code;
+    }
+
+    /** Whether the grid programs are built (polls the compiler, never blocks). */
+    public boolean isReady() {
+        if (mCountProgram == 0 && mCountJob != null && mCountJob.isReady()) mCountProgram = mCountJob.get();
+        if (mPrefixProgram == 0 && mPrefixJob != null && mPrefixJob.isReady()) mPrefixProgram = mPrefixJob.get();
+        if (mScatterProgram == 0 && mScatterJob != null && mScatterJob.isReady()) mScatterProgram = mScatterJob.get();
+        return mCountProgram != 0 && mPrefixProgram != 0 && mScatterProgram != 0;
+    }
+
+    public boolean hasPrograms() {
+        return mCountJob != null;
+    }
+
+    public int getWorkgroupSize() {
+        return mWorkgroupSize;
+    }
+
+    /**
+     * (Re)allocates the grid for numParticles particles in a width x height space, with cells of
+     * at least radius pixels. Does nothing if the current grid already fits. Returns false if
+     * the sorted particles do not fit in a storage block or cannot be allocated.
+     */
+    public boolean allocate(int numParticles, int width, int height, float radius, long maxBlockSize) {
+        float cellSize = Math.max(radius, (float) Math.sqrt((double) width * height / MAX_CELLS));
+        int gridWidth = (int) Math.ceil(width / cellSize), gridHeight = (int) Math.ceil(height / cellSize);
+        if (mSortedBuffer != 0 && numParticles == mNumParticles && cellSize == mCellSize
+                && gridWidth == mGridWidth && gridHeight == mGridHeight) {
+            return true;
+        }
+        release();
+        if (maxBlockSize > 0 && (long) numParticles * SORTED_BYTES > maxBlockSize) {
+            Log.w(TAG, "Too many particles for the neighbor grid: " + numParticles);
+            return false;
+        }
+        int numCells = gridWidth * gridHeight;
+        while (GLES31.glGetError() != GLES31.GL_NO_ERROR) {} // Clear stale errors.
+        int[] buffers = new int[4];
+        GLES31.glGenBuffers(4, buffers, 0);
+        GlResources.track(GlResources.BUFFER, buffers, 0, 4, TAG);
+        mCountBuffer = buffers[0]; mStartBuffer = buffers[1]; mCursorBuffer = buffers[2]; mSortedBuffer = buffers[3];
+        // The counters must start at zero; the prefix pass zeroes them after each use.
+        ByteBuffer zeros = ByteBuffer.allocateDirect(numCells * 4).order(ByteOrder.nativeOrder());
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mCountBuffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, numCells * 4, zeros, GLES31.GL_DYNAMIC_DRAW);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mStartBuffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, (numCells + 1) * 4, null, GLES31.GL_DYNAMIC_DRAW);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mCursorBuffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, numCells * 4, null, GLES31.GL_DYNAMIC_DRAW);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mSortedBuffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, numParticles * SORTED_BYTES, null, GLES31.GL_DYNAMIC_DRAW);
+        GlResources.setBytes(GlResources.BUFFER, mCountBuffer, numCells * 4L);
+        GlResources.setBytes(GlResources.BUFFER, mStartBuffer, (numCells + 1) * 4L);
+        GlResources.setBytes(GlResources.BUFFER, mCursorBuffer, numCells * 4L);
+        GlResources.setBytes(GlResources.BUFFER, mSortedBuffer, (long) numParticles * SORTED_BYTES);
+        int error = GLES31.glGetError();
+        if (error != GLES31.GL_NO_ERROR) {
+            Log.w(TAG, "Grid allocation failed (0x" + Integer.toHexString(error) + ")");
+            release();
+            return false;
+        }
+        mNumParticles = numParticles;
+        mCellSize = cellSize;
+        mGridWidth = gridWidth;
+        mGridHeight = gridHeight;
+        return true;
+    }
+
+    public float getCellSize() {
+        return mCellSize;
+    }
+
+    public int getGridWidth() {
+        return mGridWidth;
+    }
+
+    public int getGridHeight() {
+        return mGridHeight;
+    }
+
+    public long getBytes() {
+        if (mSortedBuffer == 0) return 0;
+        return (long) mNumParticles * SORTED_BYTES + (3L * mGridWidth * mGridHeight + 1) * 4;
+    }
+
+    /**
+     * Builds the grid from the given particle state. The SimParams block (uNumP, uGrid) must be
+     * bound. Ends with a barrier so that the sorted particles can be queried.
+     */
+    public void build(int posBuffer, int velBuffer) {
+        int groups = (mNumParticles + mWorkgroupSize - 1) / mWorkgroupSize;
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, posBuffer);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, velBuffer);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, COUNT_BINDING, mCountBuffer);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, START_BINDING, mStartBuffer);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, CURSOR_BINDING, mCursorBuffer);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, SORTED_BINDING, mSortedBuffer);
+
+        GLES31.glUseProgram(mCountProgram);
+        GLES31.glDispatchCompute(groups, 1, 1);
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+        GLES31.glUseProgram(mPrefixProgram);
+        GLES31.glDispatchCompute(1, 1, 1);
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+        GLES31.glUseProgram(mScatterProgram);
+        GLES31.glDispatchCompute(groups, 1, 1);
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+    }
+
+    /** Deletes the buffers (the programs are kept). */
+    public void release() {
+        if (mSortedBuffer != 0) {
+            GlResources.delete(GlResources.BUFFER, new int[] {mCountBuffer, mStartBuffer, mCursorBuffer, mSortedBuffer}, 0, 4);
+        }
+        forgetBuffers();
+    }
+
+    private void forgetBuffers() {
+        mCountBuffer = 0; mStartBuffer = 0; mCursorBuffer = 0; mSortedBuffer = 0;
+        mNumParticles = 0; mGridWidth = 0; mGridHeight = 0;
+    }
+
+    /** Deletes all the GL objects, programs included. */
+    public void destroy() {
+        release();
+        deletePrograms();
+    }
+
+    private void deletePrograms() {
+        for (ProgramCompiler.Program job : new ProgramCompiler.Program[] {mCountJob, mPrefixJob, mScatterJob}) {
+            if (job != null) job.discard();
+        }
+        mCountJob = null; mPrefixJob = null; mScatterJob = null;
+        mCountProgram = 0; mPrefixProgram = 0; mScatterProgram = 0;
+    }
+
+    /** Forgets all the GL objects, e.g. after the context was lost. */
+    public void forget() {
+        forgetBuffers();
+        mCountJob = null; mPrefixJob = null; mScatterJob = null;
+        mCountProgram = 0; mPrefixProgram = 0; mScatterProgram = 0;
+    }
+}
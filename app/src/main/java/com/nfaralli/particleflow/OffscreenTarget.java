@@ -0,0 +1,152 @@
+package com.nfaralli.particleflow;
+
+import android.opengl.GLES31;
+
+/**
+ * Framebuffer with a single immutable color texture, used to render the particles off screen
+ * before compositing them to the surface.
+ * The format is either RGBA8 or, to save bandwidth on tile-based GPUs, RGB565.
+ * With more than one sample, rendering goes to a multisampled renderbuffer which must be
+ * resolved into the texture (see resolve()) before sampling it.
+ * All the methods must be called on the GL thread.
+ */
+public class OffscreenTarget {
+
+    private static final String TAG = "OffscreenTarget";
+
+    private int mFramebuffer = 0;
+    private int mTexture = 0;
+    private int mSampleFramebuffer = 0;
+    private int mSampleRenderbuffer = 0;
+    private int mSamples = 1;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private boolean mLowPrecision = false;
+
+    /**
+     * (Re)creates the target if its size or format changed.
+     * Returns true if the target was recreated, in which case its content is undefined.
+     */
+    public boolean resize(int width, int height, boolean lowPrecision) {
+        return resize(width, height, lowPrecision, 1);
+    }
+
+    public boolean resize(int width, int height, boolean lowPrecision, int samples) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        if (samples > 1) {
+            int[] maxSamples = new int[1];
+            GLES31.glGetIntegerv(GLES31.GL_MAX_SAMPLES, maxSamples, 0);
+            samples = Math.max(1, Math.min(samples, maxSamples[0]));
+        }
+        if (mFramebuffer != 0 && width == mWidth && height == mHeight && lowPrecision == mLowPrecision
+                && samples == mSamples) {
+            return false;
+        }
+        release();
+        mWidth = width;
+        mHeight = height;
+        mLowPrecision = lowPrecision;
+        mSamples = samples;
+        int format = lowPrecision ? GLES31.GL_RGB565 : GLES31.GL_RGBA8;
+
+        int[] ids = new int[1];
+        GLES31.glGenTextures(1, ids, 0);
+        mTexture = ids[0];
+        GlResources.track(GlResources.TEXTURE, mTexture, TAG);
+        GlResources.setBytes(GlResources.TEXTURE, mTexture, (long) width * height * (lowPrecision ? 2 : 4));
+        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, mTexture);
+        GLES31.glTexStorage2D(GLES31.GL_TEXTURE_2D, 1, format, width, height);
+        GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_MIN_FILTER, GLES31.GL_LINEAR);
+        GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_MAG_FILTER, GLES31.GL_LINEAR);
+        GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_WRAP_S, GLES31.GL_CLAMP_TO_EDGE);
+        GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_WRAP_T, GLES31.GL_CLAMP_TO_EDGE);
+
+        GLES31.glGenFramebuffers(1, ids, 0);
+        mFramebuffer = ids[0];
+        GlResources.track(GlResources.FRAMEBUFFER, mFramebuffer, TAG);
+        GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, mFramebuffer);
+        GLES31.glFramebufferTexture2D(GLES31.GL_FRAMEBUFFER, GLES31.GL_COLOR_ATTACHMENT0,
+                GLES31.GL_TEXTURE_2D, mTexture, 0);
+
+        if (samples > 1) {
+            GLES31.glGenRenderbuffers(1, ids, 0);
+            mSampleRenderbuffer = ids[0];
+            GlResources.track(GlResources.RENDERBUFFER, mSampleRenderbuffer, TAG);
+            GlResources.setBytes(GlResources.RENDERBUFFER, mSampleRenderbuffer,
+                    (long) width * height * (lowPrecision ? 2 : 4) * samples);
+            GLES31.glBindRenderbuffer(GLES31.GL_RENDERBUFFER, mSampleRenderbuffer);
+            GLES31.glRenderbufferStorageMultisample(GLES31.GL_RENDERBUFFER, samples, format, width, height);
+            GLES31.glGenFramebuffers(1, ids, 0);
+            mSampleFramebuffer = ids[0];
+            GlResources.track(GlResources.FRAMEBUFFER, mSampleFramebuffer, TAG);
+            GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, mSampleFramebuffer);
+            GLES31.glFramebufferRenderbuffer(GLES31.GL_FRAMEBUFFER, GLES31.GL_COLOR_ATTACHMENT0,
+                    GLES31.GL_RENDERBUFFER, mSampleRenderbuffer);
+        }
+        GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, 0);
+        return true;
+    }
+
+    /** Binds the framebuffer (the multisampled one if any) and sets the viewport to its size. */
+    public void bind() {
+        GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, mSampleFramebuffer != 0 ? mSampleFramebuffer : mFramebuffer);
+        GLES31.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * Resolves the multisampled renderbuffer into the texture, then discards the samples.
+     * Does nothing for single sampled targets.
+     */
+    public void resolve() {
+        if (mSampleFramebuffer == 0) return;
+        GLES31.glBindFramebuffer(GLES31.GL_READ_FRAMEBUFFER, mSampleFramebuffer);
+        GLES31.glBindFramebuffer(GLES31.GL_DRAW_FRAMEBUFFER, mFramebuffer);
+        GLES31.glBlitFramebuffer(0, 0, mWidth, mHeight, 0, 0, mWidth, mHeight,
+                GLES31.GL_COLOR_BUFFER_BIT, GLES31.GL_NEAREST);
+        GLES31.glInvalidateFramebuffer(GLES31.GL_READ_FRAMEBUFFER, 1,
+                new int[] {GLES31.GL_COLOR_ATTACHMENT0}, 0);
+        GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, 0);
+    }
+
+    public int getTexture() {
+        return mTexture;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Bytes used by the color texture. */
+    public long getBytes() {
+        if (mFramebuffer == 0) return 0;
+        int samples = mSampleFramebuffer != 0 ? mSamples + 1 : 1;
+        return (long) mWidth * mHeight * (mLowPrecision ? 2 : 4) * samples;
+    }
+
+    /**
+     * Deletes the GL objects. Only call it while the GL context that created them is current;
+     * use forget() when the context was lost.
+     */
+    public void release() {
+        GlResources.delete(GlResources.FRAMEBUFFER, mFramebuffer);
+        GlResources.delete(GlResources.TEXTURE, mTexture);
+        GlResources.delete(GlResources.FRAMEBUFFER, mSampleFramebuffer);
+        GlResources.delete(GlResources.RENDERBUFFER, mSampleRenderbuffer);
+        forget();
+    }
+
+    /** Drops the handles without deleting them (the GL context that owned them is gone). */
+    public void forget() {
+        mFramebuffer = 0;
+        mTexture = 0;
+        mSampleFramebuffer = 0;
+        mSampleRenderbuffer = 0;
+        mWidth = 0;
+        mHeight = 0;
+    }
+}
@@ -0,0 +1,183 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Color palette mapping the particle speed (0 = slow, 1 = fast) to a color, made of N color
+ * stops interpolated either in HSV or in OKLab.
+ * Palettes are immutable and compare by value, so that built lookup tables can be cached.
+ * This class has no Android dependencies.
+ */
+public final class Palette {
+
+    public static final int INTERPOLATION_HSV = 0;
+    public static final int INTERPOLATION_OKLAB = 1;
+
+    // Presets (must match the palette_presets string array). PRESET_CUSTOM uses the slow and
+    // fast colors of the settings.
+    public static final int PRESET_CUSTOM = 0;
+    private static final int[][] PRESET_COLORS = {
+        null,
+        {0xFF1A0000, 0xFFB01000, 0xFFFF8000, 0xFFFFF0A0}, // Fire
+        {0xFF001030, 0xFF0050A0, 0xFF00C0D0, 0xFFE0FFFF}, // Ocean
+        {0xFF102060, 0xFF20A060, 0xFF80FF80, 0xFFFF60C0}, // Aurora
+    };
+    private static final float[] PRESET_POSITIONS = {0f, 0.35f, 0.7f, 1f};
+
+    private final int[] mColors;
+    private final float[] mPositions;
+    private final int mInterpolation;
+    private final boolean mClockwise;
+
+    /**
+     * colors are ARGB colors at the given (increasing, from 0 to 1) positions. clockwise is the
+     * hue direction used by the HSV interpolation.
+     */
+    public Palette(int[] colors, float[] positions, int interpolation, boolean clockwise) {
+        if (colors.length < 1 || colors.length != positions.length) {
+            throw new IllegalArgumentException("A palette needs as many positions as colors");
+        }
+        mColors = colors.clone();
+        mPositions = positions.clone();
+        mInterpolation = interpolation;
+        mClockwise = clockwise;
+    }
+
+    public static Palette preset(int preset, int slowColor, int fastColor, int interpolation,
+                                 boolean clockwise) {
+        if (preset <= PRESET_CUSTOM || preset >= PRESET_COLORS.length) {
+            return new Palette(new int[] {slowColor, fastColor}, new float[] {0f, 1f},
+                    interpolation, clockwise);
+        }
+        return new Palette(PRESET_COLORS[preset], PRESET_POSITIONS, interpolation, clockwise);
+    }
+
+    /**
+     * Builds a width x 1 RGBA16F lookup table (half floats, native order) ready for
+     * glTexSubImage2D. The returned buffer must not be modified.
+     */
+    public ByteBuffer build(int width) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(width * 4 * 2).order(ByteOrder.nativeOrder());
+        float[] rgb = new float[3];
+        for (int i = 0; i < width; i++) {
+            float t = i / (float) (width - 1);
+            sample(t, rgb);
+            bb.putShort(HalfFloat.fromFloat(rgb[0]));
+            bb.putShort(HalfFloat.fromFloat(rgb[1]));
+            bb.putShort(HalfFloat.fromFloat(rgb[2]));
+            bb.putShort(HalfFloat.fromFloat(1f));
+        }
+        bb.position(0);
+        return bb;
+    }
+
+    /** Color (RGB, 0-1) at position t. */
+    private void sample(float t, float[] rgb) {
+        int n = mColors.length;
+        if (n == 1 || t <= mPositions[0]) { toRgb(mColors[0], rgb); return; }
+        if (t >= mPositions[n - 1]) { toRgb(mColors[n - 1], rgb); return; }
+        int i = 1;
+        while (mPositions[i] < t) i++;
+        float span = mPositions[i] - mPositions[i - 1];
+        float u = span > 0f ? (t - mPositions[i - 1]) / span : 1f;
+        if (mInterpolation == INTERPOLATION_OKLAB) {
+            float[] a = toOklab(mColors[i - 1]), b = toOklab(mColors[i]);
+            fromOklab((1f - u) * a[0] + u * b[0], (1f - u) * a[1] + u * b[1], (1f - u) * a[2] + u * b[2], rgb);
+        } else {
+            float[] a = toHsv(mColors[i - 1]), b = toHsv(mColors[i]);
+            float ha = a[0], hb = b[0];
+            // Same convention as the original two color gradient.
+            if (ha < hb && mClockwise) ha += 1f; else if (ha > hb && !mClockwise) hb += 1f;
+            float h = ((1f - u) * ha + u * hb) % 1f;
+            fromHsv(h, (1f - u) * a[1] + u * b[1], (1f - u) * a[2] + u * b[2], rgb);
+        }
+    }
+
+    private static void toRgb(int color, float[] rgb) {
+        rgb[0] = ((color >> 16) & 0xFF) / 255f;
+        rgb[1] = ((color >> 8) & 0xFF) / 255f;
+        rgb[2] = (color & 0xFF) / 255f;
+    }
+
+    /** Hue (0-1), saturation and value of an ARGB color. */
+    private static float[] toHsv(int color) {
+        float[] rgb = new float[3];
+        toRgb(color, rgb);
+        float max = Math.max(rgb[0], Math.max(rgb[1], rgb[2]));
+        float min = Math.min(rgb[0], Math.min(rgb[1], rgb[2]));
+        float d = max - min, h = 0f;
+        if (d > 0f) {
+            if (max == rgb[0]) h = ((rgb[1] - rgb[2]) / d) / 6f;
+            else if (max == rgb[1]) h = ((rgb[2] - rgb[0]) / d + 2f) / 6f;
+            else h = ((rgb[0] - rgb[1]) / d + 4f) / 6f;
+            if (h < 0f) h += 1f;
+        }
+        return new float[] {h, max > 0f ? d / max : 0f, max};
+    }
+
+    private static void fromHsv(float h, float s, float v, float[] rgb) {
+        float h6 = (h - (float) Math.floor(h)) * 6f;
+        int sector = (int) h6 % 6;
+        float f = h6 - (float) Math.floor(h6);
+        float p = v * (1f - s), q = v * (1f - s * f), r = v * (1f - s * (1f - f));
+        switch (sector) {
+            case 0: rgb[0] = v; rgb[1] = r; rgb[2] = p; break;
+            case 1: rgb[0] = q; rgb[1] = v; rgb[2] = p; break;
+            case 2: rgb[0] = p; rgb[1] = v; rgb[2] = r; break;
+            case 3: rgb[0] = p; rgb[1] = q; rgb[2] = v; break;
+            case 4: rgb[0] = r; rgb[1] = p; rgb[2] = v; break;
+            default: rgb[0] = v; rgb[1] = p; rgb[2] = q; break;
+        }
+    }
+
+    private static float toLinear(float c) {
+        return c <= 0.04045f ? c / 12.92f : (float) Math.pow((c + 0.055f) / 1.055f, 2.4f);
+    }
+
+    private static float toSrgb(float c) {
+        c = Math.max(0f, Math.min(1f, c));
+        return c <= 0.0031308f ? c * 12.92f : 1.055f * (float) Math.pow(c, 1 / 2.4f) - 0.055f;
+    }
+
+    private static float[] toOklab(int color) {
+        float[] rgb = new float[3];
+        toRgb(color, rgb);
+        float r = toLinear(rgb[0]), g = toLinear(rgb[1]), b = toLinear(rgb[2]);
+        float l = (float) Math.cbrt(0.4122214708f * r + 0.5363325363f * g + 0.0514459929f * b);
+        float m = (float) Math.cbrt(0.2119034982f * r + 0.6806995451f * g + 0.1073969566f * b);
+        float s = (float) Math.cbrt(0.0883024619f * r + 0.2817188376f * g + 0.6299787005f * b);
+        return new float[] {
+            0.2104542553f * l + 0.7936177850f * m - 0.0040720468f * s,
+            1.9779984951f * l - 2.4285922050f * m + 0.4505937099f * s,
+            0.0259040371f * l + 0.7827717662f * m - 0.8086757660f * s};
+    }
+
+    private static void fromOklab(float lab, float a, float b, float[] rgb) {
+        float l = lab + 0.3963377774f * a + 0.2158037573f * b;
+        float m = lab - 0.1055613458f * a - 0.0638541728f * b;
+        float s = lab - 0.0894841775f * a - 1.2914855480f * b;
+        l = l * l * l; m = m * m * m; s = s * s * s;
+        rgb[0] = toSrgb(4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s);
+        rgb[1] = toSrgb(-1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s);
+        rgb[2] = toSrgb(-0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Palette)) return false;
+        Palette p = (Palette) o;
+        return mInterpolation == p.mInterpolation && mClockwise == p.mClockwise
+                && Arrays.equals(mColors, p.mColors) && Arrays.equals(mPositions, p.mPositions);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = Arrays.hashCode(mColors);
+        h = 31 * h + Arrays.hashCode(mPositions);
+        h = 31 * h + mInterpolation;
+        return 31 * h + (mClockwise ? 1 : 0);
+    }
+}
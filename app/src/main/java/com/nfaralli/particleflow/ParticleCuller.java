@@ -0,0 +1,242 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * Off-screen culling: the step shader appends the index of each particle that may be visible
+ * (on screen, or close enough for its point or trail to be) to the visible list of the slot it
+ * writes, with one atomic per workgroup. A one-invocation pass then turns the count into the
+ * draw commands of the slot, and the draws read the particles through the list with
+ * glDrawArraysIndirect: the vertex work tracks the visible particles.
+ * The visible fraction is read back a few frames later, through a copy and a fence, so that
+ * reporting it never stalls the pipeline.
+ * Needs five storage blocks in compute shaders and three in vertex shaders.
+ */
+public class ParticleCuller {
+
+    private static final String TAG = "ParticleCuller";
+
+    public static final int VISIBLE_BINDING = 4;
+    private static final int REQUIRED_COMPUTE_BLOCKS = 5;
+    private static final int REQUIRED_VERTEX_BLOCKS = 3;
+    // Per slot: three draw commands (points, lines, triangles; 4 uints each) and the counter of
+    // the visible particles. The visible lists of the slots follow the header.
+    private static final int SLOT_UINTS = 16;
+    private static final int COUNTER_UINT = 15;
+    private static final int HEADER_UINTS = 64;
+    // A particle is kept if it is within this margin of the screen, plus its trail (the velocity
+    // times the maximum blur strength).
+    private static final float MARGIN = 32f;
+    private static final float MAX_TRAIL = 2f;
+    private static final int READBACK_PERIOD = 30;
+
+    private ProgramCompiler.Program mFinalizeJob;
+    private int mFinalizeProgram = 0;
+
+    private int mListBuffer = 0;
+    private int mNumParticles = 0;
+    private int mRingDepth = 0;
+
+    private int mReadbackBuffer = 0;
+    private long mReadbackFence = 0;
+    private int mStepsSinceReadback = 0;
+
+    /** Whether the device has enough storage blocks. Must be called on the GL thread. */
+    public static boolean isSupported() {
+        int[] blocks = new int[2];
+        GLES31.glGetIntegerv(GLES31.GL_MAX_COMPUTE_SHADER_STORAGE_BLOCKS, blocks, 0);
+        GLES31.glGetIntegerv(GLES31.GL_MAX_VERTEX_SHADER_STORAGE_BLOCKS, blocks, 1);
+        return blocks[0] >= REQUIRED_COMPUTE_BLOCKS && blocks[1] >= REQUIRED_VERTEX_BLOCKS;
+    }
+
+    /**
+     * GLSL declarations of the step shader (needs the SimParams block): the visible lists, the
+     * workgroup's count and base, and visible().
+     */
+    public static String getDeclarationCode() {
+        return "layout(std430, binding = " + VISIBLE_BINDING + ") restrict buffer Visible { uint visible[]; };\n" +
+            "shared uint sVisibleCount, sVisibleBase;\n" +
+            "bool isVisible(vec2 p, vec2 v) {\n" +
+            "  vec2 m = vec2(" + MARGIN + ") + abs(v) * " + MAX_TRAIL + ";\n" +
+            "  return all(greaterThanEqual(p, -m)) && all(lessThan(p, uRes + m));\n" +
+            "}\n";
+    }
+
+    /**
+     * GLSL appending the visible particles of the invocation to the list of the output slot:
+     * vis1 and vis2 tell whether particles 2i and 2i + 1 are visible, and visOffset is the
+     * offset returned by atomicAdd(sVisibleCount, ...). Must be in main, out of control flow.
+     */
+    public static String getAppendCode() {
+        return "  barrier();\n" +
+            "  if (gl_LocalInvocationIndex == 0u) {\n" +
+            "    sVisibleBase = atomicAdd(visible[uint(uSlots.y) * " + SLOT_UINTS + "u + " + COUNTER_UINT + "u], sVisibleCount);\n" +
+            "  }\n" +
+            "  barrier();\n" +
+            "  uint dst = " + HEADER_UINTS + "u + uint(uSlots.y * uNumP) + sVisibleBase + visOffset;\n" +
+            "  if (vis1) visible[dst++] = i << 1;\n" +
+            "  if (vis2) visible[dst] = (i << 1) + 1u;\n";
+    }
+
+    /** Submits the finalize program to the compiler. simParamsBlock declares SimParams. */
+    public void buildPrograms(ProgramCompiler compiler, String simParamsBlock) {
+        deleteProgram();
+        mFinalizeJob = compiler.compileCompute("#version 310 es\n" +
+            "layout (local_size_x = 1) in;\n" +
+            "precision highp float;\n" +
+            "layout(std430, binding = " + VISIBLE_BINDING + ") restrict buffer Visible { uint visible[]; };\n" +
+            simParamsBlock +
+            "void main() {\n" +
+            "  uint o = uint(uSlots.y) * " + SLOT_UINTS + "u;\n" +
+            "  uint c = visible[o + " + COUNTER_UINT + "u];\n" +
+            "  for (uint k = 0u; k < 3u; k++) {\n" + // Points, lines (2 vertices), triangles (3 vertices).
+            "    visible[o + 4u * k] = c * (k + 1u); visible[o + 4u * k + 1u] = 1u;\n" +
+            "    visible[o + 4u * k + 2u] = 0u; visible[o + 4u * k + 3u] = 0u;\n" +
+            "  }\n" +
+            // The counter of the next output slot (its commands are still valid for drawing).
+            "  visible[uint(uSlots.z) * " + SLOT_UINTS + "u + " + COUNTER_UINT + "u] = 0u;\n" +
+            "}\n");
+    }
+
+    /** Whether the finalize program is built (polls the compiler, never blocks). */
+    public boolean isReady() {
+        if (mFinalizeProgram == 0 && mFinalizeJob != null && mFinalizeJob.isReady()) mFinalizeProgram = mFinalizeJob.get();
+        return mFinalizeProgram != 0;
+    }
+
+    public boolean hasPrograms() {
+        return mFinalizeJob != null;
+    }
+
+    /**
+     * Allocates the visible lists of a ring of ringDepth slots of numParticles particles. Returns
+     * false if they do not fit in a storage block or cannot be allocated.
+     */
+    public boolean allocate(int numParticles, int ringDepth, long maxBlockSize) {
+        release();
+        long bytes = getBytes(numParticles, ringDepth);
+        if (maxBlockSize > 0 && bytes > maxBlockSize) {
+            Log.w(TAG, "Too many particles for the visible lists: " + numParticles);
+            return false;
+        }
+        // No particle is drawn from a slot before a step wrote its list.
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_UINTS * 4).order(ByteOrder.nativeOrder());
+        while (GLES31.glGetError() != GLES31.GL_NO_ERROR) {} // Clear stale errors.
+        int[] buffers = new int[2];
+        GLES31.glGenBuffers(2, buffers, 0);
+        mListBuffer = buffers[0];
+        mReadbackBuffer = buffers[1];
+        GlResources.track(GlResources.BUFFER, buffers, 0, 2, TAG);
+        GlResources.setBytes(GlResources.BUFFER, mListBuffer, bytes);
+        GlResources.setBytes(GlResources.BUFFER, mReadbackBuffer, 4);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mListBuffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, (int) bytes, null, GLES31.GL_DYNAMIC_DRAW);
+        GLES31.glBufferSubData(GLES31.GL_SHADER_STORAGE_BUFFER, 0, HEADER_UINTS * 4, header);
+        GLES31.glBindBuffer(GLES31.GL_COPY_WRITE_BUFFER, mReadbackBuffer);
+        GLES31.glBufferData(GLES31.GL_COPY_WRITE_BUFFER, 4, null, GLES31.GL_STREAM_READ);
+        int error = GLES31.glGetError();
+        if (error != GLES31.GL_NO_ERROR) {
+            Log.w(TAG, "Visible list allocation failed (0x" + Integer.toHexString(error) + ")");
+            release();
+            return false;
+        }
+        mNumParticles = numParticles;
+        mRingDepth = ringDepth;
+        mStepsSinceReadback = 0;
+        return true;
+    }
+
+    private static long getBytes(int numParticles, int ringDepth) {
+        return (HEADER_UINTS + (long) numParticles * ringDepth) * 4;
+    }
+
+    public long getBytes() {
+        return mListBuffer != 0 ? getBytes(mNumParticles, mRingDepth) : 0;
+    }
+
+    public boolean isAllocated() {
+        return mListBuffer != 0;
+    }
+
+    /** Binds the visible lists for a step shader. */
+    public void bind() {
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, VISIBLE_BINDING, mListBuffer);
+    }
+
+    /**
+     * Writes the draw commands of the slot written by the step (the SimParams block must be
+     * bound), and records the visible fraction in metrics when a readback completed.
+     */
+    public void finalizeStep(int outSlot, RenderMetrics metrics) {
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+        bind();
+        GLES31.glUseProgram(mFinalizeProgram);
+        GLES31.glDispatchCompute(1, 1, 1);
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT | GLES31.GL_COMMAND_BARRIER_BIT
+                | GLES31.GL_BUFFER_UPDATE_BARRIER_BIT);
+        if (mReadbackFence != 0) {
+            int status = GLES31.glClientWaitSync(mReadbackFence, 0, 0);
+            if (status != GLES31.GL_ALREADY_SIGNALED && status != GLES31.GL_CONDITION_SATISFIED) return;
+            GLES31.glDeleteSync(mReadbackFence);
+            mReadbackFence = 0;
+            GLES31.glBindBuffer(GLES31.GL_COPY_WRITE_BUFFER, mReadbackBuffer);
+            ByteBuffer count = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_COPY_WRITE_BUFFER, 0, 4, GLES31.GL_MAP_READ_BIT);
+            if (count != null) {
+                metrics.set("visible_fraction", count.order(ByteOrder.nativeOrder()).getInt(0) / (double) Math.max(1, mNumParticles));
+                GLES31.glUnmapBuffer(GLES31.GL_COPY_WRITE_BUFFER);
+            }
+        } else if (++mStepsSinceReadback >= READBACK_PERIOD) {
+            mStepsSinceReadback = 0;
+            GLES31.glBindBuffer(GLES31.GL_COPY_READ_BUFFER, mListBuffer);
+            GLES31.glBindBuffer(GLES31.GL_COPY_WRITE_BUFFER, mReadbackBuffer);
+            GLES31.glCopyBufferSubData(GLES31.GL_COPY_READ_BUFFER, GLES31.GL_COPY_WRITE_BUFFER,
+                    getDrawOffset(outSlot, ParticleEmitter.DRAW_POINTS), 0, 4);
+            mReadbackFence = GLES31.glFenceSync(GLES31.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+    }
+
+    public int getListBuffer() {
+        return mListBuffer;
+    }
+
+    /** Index of the first entry of the visible list of a slot (in uints). */
+    public int getListBase(int slot) {
+        return HEADER_UINTS + slot * mNumParticles;
+    }
+
+    /** Offset in the list buffer of the draw command of a slot (see ParticleEmitter.DRAW_*). */
+    public int getDrawOffset(int slot, int primitive) {
+        return (slot * SLOT_UINTS + 4 * primitive) * 4;
+    }
+
+    /** Deletes the buffers (the program is kept). */
+    public void release() {
+        if (mListBuffer != 0) GlResources.delete(GlResources.BUFFER, new int[] {mListBuffer, mReadbackBuffer}, 0, 2);
+        if (mReadbackFence != 0) GLES31.glDeleteSync(mReadbackFence);
+        mListBuffer = 0; mReadbackBuffer = 0; mReadbackFence = 0;
+        mNumParticles = 0; mRingDepth = 0;
+    }
+
+    /** Deletes all the GL objects, program included. */
+    public void destroy() {
+        release();
+        deleteProgram();
+    }
+
+    private void deleteProgram() {
+        if (mFinalizeJob != null) mFinalizeJob.discard();
+        mFinalizeJob = null;
+        mFinalizeProgram = 0;
+    }
+
+    /** Forgets all the GL objects, e.g. after the context was lost. */
+    public void forget() {
+        mListBuffer = 0; mReadbackBuffer = 0; mReadbackFence = 0;
+        mNumParticles = 0; mRingDepth = 0;
+        mFinalizeJob = null; mFinalizeProgram = 0;
+    }
+}
@@ -0,0 +1,313 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * Emitters and particle lifetimes. The attraction points emit particles, which die after a
+ * random lifetime.
+ * The live particles are kept packed at the start of the state buffers: each step copies the
+ * survivors of the input slot to the output slot (an atomic counter gives them their new index)
+ * and appends the emitted particles with the same counter. The dead slots are thus the tail of
+ * the buffers, which is the free list. A last pass turns the live count into the arguments of
+ * the next dispatch and of the draws (glDispatchComputeIndirect, glDrawArraysIndirect), so
+ * only the live particles cost compute and vertex work, and the CPU never reads the count back.
+ * The counters, indirect arguments and remaining lifetimes are in a single "meta" buffer.
+ * Needs a ring of at least two slots (the particles move during a step) and five storage
+ * blocks in compute shaders.
+ */
+public class ParticleEmitter {
+
+    private static final String TAG = "ParticleEmitter";
+
+    // Particle sources (must match the particle_sources string array).
+    public static final int SOURCE_FIXED = 0;
+    public static final int SOURCE_STEADY = 1;
+    public static final int SOURCE_BURSTS = 2;
+
+    // Draw commands of a slot, one per primitive (see getDrawOffset).
+    public static final int DRAW_POINTS = 0;
+    public static final int DRAW_LINES = 1;
+    public static final int DRAW_TRIANGLES = 2;
+
+    public static final int META_BINDING = 4;
+    private static final int REQUIRED_STORAGE_BLOCKS = 5;
+    // Per slot: three draw commands (4 uints each), the dispatch arguments (3) and the live
+    // counter. The lifetimes of the particles of each slot follow the header.
+    private static final int SLOT_UINTS = 16;
+    private static final int DISPATCH_UINT = 12, COUNTER_UINT = 15;
+    private static final int HEADER_UINTS = 64;
+
+    // Lifetimes and bursts are in steps at 60 steps per second.
+    private static final float MEAN_LIFETIME = 180f;
+    private static final float BURST_PERIOD = 180f;
+    private static final float EMIT_SPEED = 4f;
+
+    private ProgramCompiler.Program mSimulateJob, mEmitJob, mFinalizeJob;
+    private int mSimulateProgram = 0, mEmitProgram = 0, mFinalizeProgram = 0;
+    private int mWorkgroupSize;
+
+    private int mMetaBuffer = 0;
+    private int mNumParticles = 0;
+    private int mRingDepth = 0;
+    private float mEmitCarry = 0f;
+    private float mBurstClock = 0f;
+    private int mSeed = 0;
+
+    /** Whether the device has enough compute storage blocks. Must be called on the GL thread. */
+    public static boolean isSupported() {
+        int[] blocks = new int[1];
+        GLES31.glGetIntegerv(GLES31.GL_MAX_COMPUTE_SHADER_STORAGE_BLOCKS, blocks, 0);
+        return blocks[0] >= REQUIRED_STORAGE_BLOCKS;
+    }
+
+    private static String getMetaCode() {
+        return "layout(std430, binding = " + META_BINDING + ") restrict buffer Meta { uint meta[]; };\n" +
+            "uint lifeIndex(int slot, uint i) { return " + HEADER_UINTS + "u + uint(slot * uNumP) + i; }\n";
+    }
+
+    /**
+     * Submits the emitter programs to the compiler. forcesCode declares the SimParams block
+     * (with uEmit, uSlots and uLife), hash(), loadAttractionPoints(), attraction() and
+     * applyBounds().
+     */
+    public void buildPrograms(ProgramCompiler compiler, String forcesCode, int workgroupSize) {
+        deletePrograms();
+        mWorkgroupSize = workgroupSize;
+        String header = "#version 310 es\n" +
+            "layout (local_size_x = " + workgroupSize + ") in;\n" +
+            "precision highp float;\n";
+        String outputs =
+            "layout(std430, binding = 2) writeonly restrict buffer OutPos { vec2 outP[]; };\n" +
+            "layout(std430, binding = 3) writeonly restrict buffer OutVel { uint outV[]; };\n";
+        mSimulateJob = compiler.compileCompute(header +
+            "layout(std430, binding = 0) readonly restrict buffer InPos { vec2 inP[]; };\n" +
+            "layout(std430, binding = 1) readonly restrict buffer InVel { uint inV[]; };\n" +
+            outputs + forcesCode + getMetaCode() +
+            "void main() {\n" +
+            "  loadAttractionPoints();\n" +
+            "  barrier();\n" +
+            "  uint i = gl_GlobalInvocationID.x;\n" +
+            // The points command of the input slot holds its live count.
+            "  if (i >= meta[uint(uSlots.x) * " + SLOT_UINTS + "u]) return;\n" +
+            "  float life = uintBitsToFloat(meta[lifeIndex(uSlots.x, i)]) - uLife.x;\n" +
+            "  if (life <= 0.0) return;\n" +
+            "  vec2 p = inP[i], v = unpackHalf2x16(inV[i]);\n" +
+            "  v = (v + attraction(p, i)) * uDrag;\n" +
+            "  uint j = atomicAdd(meta[uint(uSlots.y) * " + SLOT_UINTS + "u + " + COUNTER_UINT + "u], 1u);\n" +
+            "  p += v;\n" +
+            "  applyBounds(p, v, j);\n" +
+            "  outP[j] = p; outV[j] = packHalf2x16(v);\n" +
+            "  meta[lifeIndex(uSlots.y, j)] = floatBitsToUint(life);\n" +
+            "}\n");
+        mEmitJob = compiler.compileCompute(header + outputs + forcesCode + getMetaCode() +
+            "void main() {\n" +
+            "  uint t = gl_GlobalInvocationID.x;\n" +
+            "  if (t >= uint(uEmit.x) || uNumT == 0) return;\n" +
+            "  uint j = atomicAdd(meta[uint(uSlots.y) * " + SLOT_UINTS + "u + " + COUNTER_UINT + "u], 1u);\n" +
+            "  if (j >= uint(uNumP)) return;\n" + // No free slot left.
+            "  uint k = t % uint(uNumT);\n" +
+            "  vec4 t2 = uT[k >> 1];\n" +
+            "  vec2 src = (k & 1u) == 0u ? t2.xy : t2.zw;\n" +
+            "  uint h = hash(t ^ uint(uEmit.y)), h2 = hash(h);\n" +
+            "  float a = float(h & 0xFFFFu) * 9.587e-5;\n" +
+            "  float speed = uLife.z * (0.25 + 0.75 * float(h >> 16) * 1.5258e-5);\n" +
+            "  vec2 v = vec2(cos(a), sin(a)) * speed;\n" +
+            "  outP[j] = src + v; outV[j] = packHalf2x16(v);\n" +
+            "  float life = uLife.y * (0.5 + float(h2 & 0xFFFFu) * 1.5258e-5);\n" +
+            "  meta[lifeIndex(uSlots.y, j)] = floatBitsToUint(life);\n" +
+            "}\n");
+        mFinalizeJob = compiler.compileCompute("#version 310 es\n" +
+            "layout (local_size_x = 1) in;\n" +
+            "precision highp float;\n" +
+            forcesCode + getMetaCode() +
+            "void main() {\n" +
+            "  uint o = uint(uSlots.y) * " + SLOT_UINTS + "u;\n" +
+            "  uint c = min(meta[o + " + COUNTER_UINT + "u], uint(uNumP));\n" +
+            "  for (uint k = 0u; k < 3u; k++) {\n" + // Points, lines (2 vertices), triangles (3 vertices).
+            "    meta[o + 4u * k] = c * (k + 1u); meta[o + 4u * k + 1u] = 1u;\n" +
+            "    meta[o + 4u * k + 2u] = 0u; meta[o + 4u * k + 3u] = 0u;\n" +
+            "  }\n" +
+            "  meta[o + " + DISPATCH_UINT + "u] = (c + " + (workgroupSize - 1) + "u) / " + workgroupSize + "u;\n" +
+            "  meta[o + " + (DISPATCH_UINT + 1) + "u] = 1u; meta[o + " + (DISPATCH_UINT + 2) + "u] = 1u;\n" +
+            // The counter of the next output slot (its commands are still valid for drawing).
+            "  meta[uint(uSlots.z) * " + SLOT_UINTS + "u + " + COUNTER_UINT + "u] = 0u;\n" +
+            "}\n");
+    }
+
+    /** Whether the emitter programs are built (polls the compiler, never blocks). */
+    public boolean isReady() {
+        if (mSimulateProgram == 0 && mSimulateJob != null && mSimulateJob.isReady()) mSimulateProgram = mSimulateJob.get();
+        if (mEmitProgram == 0 && mEmitJob != null && mEmitJob.isReady()) mEmitProgram = mEmitJob.get();
+        if (mFinalizeProgram == 0 && mFinalizeJob != null && mFinalizeJob.isReady()) mFinalizeProgram = mFinalizeJob.get();
+        return mSimulateProgram != 0 && mEmitProgram != 0 && mFinalizeProgram != 0;
+    }
+
+    public boolean hasPrograms() {
+        return mSimulateJob != null;
+    }
+
+    public int getWorkgroupSize() {
+        return mWorkgroupSize;
+    }
+
+    /**
+     * Allocates the meta buffer for numParticles particles in a ring of ringDepth slots, with no
+     * live particle. Returns false if it does not fit in a storage block or cannot be allocated.
+     */
+    public boolean allocate(int numParticles, int ringDepth, long maxBlockSize) {
+        release();
+        long bytes = getBytes(numParticles, ringDepth);
+        if (maxBlockSize > 0 && bytes > maxBlockSize) {
+            Log.w(TAG, "Too many particles for the emitters: " + numParticles);
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_UINTS * 4).order(ByteOrder.nativeOrder());
+        for (int slot = 0; slot < ringDepth; slot++) {
+            int base = slot * SLOT_UINTS * 4;
+            for (int k = 0; k < 3; k++) header.putInt(base + 16 * k + 4, 1); // instanceCount
+            header.putInt(base + (DISPATCH_UINT + 1) * 4, 1);
+            header.putInt(base + (DISPATCH_UINT + 2) * 4, 1);
+        }
+        while (GLES31.glGetError() != GLES31.GL_NO_ERROR) {} // Clear stale errors.
+        int[] buffer = new int[1];
+        GLES31.glGenBuffers(1, buffer, 0);
+        mMetaBuffer = buffer[0];
+        GlResources.track(GlResources.BUFFER, mMetaBuffer, TAG);
+        GlResources.setBytes(GlResources.BUFFER, mMetaBuffer, bytes);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mMetaBuffer);
+        GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, (int) bytes, null, GLES31.GL_DYNAMIC_DRAW);
+        GLES31.glBufferSubData(GLES31.GL_SHADER_STORAGE_BUFFER, 0, HEADER_UINTS * 4, header);
+        int error = GLES31.glGetError();
+        if (error != GLES31.GL_NO_ERROR) {
+            Log.w(TAG, "Emitter allocation failed (0x" + Integer.toHexString(error) + ")");
+            release();
+            return false;
+        }
+        mNumParticles = numParticles;
+        mRingDepth = ringDepth;
+        mEmitCarry = 0f;
+        mBurstClock = 0f;
+        return true;
+    }
+
+    private static long getBytes(int numParticles, int ringDepth) {
+        return (HEADER_UINTS + (long) numParticles * ringDepth) * 4;
+    }
+
+    public long getBytes() {
+        return mMetaBuffer != 0 ? getBytes(mNumParticles, mRingDepth) : 0;
+    }
+
+    public boolean isAllocated() {
+        return mMetaBuffer != 0;
+    }
+
+    /**
+     * Number of particles to emit this step, dt being the step length in 60 Hz steps. Steady
+     * emission keeps the buffers about full; bursts fill half of them at once, periodically.
+     */
+    public int getEmitCount(int source, float dt) {
+        if (source == SOURCE_BURSTS) {
+            mBurstClock -= dt;
+            if (mBurstClock > 0f) return 0;
+            mBurstClock += BURST_PERIOD;
+            return mNumParticles / 2;
+        }
+        mEmitCarry += mNumParticles * dt / MEAN_LIFETIME;
+        int count = (int) mEmitCarry;
+        mEmitCarry -= count;
+        return count;
+    }
+
+    /** A new seed for the emitted particles of a step. */
+    public int nextSeed() {
+        return mSeed += 0x9E3779B9;
+    }
+
+    public static float getMeanLifetime() {
+        return MEAN_LIFETIME;
+    }
+
+    public static float getEmitSpeed() {
+        return EMIT_SPEED;
+    }
+
+    /**
+     * Steps the live particles of inSlot into outSlot and emits emitCount particles. The
+     * SimParams block must be bound. Ends with the barriers needed to draw outSlot.
+     */
+    public void step(int inPos, int inVel, int outPos, int outVel, int inSlot, int emitCount) {
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, inPos);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, inVel);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 2, outPos);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 3, outVel);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, META_BINDING, mMetaBuffer);
+        GLES31.glBindBuffer(GLES31.GL_DISPATCH_INDIRECT_BUFFER, mMetaBuffer);
+
+        GLES31.glUseProgram(mSimulateProgram);
+        GLES31.glDispatchComputeIndirect((inSlot * SLOT_UINTS + DISPATCH_UINT) * 4);
+        // Survivors and emitted particles only share the atomic counter: no barrier in between.
+        if (emitCount > 0) {
+            GLES31.glUseProgram(mEmitProgram);
+            GLES31.glDispatchCompute((emitCount + mWorkgroupSize - 1) / mWorkgroupSize, 1, 1);
+        }
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+        GLES31.glUseProgram(mFinalizeProgram);
+        GLES31.glDispatchCompute(1, 1, 1);
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT | GLES31.GL_COMMAND_BARRIER_BIT);
+    }
+
+    public int getIndirectBuffer() {
+        return mMetaBuffer;
+    }
+
+    /** Offset in the indirect buffer of the draw command of the given slot and primitive. */
+    public int getDrawOffset(int slot, int primitive) {
+        return (slot * SLOT_UINTS + 4 * primitive) * 4;
+    }
+
+    /** Reads the live count of a slot back. Stalls the pipeline: only meant for statistics. */
+    public int readLiveCount(int slot) {
+        GLES31.glMemoryBarrier(GLES31.GL_BUFFER_UPDATE_BARRIER_BIT);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mMetaBuffer);
+        ByteBuffer count = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_SHADER_STORAGE_BUFFER,
+                getDrawOffset(slot, DRAW_POINTS), 4, GLES31.GL_MAP_READ_BIT);
+        if (count == null) return 0;
+        int live = count.order(ByteOrder.nativeOrder()).getInt(0);
+        GLES31.glUnmapBuffer(GLES31.GL_SHADER_STORAGE_BUFFER);
+        return live;
+    }
+
+    /** Deletes the meta buffer (the programs are kept). */
+    public void release() {
+        GlResources.delete(GlResources.BUFFER, mMetaBuffer);
+        mMetaBuffer = 0;
+        mNumParticles = 0;
+        mRingDepth = 0;
+    }
+
+    /** Deletes all the GL objects, programs included. */
+    public void destroy() {
+        release();
+        deletePrograms();
+    }
+
+    private void deletePrograms() {
+        for (ProgramCompiler.Program job : new ProgramCompiler.Program[] {mSimulateJob, mEmitJob, mFinalizeJob}) {
+            if (job != null) job.discard();
+        }
+        mSimulateJob = null; mEmitJob = null; mFinalizeJob = null;
+        mSimulateProgram = 0; mEmitProgram = 0; mFinalizeProgram = 0;
+    }
+
+    /** Forgets all the GL objects, e.g. after the context was lost. */
+    public void forget() {
+        mMetaBuffer = 0; mNumParticles = 0; mRingDepth = 0;
+        mSimulateJob = null; mEmitJob = null; mFinalizeJob = null;
+        mSimulateProgram = 0; mEmitProgram = 0; mFinalizeProgram = 0;
+    }
+}
@@ -5,17 +5,47 @@ import android.service.wallpaper.WallpaperService;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Service used by the live wallpaper.
  * The engine uses a modified ParticleSurfaceView to draw on the wallpaper.
  */
 public class ParticleFlowWallpaperService extends WallpaperService {
 
+    private final List<WallpaperEngine> mEngines = new ArrayList<>();
+
     @Override
     public Engine onCreateEngine() {
         return new WallpaperEngine();
     }
 
+    /**
+     * Forwards the trim level to every engine. They share one simulation, which responds on the
+     * GL thread of the next engine that draws.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        synchronized (mEngines) {
+            for (WallpaperEngine engine : mEngines) engine.mGLView.onTrimMemory(level);
+        }
+    }
+
+    /** Dumps the render metrics of each engine as JSON (adb shell dumpsys activity service ...). */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        synchronized (mEngines) {
+            for (WallpaperEngine engine : mEngines) {
+                writer.println(engine.mGLView.getMetrics().toJson());
+            }
+        }
+    }
+
     class WallpaperEngine extends Engine {
         private WPSurfaceView mGLView;
 
@@ -23,6 +53,9 @@ public class ParticleFlowWallpaperService extends WallpaperService {
         public void onCreate(SurfaceHolder holder) {
             super.onCreate(holder);
             mGLView = new WPSurfaceView(ParticleFlowWallpaperService.this);
+            synchronized (mEngines) {
+                mEngines.add(this);
+            }
         }
 
         @Override
@@ -38,7 +71,11 @@ public class ParticleFlowWallpaperService extends WallpaperService {
 
         @Override
         public void onDestroy() {
+            synchronized (mEngines) {
+                mEngines.remove(this);
+            }
             mGLView.onPause();
+            mGLView.release();
             super.onDestroy();
         }
 
@@ -58,6 +95,11 @@ public class ParticleFlowWallpaperService extends WallpaperService {
             public SurfaceHolder getHolder() {
                 return getSurfaceHolder();
             }
+
+            @Override
+            public boolean isWallpaper() {
+                return true;
+            }
         }
     }
 }
@@ -0,0 +1,1518 @@
+package com.nfaralli.particleflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * GPU particle simulation: the particle buffers, the compute program and the attraction points.
+ * A simulation is either owned by a single ParticlesRenderer, or shared by several renderers
+ * whose GL contexts are in the same share group (see SharedSimulation). In the latter case the
+ * simulation is stepped at most once per vsync, whichever renderer gets there first, and
+ * fences order the compute and draw work issued from the different contexts. The same fences
+ * order a private simulation stepped by a SimulationThread and drawn by its renderer.
+ * The GL methods must be called with a context of the right share group current, and are
+ * synchronized since each renderer has its own GL thread.
+ */
+public class ParticleSimulation {
+
+    private static final String TAG = "ParticleSimulation";
+
+    private final SharedPreferences mPrefs;
+    private final ActivityManager mActivityManager;
+    private final boolean mShared;
+    // Stepped by a SimulationThread: like a shared simulation, its slots are then written and
+    // drawn by different contexts of a share group.
+    private boolean mThreaded = false;
+    private BufferPlanner mBufferPlanner;
+
+    // GL objects are only valid for the context (share group) generation they were created in.
+    private int mGeneration = -1;
+    private ProgramCompiler.Program mComputeJob;
+    private int mComputeProgram = 0;
+    private int mProgramWorkgroupSize = 0;
+    private int mProgramPrecision = 0;
+
+    // Compute parameters: a std140 uniform block (see SimParams in the compute shader) that
+    // replaces the individual glUniform* calls and is uploaded once per dispatch.
+    static final int SIM_PARAMS_SIZE = 240;
+    static final int SIM_PARAMS_RES = 128, SIM_PARAMS_ATT = 136, SIM_PARAMS_DRAG = 140;
+    static final int SIM_PARAMS_NUMP = 144, SIM_PARAMS_NUMT = 148, SIM_PARAMS_RESET = 152;
+    private static final int SIM_PARAMS_BOUNDS = 156;
+    private static final int SIM_PARAMS_GRID = 160, SIM_PARAMS_INTER = 176;
+    private static final int SIM_PARAMS_EMIT = 192, SIM_PARAMS_SLOTS = 208, SIM_PARAMS_LIFE = 224;
+    private final ByteBuffer mSimParams = ByteBuffer.allocateDirect(SIM_PARAMS_SIZE).order(ByteOrder.nativeOrder());
+    private int mSimParamsUBO = 0;
+
+    // Particle-particle interaction: the particles are sorted in a uniform grid every step and
+    // each one only looks at (at most MAX_NEIGHBOR_CANDIDATES) particles of the 3x3 cells around it.
+    // The grid and query programs are only built once the interaction is enabled.
+    public static final int INTERACTION_OFF = 0;
+    public static final int INTERACTION_SEPARATION = 1;
+    public static final int INTERACTION_FLOCKING = 2;
+    private static final int MAX_NEIGHBOR_CANDIDATES = 32;
+    private static final float INTERACTION_RADIUS = 8f;
+    private static final float SEPARATION = 0.1f, ALIGNMENT = 0.05f, COHESION = 0.002f;
+    private static final int GPU_TIMER_GRID_BUILD = 0, GPU_TIMER_GRID_QUERY = 1;
+    private int mInteraction = INTERACTION_OFF;
+    private boolean mInteractionFailed = false;
+    private final NeighborGrid mGrid = new NeighborGrid();
+    private ProgramCompiler.Program mQueryJob;
+    private int mQueryProgram = 0;
+    private long mMaxBlockSize = 0;
+    private GpuTimer mGpuTimer; // Private simulation only: the queries belong to one context.
+
+    // What happens to the particles that leave the screen (see BOUNDS_CODE). A uniform of the
+    // SimParams block, so changing it needs neither new programs nor a reset.
+    public static final int BOUNDARY_NONE = 0; // They fly on (and may never come back).
+    public static final int BOUNDARY_WRAP = 1;
+    public static final int BOUNDARY_BOUNCE = 2;
+    public static final int BOUNDARY_RESPAWN = 3;
+    private int mBoundaryMode = BOUNDARY_NONE;
+
+    // What happens to the particles and attraction points when the size changes (rotation,
+    // split screen, foldable...). Scale stretches them to the new size, letterbox fits the old
+    // space in the new one (same scale on both axes, centered). Both remap the buffers in place
+    // (see remap) instead of resetting them.
+    public static final int RESIZE_RESET = 0;
+    public static final int RESIZE_SCALE = 1;
+    public static final int RESIZE_LETTERBOX = 2;
+    private static final int REMAP_WORKGROUP_SIZE = 64;
+    private int mResizePolicy = RESIZE_LETTERBOX;
+    private boolean mRemapPending = false;
+    private int mRemapFromWidth, mRemapFromHeight;
+    private ProgramCompiler.Program mRemapJob;
+    private int mRemapProgram = 0;
+    private int uRemapTransform, uRemapCount;
+
+    // Precision tiers of the step programs (see getAttractionCode). Auto uses the fastest tier
+    // that stays within tolerance of a CPU reference on this device (see PrecisionCalibrator).
+    public static final int PRECISION_AUTO = 0;
+    public static final int PRECISION_HIGH = 1;
+    public static final int PRECISION_MIXED = 2;
+    public static final int PRECISION_MEDIUM = 3;
+    private int mPrecisionTier = PRECISION_AUTO; // As configured.
+    private int mPrecision = PRECISION_HIGH; // As resolved for this device.
+    private final SharedPreferences mCalibrationPrefs;
+    private PrecisionCalibrator mCalibrator;
+
+    // Emitters (see ParticleEmitter): NumParticles is then the capacity, not the population.
+    private int mSource = ParticleEmitter.SOURCE_FIXED;
+    private boolean mEmittersFailed = false;
+    private final ParticleEmitter mEmitter = new ParticleEmitter();
+
+    // Off-screen culling (see ParticleCuller), for the plain and interacting steps.
+    private boolean mCull = false;
+    private boolean mCullingFailed = false;
+    private final ParticleCuller mCuller = new ParticleCuller();
+    private ProgramCompiler.Program mCullJob;
+    private int mCullProgram = 0;
+    private int mCullWorkgroupSize = 0;
+    private int mCullPrecision = 0;
+
+    // CPU simulation (see ParticleStepWorkers): the plain step runs on worker threads and is
+    // streamed into the ring slots (see StreamingUpload). No emitters, culling or interaction.
+    private boolean mCpuSimulation = false;
+    private ParticleStepWorkers mWorkers;
+    private final StreamingUpload mUpload = new StreamingUpload();
+    private final float[] mCpuTargets = new float[32];
+    private boolean mQueryCulls = false;
+    private int mQueryPrecision = 0;
+
+    private int mWidth = 1;
+    private int mHeight = 1;
+    private int mPartCount;
+    private int mNumTouch;
+    private int mWorkgroupSize = 256;
+    // Requested values (the buffer plan may lower mPartCount and mRingDepth).
+    private int mRequestedPartCount;
+    // Fraction of the requested particles allowed by the quality ladder (see QualityLadder).
+    private float mParticleFraction = 1f;
+    private int mRequestedRingDepth;
+    // Forces only change the uniform block: they can be tuned live, without a reset.
+    private volatile int mF01Attraction = 100;
+    private volatile float mF01Drag = 0.96f;
+
+    // Ring of particle states. Each slot has a position (vec2 FP32) and a velocity (uint FP16) buffer.
+    // With a single slot the simulation is updated in place; otherwise each step reads the newest
+    // slot (mHead) and writes the next one, and the fences tell when a slot's step has completed.
+    public static final int MAX_RING_DEPTH = 3;
+    private int[] mPosSSBOs = new int[0];
+    private int[] mVelSSBOs = new int[0];
+    private long[] mFences = new long[0];
+    private long[] mReadFences = new long[0]; // Shared or CPU simulation only: last draw of each slot.
+    private int mRingDepth = 1;
+    private int mHead = 0;
+    private int mPrevHead = 0;
+    private long mLastStepNs = -1;
+
+    private float[] mTouchPos = new float[32]; // 16 vec2
+    private float[] mActiveTouchPos = new float[32];
+    private int mActiveTouchCount = 0;
+    private final Object mTouchLock = new Object();
+
+    private boolean mInitialized = false;
+
+    // Memory pressure (see onTrimMemory): requested on any thread, applied on the GL thread
+    // right away (see ParticlesSurfaceView.onTrimMemory) or before the next frame. Moderate
+    // pressure collapses the ring to its newest slot, critical pressure saves the particles to
+    // mSnapshotFile and frees every buffer. Both are undone lazily: the ring by restoreMemory,
+    // the buffers by the next initBuffers.
+    public static final int TRIM_NONE = 0;
+    public static final int TRIM_MODERATE = 1;
+    public static final int TRIM_CRITICAL = 2;
+    // Guards the pending requests, which are set on the UI thread and taken on the GL thread.
+    private final Object mTrimLock = new Object();
+    private int mPendingTrim = TRIM_NONE;
+    private boolean mRestorePending = false;
+    private int mCollapsedRingDepth = 0; // Ring depth before the collapse, 0 if not collapsed.
+    private final File mSnapshotFile;
+    private boolean mHasSnapshot = false;
+
+    public ParticleSimulation(Context context, boolean shared) {
+        mPrefs = context.getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+        mCalibrationPrefs = context.getSharedPreferences(PrecisionCalibrator.PREFS_NAME, Context.MODE_PRIVATE);
+        mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mShared = shared;
+        mSnapshotFile = new File(context.getCacheDir(), shared ? "shared_particles.snapshot" : "particles.snapshot");
+        loadConfig();
+        clearTouches();
+    }
+
+    /** Declaration of the SimParams uniform block, shared by all the compute programs. */
+    private static final String SIM_PARAMS_BLOCK =
+        "layout(std140, binding = 0) uniform SimParams {\n" +
+        "  vec4 uT[8];\n" + // 16 attraction points, two per vec4
+        "  vec2 uRes;\n" +
+        "  float uAtt, uDrag;\n" +
+        "  int uNumP, uNumT, uReset, uBounds;\n" +
+        "  vec4 uGrid;\n" + // cell size, 1 / cell size, grid width, grid height
+        "  vec4 uInter;\n" + // separation, alignment, cohesion, radius
+        "  ivec4 uEmit;\n" + // emitted particles, seed
+        "  ivec4 uSlots;\n" + // input, output and next output slots
+        "  vec4 uLife;\n" + // step length, mean lifetime, emission speed
+        "};\n";
+
+    /** Maps the positions by p * scale + offset (uRemap) and the velocities by the scale. */
+    private static String getRemapShaderCode() {
+        return "#version 310 es\n" +
+            "layout (local_size_x = " + REMAP_WORKGROUP_SIZE + ") in;\n" +
+            "precision highp float;\n" +
+            "layout(std430, binding = 0) restrict buffer Pos { vec2 pB[]; };\n" +
+            "layout(std430, binding = 1) restrict buffer Vel { uint vB[]; };\n" +
+            "uniform vec4 uRemap;\n" +
+            "uniform int uCount;\n" +
+            "void main() {\n" +
+            "  uint i = gl_GlobalInvocationID.x;\n" +
+            "  if (i >= uint(uCount)) return;\n" +
+            "  pB[i] = pB[i] * uRemap.xy + uRemap.zw;\n" +
+            "  vB[i] = packHalf2x16(unpackHalf2x16(vB[i]) * uRemap.xy);\n" +
+            "}\n";
+    }
+
+    /**
+     * GLSL of the screen edges, after hash(). spawnPosition is the distribution of the reset (a
+     * disc in the middle of the screen) for a hashed index. applyBounds moves a particle of
+     * index idx that just left the screen according to uBounds: toroidal wrap, reflection on
+     * the edges (bounce), or a new position from the reset distribution, at rest (respawn). The
+     * respawn hash also takes the escape position, so that a slot does not always come back at
+     * the same place.
+     */
+    private static final String BOUNDS_CODE =
+        "vec2 spawnPosition(uint h) {\n" +
+        "  vec2 r = vec2(float(h & 0xFFFFu), float(h >> 16)) * 1.5258e-5;\n" +
+        "  float th = r.y * 6.2831853;\n" +
+        "  return uRes * 0.5 + vec2(cos(th), sin(th)) * (sqrt(r.x) * min(uRes.x, uRes.y) * 0.45);\n" +
+        "}\n" +
+        "void applyBounds(inout vec2 p, inout vec2 v, uint idx) {\n" +
+        "  if (uBounds == " + BOUNDARY_WRAP + ") {\n" +
+        "    p -= uRes * floor(p / uRes);\n" +
+        "  } else if (uBounds == " + BOUNDARY_BOUNCE + ") {\n" +
+        "    vec2 low = vec2(lessThan(p, vec2(0.0))), high = vec2(greaterThan(p, uRes));\n" +
+        "    p = mix(mix(p, -p, low), 2.0 * uRes - p, high);\n" +
+        "    v = mix(v, -v, max(low, high));\n" +
+        "    p = clamp(p, vec2(0.0), uRes);\n" + // In case it moved by more than a screen.
+        "  } else if (uBounds == " + BOUNDARY_RESPAWN + "\n" +
+        "      && (any(lessThan(p, vec2(0.0))) || any(greaterThan(p, uRes)))) {\n" +
+        "    p = spawnPosition(hash(idx ^ floatBitsToUint(p.x + p.y)));\n" +
+        "    v = vec2(0.0);\n" +
+        "  }\n" +
+        "}\n";
+
+    /**
+     * GLSL of the attraction points for one particle at a time (same forces as the step shader),
+     * used by the emitter programs. Every invocation must call loadAttractionPoints then
+     * barrier() (barrier() is only allowed in main).
+     */
+    private static final String FORCES_CODE = SIM_PARAMS_BLOCK +
+        "shared vec2 sharedT[16];\n" +
+        "uint hash(uint x) { x = ((x >> 16) ^ x) * 0x45d9f3b1u; x = ((x >> 16) ^ x) * 0x45d9f3b1u; x = (x >> 16) ^ x; return x; }\n" +
+        "void loadAttractionPoints() {\n" +
+        "  uint localId = gl_LocalInvocationIndex;\n" +
+        "  if (localId < 16u) { vec4 t2 = uT[localId >> 1]; sharedT[localId] = ((localId & 1u) == 0u) ? t2.xy : t2.zw; }\n" +
+        "}\n" +
+        "vec2 attraction(vec2 p, uint i) {\n" +
+        "  vec2 acc = vec2(0.0);\n" +
+        "  for (int j = 0; j < uNumT; j++) {\n" +
+        "    vec2 d = sharedT[j] - p;\n" +
+        "    float distSq = dot(d, d);\n" +
+        "    float rnd = float(hash(i + uint(j)) & 0xFFFFu) * 9.587e-5;\n" +
+        "    acc += uAtt * (distSq <= 0.1 ? vec2(cos(rnd), sin(rnd)) : d / max(distSq, 1.0));\n" +
+        "  }\n" +
+        "  return acc;\n" +
+        "}\n" +
+        BOUNDS_CODE;
+
+    /**
+     * Compute shader of a step. The interacting variant reads the particles sorted by the
+     * neighbor grid (see NeighborGrid) instead of the input state, adds the forces of the
+     * neighbors, and writes the particles in their sorted order. The culling variant also
+     * appends the visible particles to the visible list of the output slot (see ParticleCuller).
+     * Only the plain variant can reset the particles. precision is one of PRECISION_HIGH,
+     * PRECISION_MIXED and PRECISION_MEDIUM (see getAttractionCode); positions are always highp.
+     */
+    static String getComputeShaderCode(int workgroupSize, boolean interaction, boolean cull, int precision) {
+        String velocity = precision == PRECISION_MEDIUM ? "mediump vec2" : "vec2";
+        String code = "#version 310 es\n" +
+        "layout (local_size_x = " + workgroupSize + ") in;\n" +
+        "precision highp float;\n";
+        if (interaction) {
+            code += NeighborGrid.getSortedParticleCode(true) +
+            "layout(std430, binding = " + NeighborGrid.START_BINDING + ") readonly restrict buffer Start { uint cellStart[]; };\n";
+        } else {
+            code += "layout(std430, binding = 0) readonly restrict buffer InPos { vec4 inP[]; };\n" +
+            "layout(std430, binding = 1) readonly restrict buffer InVel { uvec2 inV[]; };\n";
+        }
+        code += "layout(std430, binding = 2) writeonly restrict buffer OutPos { vec4 outP[]; };\n" +
+        "layout(std430, binding = 3) writeonly restrict buffer OutVel { uvec2 outV[]; };\n" +
+        SIM_PARAMS_BLOCK +
+        "shared vec2 sharedT[16];\n" +
+        "uint hash(uint x) { x = ((x >> 16) ^ x) * 0x45d9f3b1u; x = ((x >> 16) ^ x) * 0x45d9f3b1u; x = (x >> 16) ^ x; return x; }\n" +
+        BOUNDS_CODE;
+        if (interaction) {
+            // Own cell first, so that the candidate cap drops the farthest cells.
+            code += NeighborGrid.getCellCode() +
+            "const ivec2 OFFSETS[9] = ivec2[9](ivec2(0, 0), ivec2(-1, 0), ivec2(1, 0), ivec2(0, -1), ivec2(0, 1),\n" +
+            "    ivec2(-1, -1), ivec2(1, -1), ivec2(-1, 1), ivec2(1, 1));\n" +
+            "vec2 interact(vec2 p, vec2 v) {\n" +
+            "  ivec2 c = cellOf(p);\n" +
+            "  vec2 sep = vec2(0.0), velSum = vec2(0.0), posSum = vec2(0.0);\n" +
+            "  float n = 0.0, r = uInter.w;\n" +
+            "  uint seen = 0u;\n" +
+            "  for (int k = 0; k < 9 && seen < " + MAX_NEIGHBOR_CANDIDATES + "u; k++) {\n" +
+            "    ivec2 cc = c + OFFSETS[k];\n" +
+            "    if (any(lessThan(cc, ivec2(0))) || any(greaterThanEqual(cc, ivec2(uGrid.zw)))) continue;\n" +
+            "    uint ci = cellIndex(cc);\n" +
+            "    uint b = cellStart[ci], e = min(cellStart[ci + 1u], b + " + MAX_NEIGHBOR_CANDIDATES + "u - seen);\n" +
+            "    seen += e - b;\n" +
+            "    for (uint j = b; j < e; j++) {\n" +
+            "      vec2 q = sP[j].p, d = p - q;\n" +
+            "      float dd = dot(d, d);\n" +
+            "      if (dd >= r * r || dd < 1e-6) continue;\n" + // Out of range, or the particle itself.
+            "      float dist = sqrt(dd);\n" +
+            "      sep += d * ((r - dist) / (r * dist));\n" +
+            "      velSum += unpackHalf2x16(sP[j].v); posSum += q; n += 1.0;\n" +
+            "    }\n" +
+            "  }\n" +
+            "  vec2 f = uInter.x * sep;\n" +
+            "  if (n > 0.0) f += uInter.y * (velSum / n - v) + uInter.z * (posSum / n - p);\n" +
+            "  return f;\n" +
+            "}\n";
+        }
+        if (cull) code += ParticleCuller.getDeclarationCode();
+        code += "void main() {\n" +
+        "  uint i = gl_GlobalInvocationID.x;\n";
+        if (cull) {
+            // Every invocation must reach the barriers of the visible list append.
+            code += "  bool active = i < uint(uNumP >> 1);\n" +
+            "  if (gl_LocalInvocationIndex == 0u) sVisibleCount = 0u;\n";
+        } else {
+            code += "  if (i >= uint(uNumP >> 1)) return;\n";
+        }
+        if (!interaction && !cull) {
+            code += "  if (uReset != 0) {\n" +
+            "    uint idx = (i << 1);\n" +
+            "    outP[i] = vec4(spawnPosition(hash(idx)), spawnPosition(hash(idx + 1337u)));\n" +
+            "    outV[i] = uvec2(packHalf2x16(vec2(0.0)), packHalf2x16(vec2(0.0)));\n" +
+            "    return;\n" +
+            "  }\n";
+        }
+        code += "  uint localId = gl_LocalInvocationIndex;\n" +
+        "  if (localId < 16u) { vec4 t2 = uT[localId >> 1]; sharedT[localId] = ((localId & 1u) == 0u) ? t2.xy : t2.zw; }\n" +
+        "  barrier();\n";
+        if (cull) {
+            code += "  bool vis1 = false, vis2 = false;\n" +
+            "  uint visOffset = 0u;\n" +
+            "  if (active) {\n";
+        }
+        if (interaction) {
+            code += "  SortedParticle a = sP[i << 1], b = sP[(i << 1) + 1u];\n" +
+            "  vec4 p = vec4(a.p, b.p);\n" +
+            "  " + velocity + " v1 = unpackHalf2x16(a.v), v2 = unpackHalf2x16(b.v);\n";
+        } else {
+            code += "  vec4 p = inP[i];\n" +
+            "  " + velocity + " v1 = unpackHalf2x16(inV[i].x), v2 = unpackHalf2x16(inV[i].y);\n";
+        }
+        code += getAttractionCode(precision);
+        if (interaction) {
+            code += "  acc1 += interact(p.xy, v1); acc2 += interact(p.zw, v2);\n";
+        }
+        code += "  v1 = (v1 + acc1) * uDrag; v2 = (v2 + acc2) * uDrag;\n" +
+        "  p += vec4(v1, v2);\n" +
+        "  if (uBounds != " + BOUNDARY_NONE + ") {\n" +
+        "    vec2 p1 = p.xy, p2 = p.zw, w1 = v1, w2 = v2;\n" +
+        "    applyBounds(p1, w1, i << 1); applyBounds(p2, w2, (i << 1) + 1u);\n" +
+        "    p = vec4(p1, p2); v1 = w1; v2 = w2;\n" +
+        "  }\n" +
+        "  outP[i] = p; outV[i] = uvec2(packHalf2x16(v1), packHalf2x16(v2));\n";
+        if (cull) {
+            code += "  vis1 = isVisible(p.xy, v1); vis2 = isVisible(p.zw, v2);\n" +
+            "  visOffset = atomicAdd(sVisibleCount, uint(vis1) + uint(vis2));\n" +
+            "  }\n" +
+            ParticleCuller.getAppendCode();
+        }
+        code += "}\n";
+        return code;
+    }
+
+    /**
+     * GLSL of the attraction loop of the step shader, for the particles p.xy and p.zw (highp) of
+     * invocation i: declares and sums their accelerations acc1 and acc2.
+     * PRECISION_HIGH does everything in highp. PRECISION_MIXED computes the noise and the
+     * per-attractor math in mediump: the offsets are scaled by 1/64 so that their squared length
+     * stays in FP16 range, the thresholds are scaled to match. PRECISION_MEDIUM also sums the
+     * accelerations in mediump (the velocities are declared mediump by the caller).
+     */
+    private static String getAttractionCode(int precision) {
+        if (precision == PRECISION_HIGH) {
+            return "  vec2 acc1 = vec2(0.0), acc2 = vec2(0.0);\n" +
+            "  for (int j = 0; j < uNumT; j++) {\n" +
+            "    vec2 t = sharedT[j];\n" +
+            "    vec4 d = t.xyxy - p;\n" +
+            "    vec2 distSq = vec2(dot(d.xy, d.xy), dot(d.zw, d.zw));\n" +
+            "    vec2 near = step(distSq, vec2(0.1));\n" +
+            "    uint h = hash((i << 1) + uint(j));\n" +
+            "    vec2 rnd = vec2(float(h & 0xFFFFu), float(h >> 16)) * 9.587e-5; // normalized to ~6.28\n" +
+            "    vec4 noise = vec4(cos(rnd.x), sin(rnd.x), cos(rnd.y), sin(rnd.y));\n" +
+            "    vec2 invDist = 1.0 / max(distSq, vec2(1.0));\n" +
+            "    acc1 += uAtt * mix(d.xy * invDist.x, noise.xy, near.x);\n" +
+            "    acc2 += uAtt * mix(d.zw * invDist.y, noise.zw, near.y);\n" +
+            "  }\n";
+        }
+        String acc = precision == PRECISION_MEDIUM ? "mediump vec2" : "vec2";
+        return "  " + acc + " acc1 = vec2(0.0), acc2 = vec2(0.0);\n" +
+        "  mediump float att = uAtt;\n" +
+        "  for (int j = 0; j < uNumT; j++) {\n" +
+        "    vec2 t = sharedT[j];\n" +
+        "    mediump vec4 d = (t.xyxy - p) * 0.015625;\n" + // Subtracted in highp, then scaled by 1/64.
+        "    mediump vec2 distSq = vec2(dot(d.xy, d.xy), dot(d.zw, d.zw));\n" +
+        "    mediump vec2 near = step(distSq, vec2(2.44e-5));\n" + // 0.1 / 64^2
+        "    uint h = hash((i << 1) + uint(j));\n" +
+        "    mediump vec2 rnd = vec2(float(h & 0xFFFFu), float(h >> 16)) * 9.587e-5;\n" +
+        "    mediump vec4 noise = vec4(cos(rnd.x), sin(rnd.x), cos(rnd.y), sin(rnd.y));\n" +
+        "    mediump vec2 invDist = 1.0 / max(distSq, vec2(2.44140625e-4));\n" + // 1 / 64^2
+        "    acc1 += att * mix(d.xy * (invDist.x * 0.015625), noise.xy, near.x);\n" +
+        "    acc2 += att * mix(d.zw * (invDist.y * 0.015625), noise.zw, near.y);\n" +
+        "  }\n";
+    }
+
+    private void loadConfig() {
+        mPartCount = mPrefs.getInt("NumParticles", 1000000);
+        if (mPartCount % 2 != 0) mPartCount++;
+        mNumTouch = mPrefs.getInt("NumAttPoints", 5);
+        boolean useDoubleBuffer = mPrefs.getBoolean("use_double_buffer", false);
+        mRingDepth = useDoubleBuffer
+                ? Math.max(2, Math.min(MAX_RING_DEPTH, mPrefs.getInt("buffer_ring_depth", MAX_RING_DEPTH))) : 1;
+        mSource = mPrefs.getInt("particle_source", ParticleEmitter.SOURCE_FIXED);
+        mCull = mPrefs.getBoolean("cull_offscreen", false);
+        mCpuSimulation = mPrefs.getBoolean("cpu_simulation", false);
+        // The CPU simulation already steps on its own worker threads.
+        mThreaded = !mShared && !mCpuSimulation && mPrefs.getBoolean("simulation_thread", false);
+        // Other contexts may draw a slot while it is updated in place, emitters move the
+        // particles at each step, and the CPU simulation writes a slot while the GPU draws
+        // another: all need a ring.
+        if (isMultiContext() || mSource != ParticleEmitter.SOURCE_FIXED || mCpuSimulation) mRingDepth = Math.max(2, mRingDepth);
+        mWorkgroupSize = mPrefs.getInt("WorkgroupSize", 256);
+        mInteraction = mPrefs.getInt("interaction_mode", INTERACTION_OFF);
+        mBoundaryMode = mPrefs.getInt("boundary_mode", BOUNDARY_NONE);
+        mResizePolicy = mPrefs.getInt("resize_policy", RESIZE_LETTERBOX);
+        mPrecisionTier = mPrefs.getInt("precision_tier", PRECISION_AUTO);
+        mRequestedPartCount = mPartCount;
+        mRequestedRingDepth = mRingDepth;
+        mPartCount = getBudgetedPartCount();
+        loadForces();
+    }
+
+    private void clearTouches() {
+        synchronized (mTouchLock) {
+            for (int i = 0; i < 32; i++) mTouchPos[i] = -1.0f;
+            updateActiveTouchList();
+        }
+    }
+
+    private void loadForces() {
+        setForces(mPrefs.getInt("F01Attraction", 100), mPrefs.getInt("F01Drag", 4));
+    }
+
+    /**
+     * Reloads the configuration. The particles are only reset if a setting that needs new
+     * buffers or a new program changed; the forces are simply used by the next step.
+     */
+    public synchronized void onPrefsChanged() {
+        PerfTrace.begin("loadConfig");
+        int partCount = mRequestedPartCount, ringDepth = mRequestedRingDepth;
+        int numTouch = mNumTouch, workgroupSize = mWorkgroupSize, source = mSource, precisionTier = mPrecisionTier;
+        boolean cull = mCull, cpuSimulation = mCpuSimulation, threaded = mThreaded;
+        int planPartCount = mPartCount, planRingDepth = mRingDepth;
+        loadConfig();
+        // The interaction mode is applied by the next step, and tried again if it failed.
+        mInteractionFailed = false;
+        if (mRequestedPartCount != partCount || mRequestedRingDepth != ringDepth
+                || mNumTouch != numTouch || mWorkgroupSize != workgroupSize || mSource != source
+                || mCull != cull || mPrecisionTier != precisionTier || mCpuSimulation != cpuSimulation
+                || mThreaded != threaded) {
+            mEmittersFailed = false;
+            mCullingFailed = false;
+            clearTouches();
+            mInitialized = false;
+        } else {
+            // Keep the current buffers (and any step down of their plan) and attraction points.
+            mPartCount = planPartCount; mRingDepth = planRingDepth;
+        }
+        PerfTrace.end();
+    }
+
+    /**
+     * Sets the fraction of the configured particles to simulate (see QualityLadder). The
+     * particles are reset with the new count if it changed.
+     */
+    public synchronized void setParticleFraction(float fraction) {
+        if (fraction == mParticleFraction) return;
+        mParticleFraction = fraction;
+        mPartCount = getBudgetedPartCount();
+        mRingDepth = mRequestedRingDepth;
+        mInitialized = false;
+    }
+
+    private int getBudgetedPartCount() {
+        int count = Math.max(2, Math.round(mRequestedPartCount * mParticleFraction));
+        return count + (count & 1);
+    }
+
+    /** Resets the particles and the attraction points before the next step. */
+    public synchronized void reset() {
+        clearTouches();
+        mInitialized = false;
+    }
+
+    /** Sets the attraction coefficient and the drag (in percent of the speed lost per step). */
+    public void setForces(int attraction, int dragPercent) {
+        mF01Attraction = attraction;
+        mF01Drag = 1.0f - dragPercent / 100f;
+    }
+
+    /**
+     * Creates the GL objects of the simulation, unless they already exist for the given context
+     * generation. A new generation means the previous GL objects are gone with their context.
+     * The compute program is built by the given compiler; the simulation cannot be initialized
+     * before it is ready.
+     */
+    public synchronized void onSurfaceCreated(int generation, RenderMetrics metrics, ProgramCompiler compiler) {
+        if (generation == mGeneration) return;
+        // Forget the handles of the previous context, their objects are already gone.
+        mPosSSBOs = new int[0]; mVelSSBOs = new int[0]; mFences = new long[0]; mReadFences = new long[0];
+        mGrid.forget();
+        mQueryJob = null; mQueryProgram = 0;
+        mEmitter.forget();
+        mCuller.forget();
+        mCullJob = null; mCullProgram = 0;
+        mRemapJob = null; mRemapProgram = 0;
+        if (mCalibrator != null) mCalibrator.forget();
+        // Nothing left to trim; a snapshot is still restored by initBuffers.
+        synchronized (mTrimLock) {
+            mPendingTrim = TRIM_NONE;
+        }
+        uncollapseRingDepth();
+        mInitialized = false;
+        mGeneration = generation;
+        buildComputeProgram(metrics, compiler);
+        // Built ahead, so that the first rotation costs a dispatch and no compile.
+        if (mResizePolicy != RESIZE_RESET) mRemapJob = compiler.compileCompute(getRemapShaderCode());
+        mGpuTimer = mShared ? null : new GpuTimer("grid_build_gpu_ms", "grid_query_gpu_ms");
+        int[] ubo = new int[1]; GLES31.glGenBuffers(1, ubo, 0); mSimParamsUBO = ubo[0];
+        GLES31.glBindBuffer(GLES31.GL_UNIFORM_BUFFER, mSimParamsUBO);
+        GLES31.glBufferData(GLES31.GL_UNIFORM_BUFFER, SIM_PARAMS_SIZE, null, GLES31.GL_DYNAMIC_DRAW);
+        GlResources.track(GlResources.BUFFER, mSimParamsUBO, TAG);
+        GlResources.setBytes(GlResources.BUFFER, mSimParamsUBO, SIM_PARAMS_SIZE);
+
+        long[] maxBlockSize = new long[1];
+        GLES31.glGetInteger64v(GLES31.GL_MAX_SHADER_STORAGE_BLOCK_SIZE, maxBlockSize, 0);
+        mBufferPlanner = new BufferPlanner(maxBlockSize[0]);
+        mMaxBlockSize = maxBlockSize[0];
+    }
+
+    /**
+     * Deletes all the GL objects of the simulation, e.g. before its context goes away. The next
+     * onSurfaceCreated creates them again, whatever its generation.
+     */
+    public synchronized void destroy() {
+        if (mGeneration == -1) return;
+        deleteBuffers();
+        mGrid.destroy();
+        mEmitter.destroy();
+        mCuller.destroy();
+        if (mCalibrator != null) mCalibrator.deletePrograms();
+        for (ProgramCompiler.Program job : new ProgramCompiler.Program[] {mComputeJob, mCullJob, mQueryJob, mRemapJob}) {
+            if (job != null) job.discard();
+        }
+        mComputeJob = null; mCullJob = null; mQueryJob = null; mRemapJob = null;
+        GlResources.delete(GlResources.PROGRAM, mComputeProgram);
+        GlResources.delete(GlResources.PROGRAM, mCullProgram);
+        GlResources.delete(GlResources.PROGRAM, mQueryProgram);
+        GlResources.delete(GlResources.PROGRAM, mRemapProgram);
+        mComputeProgram = 0; mCullProgram = 0; mQueryProgram = 0; mRemapProgram = 0;
+        GlResources.delete(GlResources.BUFFER, mSimParamsUBO);
+        mSimParamsUBO = 0;
+        if (mGpuTimer != null) mGpuTimer.release();
+        mGpuTimer = null;
+        uncollapseRingDepth();
+        mInitialized = false;
+        mGeneration = -1;
+    }
+
+    private void buildComputeProgram(RenderMetrics metrics, ProgramCompiler compiler) {
+        PerfTrace.begin("createComputeProgram");
+        metrics.increment(RenderMetrics.PROGRAM_REBUILDS);
+        mComputeProgram = 0;
+        mComputeJob = compiler.compileCompute(getComputeShaderCode(mWorkgroupSize, false, false, mPrecision));
+        mProgramWorkgroupSize = mWorkgroupSize;
+        mProgramPrecision = mPrecision;
+        PerfTrace.end();
+    }
+
+    /** Whether the compute program is built (polls the compiler, never blocks). */
+    private boolean isProgramReady() {
+        if (mComputeProgram == 0 && mComputeJob != null && mComputeJob.isReady()) {
+            mComputeProgram = mComputeJob.get();
+            mComputeJob = null;
+        }
+        return mComputeProgram != 0;
+    }
+
+    /**
+     * Resolves the precision tier of the step programs. Auto uses the tier calibrated for this
+     * GPU and workgroup size, and runs the calibration (see PrecisionCalibrator) the first time:
+     * returns false until it is done.
+     */
+    private boolean preparePrecision(RenderMetrics metrics, ProgramCompiler compiler) {
+        if (mPrecisionTier != PRECISION_AUTO) {
+            mPrecision = mPrecisionTier;
+            return true;
+        }
+        if (mCalibrator == null) mCalibrator = new PrecisionCalibrator(mCalibrationPrefs);
+        int tier = mCalibrator.calibrate(mWorkgroupSize, metrics, compiler);
+        if (tier == PRECISION_AUTO) return false;
+        mPrecision = tier;
+        metrics.set("precision_tier", tier);
+        return true;
+    }
+
+    /**
+     * Whether initBuffers can go on with the configured particle source: builds the emitter
+     * programs (in the background) on first use. Disables the emitters, until the next config
+     * change, if the device cannot run them.
+     */
+    private boolean prepareEmitters(RenderMetrics metrics, ProgramCompiler compiler) {
+        if (mSource == ParticleEmitter.SOURCE_FIXED || mEmittersFailed) return true;
+        if (!ParticleEmitter.isSupported()) {
+            disableEmitters(metrics, "not enough compute storage blocks");
+            return true;
+        }
+        if (!mEmitter.hasPrograms() || mEmitter.getWorkgroupSize() != mWorkgroupSize) {
+            PerfTrace.begin("createEmitterPrograms");
+            metrics.increment(RenderMetrics.PROGRAM_REBUILDS);
+            mEmitter.buildPrograms(compiler, FORCES_CODE, mWorkgroupSize);
+            PerfTrace.end();
+        }
+        return mEmitter.isReady();
+    }
+
+    private void disableEmitters(RenderMetrics metrics, String reason) {
+        Log.w(TAG, "Emitters disabled: " + reason);
+        mEmittersFailed = true;
+        mEmitter.release();
+        metrics.increment("emitters_disabled");
+    }
+
+    /**
+     * Whether initBuffers can go on with culling, if enabled: builds the culling programs (in
+     * the background) on first use. Emitters already pack their particles: no culling with them.
+     */
+    private boolean prepareCulling(RenderMetrics metrics, ProgramCompiler compiler) {
+        if (!mCull || mCullingFailed || isEmitting() || mCpuSimulation) return true;
+        if (!ParticleCuller.isSupported()) {
+            disableCulling(metrics, "not enough storage blocks");
+            return true;
+        }
+        if (!mCuller.hasPrograms() || mCullWorkgroupSize != mWorkgroupSize || mCullPrecision != mPrecision) {
+            PerfTrace.begin("createCullPrograms");
+            metrics.increment(RenderMetrics.PROGRAM_REBUILDS);
+            mCuller.buildPrograms(compiler, SIM_PARAMS_BLOCK);
+            if (mCullJob != null) mCullJob.discard();
+            GlResources.delete(GlResources.PROGRAM, mCullProgram);
+            mCullProgram = 0;
+            mCullJob = compiler.compileCompute(getComputeShaderCode(mWorkgroupSize, false, true, mPrecision));
+            mCullWorkgroupSize = mWorkgroupSize;
+            mCullPrecision = mPrecision;
+            PerfTrace.end();
+        }
+        if (mCullProgram == 0 && mCullJob != null && mCullJob.isReady()) {
+            mCullProgram = mCullJob.get();
+            mCullJob = null;
+        }
+        return mCuller.isReady() && mCullProgram != 0;
+    }
+
+    private void disableCulling(RenderMetrics metrics, String reason) {
+        Log.w(TAG, "Culling disabled: " + reason);
+        mCullingFailed = true;
+        mCuller.release();
+        metrics.increment("culling_disabled");
+    }
+
+    /** Whether the configured source is (still) the emitters. */
+    private boolean isEmitting() {
+        return mSource != ParticleEmitter.SOURCE_FIXED && !mEmittersFailed && !mCpuSimulation;
+    }
+
+    /** Whether the particles come from emitters: the draws must then use the indirect commands. */
+    public boolean usesEmitters() {
+        return mEmitter.isAllocated();
+    }
+
+    /**
+     * Whether the steps write visible lists: the draws may then read the particles through the
+     * list of their slot (see getVisibleBase) with the indirect commands.
+     */
+    public boolean usesCulling() {
+        return mCuller.isAllocated();
+    }
+
+    public int getVisibleBuffer() {
+        return mCuller.getListBuffer();
+    }
+
+    /** Index of the first entry of the visible list of a slot. */
+    public int getVisibleBase(int slot) {
+        return mCuller.getListBase(slot);
+    }
+
+    /** Buffer of the indirect draw commands, for emitters or culling. */
+    public int getIndirectBuffer() {
+        return mEmitter.isAllocated() ? mEmitter.getIndirectBuffer() : mCuller.getListBuffer();
+    }
+
+    /** Offset in the indirect buffer of the draw command of a slot (see ParticleEmitter.DRAW_*). */
+    public int getDrawOffset(int slot, int primitive) {
+        return mEmitter.isAllocated() ? mEmitter.getDrawOffset(slot, primitive) : mCuller.getDrawOffset(slot, primitive);
+    }
+
+    /**
+     * Whether the step can use the particle interaction: builds its programs (in the background)
+     * and its grid on first use. Returns false until they are ready, or if the grid does not fit
+     * in GPU memory, in which case the interaction is disabled until the next config change.
+     */
+    private boolean prepareInteraction(RenderMetrics metrics, ProgramCompiler compiler) {
+        if (mInteraction == INTERACTION_OFF || mInteractionFailed || mEmitter.isAllocated()) {
+            if (mGrid.getBytes() != 0) {
+                mGrid.release();
+                metrics.set("grid_bytes", 0);
+            }
+            return false;
+        }
+        if (!mGrid.hasPrograms() || mGrid.getWorkgroupSize() != mWorkgroupSize
+                || mQueryCulls != mCuller.isAllocated() || mQueryPrecision != mPrecision) {
+            PerfTrace.begin("createGridPrograms");
+            metrics.increment(RenderMetrics.PROGRAM_REBUILDS);
+            mGrid.buildPrograms(compiler, SIM_PARAMS_BLOCK, mWorkgroupSize);
+            if (mQueryJob != null) mQueryJob.discard();
+            GlResources.delete(GlResources.PROGRAM, mQueryProgram);
+            mQueryProgram = 0;
+            mQueryCulls = mCuller.isAllocated();
+            mQueryPrecision = mPrecision;
+            mQueryJob = compiler.compileCompute(getComputeShaderCode(mWorkgroupSize, true, mQueryCulls, mPrecision));
+            PerfTrace.end();
+        }
+        if (mQueryProgram == 0 && mQueryJob != null && mQueryJob.isReady()) {
+            mQueryProgram = mQueryJob.get();
+            mQueryJob = null;
+        }
+        if (!mGrid.isReady() || mQueryProgram == 0) return false;
+        if (!mGrid.allocate(mPartCount, mWidth, mHeight, INTERACTION_RADIUS, mMaxBlockSize)) {
+            mInteractionFailed = true;
+            metrics.increment("interaction_disabled");
+            return false;
+        }
+        metrics.set("grid_bytes", mGrid.getBytes());
+        return true;
+    }
+
+    /**
+     * Sets the size of the simulation space. A shared simulation keeps the size of its first
+     * surface unless force is true (e.g. when only one renderer uses it). Initialized particles
+     * are remapped to the new size by the next step, unless the resize policy resets them.
+     */
+    public synchronized void setSize(int width, int height, boolean force) {
+        if (width == mWidth && height == mHeight) return;
+        if (!force && mWidth > 1) return;
+        if (mInitialized && mResizePolicy != RESIZE_RESET) {
+            // Successive sizes before the next step: remap from the first one.
+            if (!mRemapPending) { mRemapFromWidth = mWidth; mRemapFromHeight = mHeight; }
+            mRemapPending = true;
+        } else {
+            mInitialized = false;
+        }
+        mWidth = width; mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getParticleCount() {
+        return mPartCount;
+    }
+
+    /** Number of the attraction points currently down. */
+    public int getAttractorCount() {
+        return mActiveTouchCount;
+    }
+
+    public int getRingDepth() {
+        return mRingDepth;
+    }
+
+    /** Whether the simulation must be stepped by a SimulationThread (the simulation_thread setting). */
+    public synchronized boolean isThreaded() {
+        return mThreaded;
+    }
+
+    /** Whether the slots are written and drawn by different contexts. */
+    private boolean isMultiContext() {
+        return mShared || mThreaded;
+    }
+
+    public synchronized boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * (Re)allocates and resets the particle buffers if needed, once the compute program is built
+     * (the simulation stays uninitialized until then). Returns the reason of an allocation step down to report to the user, or null.
+     */
+    public synchronized String initBuffers(RenderMetrics metrics, ProgramCompiler compiler) {
+        if (mInitialized || mWidth <= 1 || !isProgramReady() || !preparePrecision(metrics, compiler)) return null;
+        if (mProgramWorkgroupSize != mWorkgroupSize || mProgramPrecision != mPrecision) {
+            // The workgroup size and the precision tier are baked in the compute shader.
+            GlResources.delete(GlResources.PROGRAM, mComputeProgram);
+            buildComputeProgram(metrics, compiler);
+            return null;
+        }
+        if (!prepareEmitters(metrics, compiler) || !prepareCulling(metrics, compiler)) return null;
+        // The buffers are reallocated on every re-initialization (config change or new surface),
+        // and the particles reset unless a snapshot restores them.
+        uncollapseRingDepth();
+        if (mPosSSBOs.length != 0) deleteBuffers();
+        // The plan may lower the ring depth and the particle count (until the next config reload).
+        // Other contexts, the simulation thread and the CPU workers write a slot while another
+        // one is drawn: they lose particles rather than their ring.
+        int minRingDepth = isMultiContext() || mCpuSimulation ? 2 : 1;
+        BufferPlanner.Plan plan = mBufferPlanner.plan(mPartCount, mRingDepth, minRingDepth, getMemoryBudget());
+        while (plan != null && !allocateBuffers(plan.numParticles, plan.ringDepth)) {
+            metrics.increment("allocation_failures");
+            plan = mBufferPlanner.stepDown(plan, minRingDepth, "out of GPU memory");
+        }
+        if (plan == null) { Log.e(TAG, "Cannot allocate the particle buffers"); return null; }
+        String reason = plan.reason;
+        mPartCount = plan.numParticles; mRingDepth = plan.ringDepth;
+        mHead = 0; mPrevHead = 0;
+        metrics.set(RenderMetrics.BUFFER_BYTES, plan.getBytes());
+        PerfTrace.counter(RenderMetrics.BUFFER_BYTES, plan.getBytes());
+        if (isEmitting()) {
+            // Starts with no live particle.
+            if (mRingDepth < 2) disableEmitters(metrics, "the buffer plan has a single slot");
+            else if (!mEmitter.allocate(mPartCount, mRingDepth, mMaxBlockSize)) disableEmitters(metrics, "out of GPU memory");
+            metrics.set("emitter_bytes", mEmitter.getBytes());
+        } else {
+            mEmitter.release();
+        }
+        if (mCull && !mCullingFailed && !mEmitter.isAllocated() && !mCpuSimulation && mCullProgram != 0) {
+            if (!mCuller.allocate(mPartCount, mRingDepth, mMaxBlockSize)) disableCulling(metrics, "out of GPU memory");
+            metrics.set("visible_list_bytes", mCuller.getBytes());
+        } else {
+            mCuller.release();
+        }
+        boolean restored = false;
+        if (mHasSnapshot) {
+            // The particles were saved under memory pressure (see onTrimMemory).
+            mHasSnapshot = false;
+            restored = !mEmitter.isAllocated() && !mCpuSimulation && readSnapshot();
+            if (restored && isMultiContext()) signalSlot(mHead);
+            mSnapshotFile.delete();
+        }
+        if (!restored) {
+            GLES31.glUseProgram(mComputeProgram); uploadSimParams(0f, true);
+            for (int i = 0; i < mRingDepth; i++) {
+                GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 2, mPosSSBOs[i]);
+                GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 3, mVelSSBOs[i]);
+                GLES31.glDispatchCompute((mPartCount / 2 + mWorkgroupSize - 1) / mWorkgroupSize, 1, 1);
+            }
+            GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+            if (isMultiContext()) signalSlot(mHead);
+        }
+        if (mCpuSimulation) {
+            // Same particles as the slots just reset.
+            if (mWorkers == null) mWorkers = new ParticleStepWorkers(Runtime.getRuntime().availableProcessors());
+            mWorkers.reset(mPartCount, mWidth, mHeight);
+            metrics.set("cpu_state_bytes", mWorkers.getBytes());
+        } else if (mWorkers != null) {
+            mWorkers.release();
+        }
+        resetAttractionPoints(); mInitialized = true;
+        mRemapPending = false;
+        return reason;
+    }
+
+    /**
+     * Advances the simulation by one step, unless it was already stepped for this vsync
+     * (frameTimeNs, 0 if unknown) by another renderer. Returns whether a step was dispatched.
+     * The compiler builds the interaction programs when needed; the grid costs go to metrics.
+     */
+    public synchronized boolean step(long frameTimeNs, float fpsFactor, RenderMetrics metrics, ProgramCompiler compiler) {
+        if (!mInitialized) return false;
+        // No step in the new size before the particles are in it.
+        if (mRemapPending && !remap(metrics, compiler)) return false;
+        if (frameTimeNs != 0 && frameTimeNs == mLastStepNs) return false;
+        mLastStepNs = frameTimeNs;
+
+        // Compute reads the newest state and writes the next slot. With a ring, the draw reads a
+        // state that is already complete, so compute and draw of a frame do not depend on each
+        // other and the memory barrier is only needed before the next step.
+        int outSlot = (mHead + 1) % mRingDepth;
+        if (mRingDepth > 1) {
+            PerfTrace.begin("memoryBarrier");
+            GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+            PerfTrace.end();
+        }
+        if (mCpuSimulation) return stepOnCpu(outSlot, fpsFactor, metrics);
+        if (isMultiContext()) {
+            // The input state may have been written, and the output state may still be drawn,
+            // by another context.
+            waitForSlot(mHead);
+            if (mReadFences[outSlot] != 0) GLES31.glWaitSync(mReadFences[outSlot], 0, GLES31.GL_TIMEOUT_IGNORED);
+        }
+        // GPU queries belong to the context that created them (the renderer's).
+        GpuTimer gpuTimer = mThreaded ? null : mGpuTimer;
+
+        setStepSlots(outSlot);
+        if (mEmitter.isAllocated()) {
+            PerfTrace.begin("uploadTouch");
+            uploadSimParams((float)mF01Attraction * fpsFactor, false);
+            int emitCount = uploadEmitParams(fpsFactor);
+            PerfTrace.end();
+            PerfTrace.begin("emitters");
+            mEmitter.step(mPosSSBOs[mHead], mVelSSBOs[mHead], mPosSSBOs[outSlot], mVelSSBOs[outSlot], mHead, emitCount);
+            PerfTrace.end();
+            signalSlot(outSlot);
+            mPrevHead = mHead;
+            mHead = outSlot;
+            return true;
+        }
+
+        boolean interaction = prepareInteraction(metrics, compiler);
+        // The interaction is only used once its program matches (see prepareInteraction).
+        boolean culling = mCuller.isAllocated();
+        PerfTrace.begin("uploadTouch");
+        uploadSimParams((float)mF01Attraction * fpsFactor, false);
+        if (interaction) uploadInteractionParams(fpsFactor);
+        PerfTrace.end();
+
+        if (interaction) {
+            // Sorts the input state in the grid; the query then reads the sorted particles
+            // (which also makes the neighbor reads coherent) and writes them, in order, to outSlot.
+            PerfTrace.begin("gridBuild");
+            if (gpuTimer != null) gpuTimer.begin(GPU_TIMER_GRID_BUILD);
+            mGrid.build(mPosSSBOs[mHead], mVelSSBOs[mHead]);
+            if (gpuTimer != null) gpuTimer.end();
+            PerfTrace.end();
+            PerfTrace.begin("gridQuery");
+            if (gpuTimer != null) gpuTimer.begin(GPU_TIMER_GRID_QUERY);
+            GLES31.glUseProgram(mQueryProgram);
+        } else {
+            GLES31.glUseProgram(culling ? mCullProgram : mComputeProgram);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, mPosSSBOs[mHead]);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, mVelSSBOs[mHead]);
+            PerfTrace.begin("dispatchCompute");
+        }
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 2, mPosSSBOs[outSlot]);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 3, mVelSSBOs[outSlot]);
+        if (culling) mCuller.bind(); // After the grid build, which uses the same binding.
+        GLES31.glDispatchCompute((mPartCount / 2 + mWorkgroupSize - 1) / mWorkgroupSize, 1, 1);
+        if (interaction && gpuTimer != null) gpuTimer.end();
+        PerfTrace.end();
+        if (culling) {
+            PerfTrace.begin("cullFinalize");
+            mCuller.finalizeStep(outSlot, metrics);
+            PerfTrace.end();
+        }
+        if (gpuTimer != null) gpuTimer.collect(metrics);
+        if (mRingDepth == 1) {
+            PerfTrace.begin("memoryBarrier");
+            GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+            PerfTrace.end();
+        } else {
+            signalSlot(outSlot);
+        }
+        mPrevHead = mHead;
+        mHead = outSlot;
+        return true;
+    }
+
+    /**
+     * Maps the particles (all the slots) and the attraction points from the previous size to
+     * the current one, in place, following the resize policy: one dispatch per slot, no
+     * reallocation and no reset. Returns false while the remap program is being built.
+     */
+    private boolean remap(RenderMetrics metrics, ProgramCompiler compiler) {
+        if (mRemapProgram == 0) {
+            if (mRemapJob == null) mRemapJob = compiler.compileCompute(getRemapShaderCode());
+            if (!mRemapJob.isReady()) return false;
+            mRemapProgram = mRemapJob.get();
+            mRemapJob = null;
+            uRemapTransform = GLES31.glGetUniformLocation(mRemapProgram, "uRemap");
+            uRemapCount = GLES31.glGetUniformLocation(mRemapProgram, "uCount");
+        }
+        PerfTrace.begin("remap");
+        float sx = mWidth / (float) mRemapFromWidth, sy = mHeight / (float) mRemapFromHeight;
+        float ox = 0f, oy = 0f;
+        if (mResizePolicy == RESIZE_LETTERBOX) {
+            sx = Math.min(sx, sy); sy = sx;
+            ox = (mWidth - mRemapFromWidth * sx) * 0.5f;
+            oy = (mHeight - mRemapFromHeight * sy) * 0.5f;
+        }
+        GLES31.glUseProgram(mRemapProgram);
+        GLES31.glUniform4f(uRemapTransform, sx, sy, ox, oy);
+        GLES31.glUniform1i(uRemapCount, mPartCount);
+        for (int i = 0; i < mRingDepth; i++) {
+            // Do not move a state that another context may still be writing or drawing.
+            if (isMultiContext()) {
+                waitForSlot(i);
+                if (mReadFences[i] != 0) GLES31.glWaitSync(mReadFences[i], 0, GLES31.GL_TIMEOUT_IGNORED);
+            }
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, mPosSSBOs[i]);
+            GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, mVelSSBOs[i]);
+            GLES31.glDispatchCompute((mPartCount + REMAP_WORKGROUP_SIZE - 1) / REMAP_WORKGROUP_SIZE, 1, 1);
+        }
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+        if (isMultiContext()) signalSlot(mHead);
+        if (mCpuSimulation && mWorkers != null) mWorkers.remap(sx, sy, ox, oy);
+        synchronized (mTouchLock) {
+            for (int i = 0; i < 16; i++) {
+                if (mTouchPos[2 * i] < 0f) continue;
+                mTouchPos[2 * i] = mTouchPos[2 * i] * sx + ox;
+                mTouchPos[2 * i + 1] = mTouchPos[2 * i + 1] * sy + oy;
+            }
+            updateActiveTouchList();
+        }
+        mRemapPending = false;
+        metrics.increment("resize_remaps");
+        PerfTrace.end();
+        return true;
+    }
+
+    /**
+     * Steps the particles on the CPU straight into the mapped buffers of outSlot. The last draw
+     * of outSlot is waited for on its read fence, while the GPU keeps drawing the newest slot.
+     */
+    private boolean stepOnCpu(int outSlot, float fpsFactor, RenderMetrics metrics) {
+        int numTargets;
+        synchronized (mTouchLock) {
+            System.arraycopy(mActiveTouchPos, 0, mCpuTargets, 0, mCpuTargets.length);
+            numTargets = mActiveTouchCount;
+        }
+        if (!mUpload.map(mPosSSBOs[outSlot], mVelSSBOs[outSlot], mPartCount, mReadFences[outSlot])) {
+            metrics.increment("upload_map_failures");
+            return false;
+        }
+        PerfTrace.begin("cpuStep");
+        try {
+            mWorkers.step(mUpload.getPositions(), mUpload.getVelocities(), mCpuTargets, numTargets,
+                    (float)mF01Attraction * fpsFactor, mF01Drag, mBoundaryMode, mWidth, mHeight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            PerfTrace.end();
+        }
+        if (!mUpload.unmap(metrics)) {
+            // Keep drawing the previous slot; the next step writes this one again.
+            metrics.increment("upload_lost");
+            return false;
+        }
+        signalSlot(outSlot);
+        mPrevHead = mHead;
+        mHead = outSlot;
+        return true;
+    }
+
+    /** Replaces the fence of a slot after its state was written. */
+    private void signalSlot(int slot) {
+        if (mFences[slot] != 0) GLES31.glDeleteSync(mFences[slot]);
+        mFences[slot] = GLES31.glFenceSync(GLES31.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        // Other contexts can only wait on the fence once it was flushed.
+        if (isMultiContext()) GLES31.glFlush();
+    }
+
+    /** Makes the current context wait (on the GPU) for the step that wrote a slot in another one. */
+    private void waitForSlot(int slot) {
+        if (mFences[slot] != 0) GLES31.glWaitSync(mFences[slot], 0, GLES31.GL_TIMEOUT_IGNORED);
+    }
+
+    /**
+     * Returns the slot to draw: the newest state whose step has completed on the GPU, or the
+     * previous one while the newest step is still running. With two slots, or when shared, the
+     * state being computed is never drawn. A threaded simulation is stepped at its own rate, so
+     * its newest state is drawn as soon as it is complete, even with two slots. Must be called, together with the draw calls and
+     * endDraw(), while holding the simulation lock.
+     */
+    public int beginDraw() {
+        int slot;
+        if (mRingDepth == 1 || mCpuSimulation) {
+            // A CPU step is complete once its buffers are unmapped.
+            slot = mHead;
+        } else if ((mRingDepth < 3 && !mThreaded) || mFences[mHead] == 0) {
+            slot = mPrevHead;
+        } else {
+            int status = GLES31.glClientWaitSync(mFences[mHead], 0, 0);
+            slot = (status == GLES31.GL_ALREADY_SIGNALED || status == GLES31.GL_CONDITION_SATISFIED)
+                    ? mHead : mPrevHead;
+        }
+        // The state may have been written by another context.
+        if (isMultiContext()) waitForSlot(slot);
+        return slot;
+    }
+
+    public int getPositionBuffer(int slot) {
+        return mPosSSBOs[slot];
+    }
+
+    public int getVelocityBuffer(int slot) {
+        return mVelSSBOs[slot];
+    }
+
+    /** Must be called after the draw calls reading the given slot. */
+    public void endDraw(int slot) {
+        if (!isMultiContext() && !mCpuSimulation) return;
+        if (mReadFences[slot] != 0) GLES31.glDeleteSync(mReadFences[slot]);
+        mReadFences[slot] = GLES31.glFenceSync(GLES31.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        if (isMultiContext()) GLES31.glFlush();
+    }
+
+    /**
+     * Reads the newest particle state back and records statistics about it (mean position,
+     * spread, mean speed and the fraction of particles on screen) in the given metrics.
+     * Stalls the pipeline: only meant for the end of a benchmark.
+     */
+    public synchronized void recordStats(RenderMetrics metrics) {
+        if (!mInitialized) return;
+        if (isMultiContext()) waitForSlot(mHead);
+        GLES31.glMemoryBarrier(GLES31.GL_BUFFER_UPDATE_BARRIER_BIT);
+        GLES31.glFinish();
+        // With emitters only the first particles of a slot are alive.
+        int count = mEmitter.isAllocated() ? mEmitter.readLiveCount(mHead) : mPartCount;
+        metrics.set("final_live_particles", count);
+        if (count == 0) return;
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mPosSSBOs[mHead]);
+        ByteBuffer pos = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_SHADER_STORAGE_BUFFER, 0,
+                count * BufferPlanner.POS_BYTES, GLES31.GL_MAP_READ_BIT);
+        if (pos == null) { Log.e(TAG, "Cannot map the position buffer"); return; }
+        pos.order(ByteOrder.nativeOrder());
+        double sumX = 0, sumY = 0, sumX2 = 0, sumY2 = 0;
+        int onScreen = 0;
+        for (int i = 0; i < count; i++) {
+            float x = pos.getFloat(i * 8), y = pos.getFloat(i * 8 + 4);
+            sumX += x; sumY += y; sumX2 += x * x; sumY2 += y * y;
+            if (x >= 0 && x < mWidth && y >= 0 && y < mHeight) onScreen++;
+        }
+        GLES31.glUnmapBuffer(GLES31.GL_SHADER_STORAGE_BUFFER);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mVelSSBOs[mHead]);
+        ByteBuffer vel = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_SHADER_STORAGE_BUFFER, 0,
+                count * BufferPlanner.VEL_BYTES, GLES31.GL_MAP_READ_BIT);
+        double sumSpeed = 0;
+        if (vel != null) {
+            vel.order(ByteOrder.nativeOrder());
+            for (int i = 0; i < count; i++) {
+                int v = vel.getInt(i * 4);
+                float vx = HalfFloat.toFloat(v & 0xFFFF), vy = HalfFloat.toFloat(v >>> 16);
+                sumSpeed += Math.sqrt(vx * vx + vy * vy);
+            }
+            GLES31.glUnmapBuffer(GLES31.GL_SHADER_STORAGE_BUFFER);
+        }
+        double n = Math.max(1, count);
+        double meanX = sumX / n, meanY = sumY / n;
+        metrics.set("final_mean_x", meanX);
+        metrics.set("final_mean_y", meanY);
+        metrics.set("final_spread", Math.sqrt(Math.max(0, sumX2 / n - meanX * meanX + sumY2 / n - meanY * meanY)));
+        metrics.set("final_mean_speed", sumSpeed / n);
+        metrics.set("final_on_screen", onScreen / n);
+    }
+
+    /**
+     * Tier of a ComponentCallbacks2 trim level: the levels of a cached process, and a running
+     * process about to be killed (TRIM_MEMORY_RUNNING_CRITICAL), are critical.
+     */
+    public static int getTrimTier(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) return TRIM_CRITICAL;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) return TRIM_MODERATE;
+        return TRIM_NONE;
+    }
+
+    /** Requests the response to a ComponentCallbacks2 trim level. Can be called on any thread. */
+    public void onTrimMemory(int level) {
+        int tier = getTrimTier(level);
+        synchronized (mTrimLock) {
+            if (tier > mPendingTrim) mPendingTrim = tier;
+        }
+    }
+
+    /** Gets the memory given up under moderate pressure back (the UI is visible again). */
+    public void restoreMemory() {
+        synchronized (mTrimLock) {
+            mPendingTrim = TRIM_NONE;
+            mRestorePending = true;
+        }
+    }
+
+    /** Applies the pending trim or restore request. Must be called on the GL thread. */
+    public synchronized void applyTrim(RenderMetrics metrics) {
+        int trim;
+        boolean restore;
+        synchronized (mTrimLock) {
+            trim = mPendingTrim;
+            restore = mRestorePending && trim == TRIM_NONE;
+            mPendingTrim = TRIM_NONE;
+            if (restore) mRestorePending = false;
+        }
+        if (restore && mCollapsedRingDepth != 0) expandRing(metrics);
+        if (trim == TRIM_NONE || !mInitialized) return;
+        if (trim == TRIM_CRITICAL) releaseToSnapshot(metrics);
+        else collapseRing(metrics);
+    }
+
+    /**
+     * Keeps the newest slot only: the steps then update it in place. Emitters, the CPU
+     * simulation, the simulation thread and the other contexts of a shared simulation need a
+     * ring. Culling stays off until the next initialization, as its lists are per slot.
+     */
+    private void collapseRing(RenderMetrics metrics) {
+        if (mRingDepth == 1 || mEmitter.isAllocated() || mCpuSimulation || mThreaded
+                || (mShared && SharedSimulation.getRefCount() > 1)) return;
+        int keep = mHead;
+        for (int i = 0; i < mRingDepth; i++) {
+            if (i == keep) continue;
+            GlResources.delete(GlResources.BUFFER, new int[] {mPosSSBOs[i], mVelSSBOs[i]}, 0, 2);
+            if (mFences[i] != 0) GLES31.glDeleteSync(mFences[i]);
+            if (mReadFences[i] != 0) GLES31.glDeleteSync(mReadFences[i]);
+        }
+        mPosSSBOs = new int[] {mPosSSBOs[keep]}; mVelSSBOs = new int[] {mVelSSBOs[keep]};
+        mFences = new long[] {mFences[keep]}; mReadFences = new long[] {mReadFences[keep]};
+        mCollapsedRingDepth = mRingDepth;
+        mRingDepth = 1; mHead = 0; mPrevHead = 0;
+        mCuller.release();
+        metrics.set(RenderMetrics.BUFFER_BYTES, getParticleBytes());
+        metrics.increment("trim_ring_collapses");
+    }
+
+    /** Adds the slots dropped by collapseRing back; the steps write them before they are drawn. */
+    private void expandRing(RenderMetrics metrics) {
+        int depth = mCollapsedRingDepth;
+        mCollapsedRingDepth = 0;
+        if (!mInitialized || mRingDepth != 1) return;
+        int[] pos = new int[depth], vel = new int[depth];
+        pos[0] = mPosSSBOs[0]; vel[0] = mVelSSBOs[0];
+        while (GLES31.glGetError() != GLES31.GL_NO_ERROR) {} // Clear stale errors.
+        GLES31.glGenBuffers(depth - 1, pos, 1);
+        GLES31.glGenBuffers(depth - 1, vel, 1);
+        for (int i = 1; i < depth; i++) {
+            GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, pos[i]);
+            GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, mPartCount * BufferPlanner.POS_BYTES, null, GLES31.GL_DYNAMIC_DRAW);
+            GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, vel[i]);
+            GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, mPartCount * BufferPlanner.VEL_BYTES, null, GLES31.GL_DYNAMIC_DRAW);
+        }
+        trackSlots(pos, vel, 1, depth, mPartCount);
+        int error = GLES31.glGetError();
+        if (error != GLES31.GL_NO_ERROR) {
+            Log.w(TAG, "Cannot restore the buffer ring (0x" + Integer.toHexString(error) + ")");
+            GlResources.delete(GlResources.BUFFER, pos, 1, depth - 1);
+            GlResources.delete(GlResources.BUFFER, vel, 1, depth - 1);
+            return;
+        }
+        long[] fences = new long[depth], readFences = new long[depth];
+        fences[0] = mFences[0]; readFences[0] = mReadFences[0];
+        mPosSSBOs = pos; mVelSSBOs = vel; mFences = fences; mReadFences = readFences;
+        mRingDepth = depth; mHead = 0; mPrevHead = 0;
+        metrics.set(RenderMetrics.BUFFER_BYTES, getParticleBytes());
+    }
+
+    /** Undoes the ring depth change of collapseRing, for buffers about to be reallocated. */
+    private void uncollapseRingDepth() {
+        if (mCollapsedRingDepth != 0) mRingDepth = mCollapsedRingDepth;
+        mCollapsedRingDepth = 0;
+    }
+
+    /**
+     * Saves the particles (unless they come from emitters, which simply start again) and frees
+     * all the buffers. The next initBuffers allocates them again and restores the particles.
+     */
+    private void releaseToSnapshot(RenderMetrics metrics) {
+        // Emitters and the CPU simulation restart from a reset (see initBuffers).
+        mHasSnapshot = !mEmitter.isAllocated() && !mCpuSimulation && writeSnapshot();
+        deleteBuffers();
+        mEmitter.release();
+        mCuller.release();
+        mGrid.release();
+        uncollapseRingDepth();
+        mInitialized = false;
+        metrics.set(RenderMetrics.BUFFER_BYTES, 0);
+        metrics.increment("trim_releases");
+    }
+
+    private long getParticleBytes() {
+        return (long) mPartCount * (BufferPlanner.POS_BYTES + BufferPlanner.VEL_BYTES) * mRingDepth;
+    }
+
+    /** Writes the newest state to mSnapshotFile (see ParticleSnapshot). Stalls the pipeline. */
+    private boolean writeSnapshot() {
+        PerfTrace.begin("writeSnapshot");
+        if (isMultiContext()) waitForSlot(mHead);
+        GLES31.glMemoryBarrier(GLES31.GL_BUFFER_UPDATE_BARRIER_BIT);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mPosSSBOs[mHead]);
+        GLES31.glBindBuffer(GLES31.GL_COPY_READ_BUFFER, mVelSSBOs[mHead]);
+        ByteBuffer pos = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_SHADER_STORAGE_BUFFER, 0,
+                mPartCount * BufferPlanner.POS_BYTES, GLES31.GL_MAP_READ_BIT);
+        ByteBuffer vel = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_COPY_READ_BUFFER, 0,
+                mPartCount * BufferPlanner.VEL_BYTES, GLES31.GL_MAP_READ_BIT);
+        boolean saved = false;
+        if (pos != null && vel != null) {
+            pos.order(ByteOrder.nativeOrder()); vel.order(ByteOrder.nativeOrder());
+            try (ParticleSnapshot.Writer writer = new ParticleSnapshot.Writer(mSnapshotFile, mPartCount, mWidth, mHeight)) {
+                for (int first = 0; first < mPartCount; first += ParticleSnapshot.CHUNK_PARTICLES) {
+                    writer.append(pos, vel, Math.min(ParticleSnapshot.CHUNK_PARTICLES, mPartCount - first));
+                }
+                saved = true;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot write the particle snapshot", e);
+            }
+        }
+        if (pos != null) GLES31.glUnmapBuffer(GLES31.GL_SHADER_STORAGE_BUFFER);
+        if (vel != null) GLES31.glUnmapBuffer(GLES31.GL_COPY_READ_BUFFER);
+        PerfTrace.end();
+        return saved;
+    }
+
+    /** Uploads the state of mSnapshotFile to the newest slot, if it matches the simulation. */
+    private boolean readSnapshot() {
+        PerfTrace.begin("readSnapshot");
+        try (ParticleSnapshot.Reader reader = new ParticleSnapshot.Reader(mSnapshotFile)) {
+            if (reader.getCount() != mPartCount || reader.getWidth() != mWidth || reader.getHeight() != mHeight) {
+                return false;
+            }
+            int chunk = ParticleSnapshot.CHUNK_PARTICLES;
+            ByteBuffer pos = ByteBuffer.allocateDirect(chunk * BufferPlanner.POS_BYTES).order(ByteOrder.nativeOrder());
+            ByteBuffer vel = ByteBuffer.allocateDirect(chunk * BufferPlanner.VEL_BYTES).order(ByteOrder.nativeOrder());
+            for (int first = 0; first < mPartCount; first += chunk) {
+                int n = Math.min(chunk, mPartCount - first);
+                pos.clear(); vel.clear();
+                reader.read(pos, vel, n);
+                pos.flip(); vel.flip();
+                GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mPosSSBOs[mHead]);
+                GLES31.glBufferSubData(GLES31.GL_SHADER_STORAGE_BUFFER, first * BufferPlanner.POS_BYTES, n * BufferPlanner.POS_BYTES, pos);
+                GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mVelSSBOs[mHead]);
+                GLES31.glBufferSubData(GLES31.GL_SHADER_STORAGE_BUFFER, first * BufferPlanner.VEL_BYTES, n * BufferPlanner.VEL_BYTES, vel);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the particle snapshot", e);
+            return false;
+        } finally {
+            PerfTrace.end();
+        }
+    }
+
+    private void deleteBuffers() {
+        if (mPosSSBOs.length == 0) return;
+        GlResources.delete(GlResources.BUFFER, mPosSSBOs, 0, mPosSSBOs.length);
+        GlResources.delete(GlResources.BUFFER, mVelSSBOs, 0, mVelSSBOs.length);
+        for (long fence : mFences) if (fence != 0) GLES31.glDeleteSync(fence);
+        for (long fence : mReadFences) if (fence != 0) GLES31.glDeleteSync(fence);
+        mPosSSBOs = new int[0]; mVelSSBOs = new int[0]; mFences = new long[0]; mReadFences = new long[0];
+    }
+
+    /**
+     * Allocates a ring of ringDepth particle states. Returns false (and releases whatever was
+     * allocated) if the driver reports an error, typically GL_OUT_OF_MEMORY.
+     */
+    private boolean allocateBuffers(int numParticles, int ringDepth) {
+        while (GLES31.glGetError() != GLES31.GL_NO_ERROR) {} // Clear stale errors.
+        mPosSSBOs = new int[ringDepth]; mVelSSBOs = new int[ringDepth];
+        mFences = new long[ringDepth]; mReadFences = new long[ringDepth];
+        GLES31.glGenBuffers(ringDepth, mPosSSBOs, 0);
+        GLES31.glGenBuffers(ringDepth, mVelSSBOs, 0);
+        for (int i = 0; i < ringDepth; i++) {
+            GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mPosSSBOs[i]);
+            GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, numParticles * BufferPlanner.POS_BYTES, null, GLES31.GL_DYNAMIC_DRAW);
+            GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mVelSSBOs[i]);
+            GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, numParticles * BufferPlanner.VEL_BYTES, null, GLES31.GL_DYNAMIC_DRAW);
+        }
+        trackSlots(mPosSSBOs, mVelSSBOs, 0, ringDepth, numParticles);
+        int error = GLES31.glGetError();
+        if (error == GLES31.GL_NO_ERROR) return true;
+        Log.w(TAG, "Buffer allocation failed (0x" + Integer.toHexString(error) + ") for "
+                + numParticles + " particles x " + ringDepth);
+        deleteBuffers();
+        return false;
+    }
+
+    /** Registers the buffers of slots from to to - 1 (see GlResources). */
+    private static void trackSlots(int[] pos, int[] vel, int from, int to, int numParticles) {
+        GlResources.track(GlResources.BUFFER, pos, from, to - from, TAG);
+        GlResources.track(GlResources.BUFFER, vel, from, to - from, TAG);
+        for (int i = from; i < to; i++) {
+            GlResources.setBytes(GlResources.BUFFER, pos[i], (long) numParticles * BufferPlanner.POS_BYTES);
+            GlResources.setBytes(GlResources.BUFFER, vel[i], (long) numParticles * BufferPlanner.VEL_BYTES);
+        }
+    }
+
+    /** Memory the particle buffers may use: half of what the system can give before trimming. */
+    private long getMemoryBudget() {
+        if (mActivityManager == null) return 0;
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        mActivityManager.getMemoryInfo(info);
+        long budget = Math.max(1, (info.availMem - info.threshold) / 2);
+        return info.lowMemory ? Math.max(1, budget / 2) : budget;
+    }
+
+    /**
+     * Writes the compute parameters into the SimParams block and uploads it with a single
+     * glBufferSubData call (std140 layout, see SIM_PARAMS_* offsets).
+     */
+    private void uploadSimParams(float attraction, boolean reset) {
+        synchronized (mTouchLock) {
+            for (int i = 0; i < 32; i++) mSimParams.putFloat(4 * i, mActiveTouchPos[i]);
+            mSimParams.putInt(SIM_PARAMS_NUMT, mActiveTouchCount);
+        }
+        mSimParams.putFloat(SIM_PARAMS_RES, (float)mWidth);
+        mSimParams.putFloat(SIM_PARAMS_RES + 4, (float)mHeight);
+        mSimParams.putFloat(SIM_PARAMS_ATT, attraction);
+        mSimParams.putFloat(SIM_PARAMS_DRAG, mF01Drag);
+        mSimParams.putInt(SIM_PARAMS_NUMP, mPartCount);
+        mSimParams.putInt(SIM_PARAMS_RESET, reset ? 1 : 0);
+        mSimParams.putInt(SIM_PARAMS_BOUNDS, mBoundaryMode);
+        mSimParams.position(0);
+        GLES31.glBindBuffer(GLES31.GL_UNIFORM_BUFFER, mSimParamsUBO);
+        GLES31.glBufferSubData(GLES31.GL_UNIFORM_BUFFER, 0, SIM_PARAMS_SIZE, mSimParams);
+        GLES31.glBindBufferBase(GLES31.GL_UNIFORM_BUFFER, 0, mSimParamsUBO);
+    }
+
+    /**
+     * Writes the grid and the interaction coefficients (scaled like the attraction by the time
+     * step) into the SimParams block, after uploadSimParams.
+     */
+    private void uploadInteractionParams(float fpsFactor) {
+        float scale = fpsFactor / 1.1f;
+        boolean flocking = mInteraction == INTERACTION_FLOCKING;
+        mSimParams.putFloat(SIM_PARAMS_GRID, mGrid.getCellSize());
+        mSimParams.putFloat(SIM_PARAMS_GRID + 4, 1f / mGrid.getCellSize());
+        mSimParams.putFloat(SIM_PARAMS_GRID + 8, mGrid.getGridWidth());
+        mSimParams.putFloat(SIM_PARAMS_GRID + 12, mGrid.getGridHeight());
+        mSimParams.putFloat(SIM_PARAMS_INTER, SEPARATION * scale);
+        mSimParams.putFloat(SIM_PARAMS_INTER + 4, flocking ? Math.min(1f, ALIGNMENT * scale) : 0f);
+        mSimParams.putFloat(SIM_PARAMS_INTER + 8, flocking ? COHESION * scale : 0f);
+        mSimParams.putFloat(SIM_PARAMS_INTER + 12, INTERACTION_RADIUS);
+        mSimParams.position(0);
+        GLES31.glBindBuffer(GLES31.GL_UNIFORM_BUFFER, mSimParamsUBO);
+        GLES31.glBufferSubData(GLES31.GL_UNIFORM_BUFFER, SIM_PARAMS_GRID, SIM_PARAMS_SIZE - SIM_PARAMS_GRID,
+                (ByteBuffer) mSimParams.position(SIM_PARAMS_GRID));
+        mSimParams.position(0);
+    }
+
+    /**
+     * Sets the slots of the next step (input, output and next output) in the SimParams block,
+     * for the emitters and the culling. Uploaded by uploadSimParams.
+     */
+    private void setStepSlots(int outSlot) {
+        mSimParams.putInt(SIM_PARAMS_SLOTS, mHead);
+        mSimParams.putInt(SIM_PARAMS_SLOTS + 4, outSlot);
+        mSimParams.putInt(SIM_PARAMS_SLOTS + 8, (outSlot + 1) % mRingDepth);
+    }
+
+    /**
+     * Writes the emission parameters of a step into the SimParams block, after
+     * uploadSimParams. Returns the number of particles to emit.
+     */
+    private int uploadEmitParams(float fpsFactor) {
+        float dt = fpsFactor / 1.1f;
+        int emitCount = mEmitter.getEmitCount(mSource, dt);
+        mSimParams.putInt(SIM_PARAMS_EMIT, emitCount);
+        mSimParams.putInt(SIM_PARAMS_EMIT + 4, mEmitter.nextSeed());
+        mSimParams.putFloat(SIM_PARAMS_LIFE, dt);
+        mSimParams.putFloat(SIM_PARAMS_LIFE + 4, ParticleEmitter.getMeanLifetime());
+        mSimParams.putFloat(SIM_PARAMS_LIFE + 8, ParticleEmitter.getEmitSpeed());
+        GLES31.glBindBuffer(GLES31.GL_UNIFORM_BUFFER, mSimParamsUBO);
+        GLES31.glBufferSubData(GLES31.GL_UNIFORM_BUFFER, SIM_PARAMS_EMIT, SIM_PARAMS_SIZE - SIM_PARAMS_EMIT,
+                (ByteBuffer) mSimParams.position(SIM_PARAMS_EMIT));
+        mSimParams.position(0);
+        return emitCount;
+    }
+
+    /** Sets an attraction point, in simulation space (y pointing down, like touch events). */
+    public void setTouch(int index, float x, float y) {
+        if (index >= 16) return;
+        synchronized (mTouchLock) {
+            if (x < 0) { mTouchPos[2 * index] = -1f; mTouchPos[2 * index + 1] = -1f; } else { mTouchPos[2 * index] = x; mTouchPos[2 * index + 1] = mHeight - y; }
+            updateActiveTouchList();
+        }
+    }
+
+    private void updateActiveTouchList() {
+        mActiveTouchCount = 0;
+        for (int i = 0; i < 16; i++) {
+            if (mTouchPos[2 * i] >= 0.0f) {
+                mActiveTouchPos[2 * mActiveTouchCount] = mTouchPos[2 * i];
+                mActiveTouchPos[2 * mActiveTouchCount + 1] = mTouchPos[2 * i + 1];
+                mActiveTouchCount++;
+            }
+        }
+    }
+
+    public void resetAttractionPoints() {
+        if (mWidth <= 1) return;
+        float l = Math.min(mWidth, mHeight) / 3f;
+        setTouch(0, mWidth / 2f, mHeight / 2f + (mNumTouch == 1 ? 0 : l));
+        for (int i = 1; i < mNumTouch; i++) {
+            setTouch(i, (float) (mWidth / 2f + l * Math.sin(i * 6.28 / mNumTouch)), (float) (mHeight / 2f + l * Math.cos(i * 6.28 / mNumTouch)));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.nfaralli.particleflow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact file copy of a particle state, used to free the particle buffers under memory
+ * pressure without losing the particles. Each particle takes 8 bytes: its position as two
+ * 16 bit fixed point values over [-size, 2 * size) of the simulation space (a twentieth of a
+ * pixel on a phone screen), and its velocity as stored by the GPU (two half floats).
+ * The state is written and read in chunks of CHUNK_PARTICLES particles, in the layout of the
+ * particle buffers (see BufferPlanner). This class has no Android dependencies.
+ */
+public class ParticleSnapshot {
+
+    private static final int MAGIC = 0x50465331; // "PFS1"
+    private static final int HEADER_BYTES = 16;
+    private static final int PARTICLE_BYTES = 8;
+    public static final int CHUNK_PARTICLES = 1 << 16;
+
+    private static float getStep(int size) {
+        return 3f * size / 65535f;
+    }
+
+    /** Writes a snapshot of count particles, chunk by chunk. */
+    public static final class Writer implements Closeable {
+        private final FileChannel mChannel;
+        private final ByteBuffer mChunk;
+        private final float mStepX, mStepY;
+        private final int mWidth, mHeight;
+
+        public Writer(File file, int count, int width, int height) throws IOException {
+            mChannel = new FileOutputStream(file).getChannel();
+            mChunk = ByteBuffer.allocateDirect(CHUNK_PARTICLES * PARTICLE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            mWidth = width; mHeight = height;
+            mStepX = getStep(width); mStepY = getStep(height);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(count).putInt(width).putInt(height).flip();
+            while (header.hasRemaining()) mChannel.write(header);
+        }
+
+        /**
+         * Appends n (at most CHUNK_PARTICLES) particles read from the current positions of pos
+         * (vec2 FP32) and vel (half2), both in native order.
+         */
+        public void append(ByteBuffer pos, ByteBuffer vel, int n) throws IOException {
+            mChunk.clear();
+            for (int i = 0; i < n; i++) {
+                mChunk.putShort(quantize(pos.getFloat(), mWidth, mStepX));
+                mChunk.putShort(quantize(pos.getFloat(), mHeight, mStepY));
+                mChunk.putInt(vel.getInt());
+            }
+            mChunk.flip();
+            while (mChunk.hasRemaining()) mChannel.write(mChunk);
+        }
+
+        private static short quantize(float value, int size, float step) {
+            float q = (value + size) / step + 0.5f;
+            return (short) Math.max(0, Math.min(65535, (int) q));
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    /** Reads a snapshot back, chunk by chunk. */
+    public static final class Reader implements Closeable {
+        private final FileChannel mChannel;
+        private final ByteBuffer mChunk;
+        private final int mCount, mWidth, mHeight;
+        private final float mStepX, mStepY;
+
+        /** Throws an IOException if the file is not a snapshot. */
+        public Reader(File file) throws IOException {
+            mChannel = new FileInputStream(file).getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && mChannel.read(header) >= 0) {}
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                mChannel.close();
+                throw new IOException("Not a particle snapshot: " + file);
+            }
+            mCount = header.getInt(); mWidth = header.getInt(); mHeight = header.getInt();
+            mStepX = getStep(mWidth); mStepY = getStep(mHeight);
+            mChunk = ByteBuffer.allocateDirect(CHUNK_PARTICLES * PARTICLE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Reads the next n (at most CHUNK_PARTICLES) particles into pos (vec2 FP32) and vel
+         * (half2), both in native order, from their current positions.
+         */
+        public void read(ByteBuffer pos, ByteBuffer vel, int n) throws IOException {
+            mChunk.clear().limit(n * PARTICLE_BYTES);
+            while (mChunk.hasRemaining()) {
+                if (mChannel.read(mChunk) < 0) throw new IOException("Truncated particle snapshot");
+            }
+            mChunk.flip();
+            for (int i = 0; i < n; i++) {
+                pos.putFloat((mChunk.getShort() & 0xFFFF) * mStepX - mWidth);
+                pos.putFloat((mChunk.getShort() & 0xFFFF) * mStepY - mHeight);
+                vel.putInt(mChunk.getInt());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+}
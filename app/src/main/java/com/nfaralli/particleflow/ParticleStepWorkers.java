@@ -0,0 +1,168 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Step of the plain compute shader (attraction points, drag and screen edges) on the CPU,
+ * split over a pool of worker threads and the calling thread. The particle state stays in
+ * direct buffers (off the Java heap), in the layout of the GPU buffers: positions as vec2 FP32
+ * and velocities as packed half floats. Each step writes the new state both to the CPU state
+ * and to the given output buffers, which are the mapped GPU buffers of the next slot: the
+ * workers fill them in place, there is no staging copy.
+ * This class has no Android dependencies.
+ */
+public class ParticleStepWorkers {
+
+    private static final float NEAR_DIST_SQ = 0.1f;
+    private static final float NOISE_SCALE = 9.587e-5f;
+
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+    private FloatBuffer mPos;
+    private IntBuffer mVel;
+    private int mCount = 0;
+
+    public ParticleStepWorkers(int threads) {
+        mThreads = Math.max(1, threads);
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, mThreads - 1), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ParticleStepWorker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * (Re)allocates the state for count particles and resets them at rest, like the reset of
+     * the step shader (see spawnPosition) over a width x height space.
+     */
+    public void reset(int count, int width, int height) {
+        if (count != mCount) {
+            mPos = null; mVel = null; // Let the previous state go first.
+            mPos = ByteBuffer.allocateDirect(count * BufferPlanner.POS_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mVel = ByteBuffer.allocateDirect(count * BufferPlanner.VEL_BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            mCount = count;
+        }
+        for (int k = 0; k < count; k++) {
+            int idx = k & ~1;
+            spawn(PrecisionReference.hash((k & 1) == 0 ? idx : idx + 1337), width, height, mPos, 2 * k);
+            mVel.put(k, 0);
+        }
+    }
+
+    /** Maps the positions by p * scale + offset and the velocities by the scale, like remap in the shader. */
+    public void remap(float sx, float sy, float ox, float oy) {
+        for (int k = 0; k < mCount; k++) {
+            mPos.put(2 * k, mPos.get(2 * k) * sx + ox);
+            mPos.put(2 * k + 1, mPos.get(2 * k + 1) * sy + oy);
+            int v = mVel.get(k);
+            float vx = HalfFloat.toFloat(v & 0xFFFF) * sx, vy = HalfFloat.toFloat(v >>> 16) * sy;
+            mVel.put(k, (HalfFloat.fromFloat(vx) & 0xFFFF) | (HalfFloat.fromFloat(vy) << 16));
+        }
+    }
+
+    /** Frees the state; reset must be called before the next step. */
+    public void release() {
+        mPos = null; mVel = null;
+        mCount = 0;
+    }
+
+    public long getBytes() {
+        return (long) mCount * (BufferPlanner.POS_BYTES + BufferPlanner.VEL_BYTES);
+    }
+
+    /**
+     * Steps all the particles and writes the new state to outPos and outVel (same layout as
+     * the state, native order). targets holds numTargets attraction points (x, y), bounds is
+     * one of the ParticleSimulation.BOUNDARY_* modes.
+     */
+    public void step(final FloatBuffer outPos, final IntBuffer outVel, final float[] targets, final int numTargets,
+            final float attraction, final float drag, final int bounds, final int width, final int height)
+            throws InterruptedException {
+        int chunk = ((mCount + mThreads - 1) / mThreads + 1) & ~1;
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int from = chunk; from < mCount; from += chunk) {
+            final int begin = from, end = Math.min(mCount, from + chunk);
+            tasks.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    stepRange(outPos, outVel, targets, numTargets, attraction, drag, bounds, width, height, begin, end);
+                    return null;
+                }
+            }));
+        }
+        stepRange(outPos, outVel, targets, numTargets, attraction, drag, bounds, width, height, 0, Math.min(mCount, chunk));
+        try {
+            for (Future<Void> task : tasks) task.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void stepRange(FloatBuffer outPos, IntBuffer outVel, float[] targets, int numTargets,
+            float attraction, float drag, int bounds, int width, int height, int from, int to) {
+        FloatBuffer pos = mPos;
+        IntBuffer vel = mVel;
+        for (int k = from; k < to; k++) {
+            float px = pos.get(2 * k), py = pos.get(2 * k + 1), ax = 0f, ay = 0f;
+            for (int j = 0; j < numTargets; j++) {
+                float dx = targets[2 * j] - px, dy = targets[2 * j + 1] - py;
+                float distSq = dx * dx + dy * dy;
+                if (distSq <= NEAR_DIST_SQ) {
+                    // The shader hashes once per pair of particles: low bits for the first one.
+                    int h = PrecisionReference.hash((k & ~1) + j);
+                    float rnd = ((k & 1) == 0 ? h & 0xFFFF : h >>> 16) * NOISE_SCALE;
+                    ax += attraction * (float) Math.cos(rnd);
+                    ay += attraction * (float) Math.sin(rnd);
+                } else {
+                    float invDist = 1f / Math.max(distSq, 1f);
+                    ax += attraction * (dx * invDist);
+                    ay += attraction * (dy * invDist);
+                }
+            }
+            int v = vel.get(k);
+            float vx = (HalfFloat.toFloat(v & 0xFFFF) + ax) * drag;
+            float vy = (HalfFloat.toFloat(v >>> 16) + ay) * drag;
+            px += vx; py += vy;
+            if (bounds == ParticleSimulation.BOUNDARY_WRAP) {
+                px -= width * (float) Math.floor(px / width);
+                py -= height * (float) Math.floor(py / height);
+            } else if (bounds == ParticleSimulation.BOUNDARY_BOUNCE) {
+                if (px < 0f) { px = -px; vx = -vx; } else if (px > width) { px = 2f * width - px; vx = -vx; }
+                if (py < 0f) { py = -py; vy = -vy; } else if (py > height) { py = 2f * height - py; vy = -vy; }
+                px = Math.max(0f, Math.min(width, px));
+                py = Math.max(0f, Math.min(height, py));
+            } else if (bounds == ParticleSimulation.BOUNDARY_RESPAWN
+                    && (px < 0f || py < 0f || px > width || py > height)) {
+                spawn(PrecisionReference.hash(k ^ Float.floatToRawIntBits(px + py)), width, height, pos, 2 * k);
+                px = pos.get(2 * k); py = pos.get(2 * k + 1);
+                vx = 0f; vy = 0f;
+            }
+            v = (HalfFloat.fromFloat(vx) & 0xFFFF) | (HalfFloat.fromFloat(vy) << 16);
+            pos.put(2 * k, px); pos.put(2 * k + 1, py); vel.put(k, v);
+            outPos.put(2 * k, px); outPos.put(2 * k + 1, py); outVel.put(k, v);
+        }
+    }
+
+    /** Writes the reset position of hash h at index i of pos (see spawnPosition in the shader). */
+    private static void spawn(int h, int width, int height, FloatBuffer pos, int i) {
+        float r = (h & 0xFFFF) * 1.5258e-5f;
+        float th = (h >>> 16) * 1.5258e-5f * 6.2831853f;
+        float rad = (float) Math.sqrt(r) * Math.min(width, height) * 0.45f;
+        pos.put(i, width * 0.5f + (float) Math.cos(th) * rad);
+        pos.put(i + 1, height * 0.5f + (float) Math.sin(th) * rad);
+    }
+}
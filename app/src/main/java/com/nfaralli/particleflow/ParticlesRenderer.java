@@ -1,20 +1,30 @@
 package com.nfaralli.particleflow;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.Random;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.graphics.Color;
 import android.opengl.GLES31;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+import android.widget.Toast;
 
 public class ParticlesRenderer implements GLSurfaceView.Renderer {
 
@@ -23,22 +33,41 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
     private final float[] mScaleVec = new float[2];
     private final float[] mOffsetVec = new float[] {-1.0f, -1.0f};
 
+    private final Context mContext;
     private SharedPreferences mPrefs;
     private ParticlesSurfaceView mParticlesSurfaceView;
-
+    // The simulation is shared by all the live wallpaper engines, and private otherwise.
+    private final ParticleSimulation mSimulation;
+    // Backend chosen for the compute_backend setting (see ComputeBackend): GLES unless another
+    // one can run on this device. Not in the settings dialog while GLES is the only backend.
+    private int mRequestedBackend = -1;
+    private ComputeBackend mComputeBackend;
+    private final boolean mSharedSimulation;
+    private int mContextGeneration = 0;
+    // Steps a private simulation with the simulation_thread setting (see SimulationThread).
+    // Started on the GL thread, released on the GL or the UI thread: swapped under mSimThreadLock.
+    private final Object mSimThreadLock = new Object();
+    private volatile SimulationThread mSimThread;
+    // GlResources group of the current context (0 once its objects were released).
+    private volatile int mGlGroup = 0;
+
+    // Programs are built in the background; a placeholder frame is drawn until they are ready.
+    private ProgramCompiler mCompiler;
+    private ProgramCompiler.Program mRenderJob, mCompositeJob;
     private int mRenderProgram = 0;
-    private int mComputeProgram = 0;
+    private int mCompositeProgram = 0;
 
     // Render Uniforms
-    private int uRScale, uROffset, uRPointSize, uRTimeScale, uRBlurStrength, uRGlowStrength, uRGradient, uRMode;
-    // Compute Uniforms
-    private int uCNumP, uCNumT, uCTouch, uCAtt, uCDrag, uCReset, uCRes;
+    private int uRScale, uROffset, uRPointSize, uRPixelScale, uRTimeScale, uRBlurStrength, uRGlowStrength, uRGradient, uRMode, uRVisibleBase;
+    // Culling variant of the render program (see getVertexShader), built once the simulation culls.
+    private ProgramCompiler.Program mCulledRenderJob;
+    private boolean mRenderCulls = false;
+    // Composite Uniforms
+    private int uPTex, uPFade, uPBG, uPStep;
 
     private int mWidth = 1;
     private int mHeight = 1;
-    private int mPartCount;
     private int mParticleSize;
-    private int mNumTouch;
 
     // --- Cached Preferences ---
     private boolean mConstantSpeed = false;
@@ -46,37 +75,111 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
     private boolean mAlphaBlending = false;
     private boolean mGlowMode = false;
     private boolean mMotionBlur = false;
-    private float mBlurStrength = 1.0f;
-    private float mGlowIntensity = 1.0f;
-    private int mF01Attraction = 100;
-    private float mF01Drag = 0.96f;
+    private volatile float mBlurStrength = 1.0f;
+    private int mTrailMode = TRAIL_MODE_GEOMETRY;
+    private float mTrailScale = 1.0f;
+    private boolean mTrailLowPrecision = false;
+    private float mRenderScale = 1.0f;
+    private boolean mMsaa = false;
+    private boolean mAdaptiveQuality = true;
+    private volatile float mGlowIntensity = 1.0f;
     private int mBGColorValue = 0xFF000000;
 
-    private int[] mSSBOs = new int[4]; // 0,1: Pos Ping-Pong (vec2 FP32); 2,3: Vel Ping-Pong (uint FP16)
-    private int mCurrentBufferIndex = 0;
 
+    // Palette lookup table: an immutable RGBA16F texture updated with glTexSubImage2D. The tables
+    // are built on a worker and cached by palette.
+    private static final int PALETTE_WIDTH = 256;
+    private static final int PALETTE_CACHE_SIZE = 8;
+    private static final Map<Palette, ByteBuffer> PALETTE_CACHE =
+            new LinkedHashMap<Palette, ByteBuffer>(PALETTE_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Palette, ByteBuffer> eldest) {
+                    return size() > PALETTE_CACHE_SIZE;
+                }
+            };
+    private static final ExecutorService PALETTE_WORKER = Executors.newSingleThreadExecutor();
     private int mGradientTex = 0;
-
-    private float[] mTouchPos = new float[32]; // 16 vec2
-    private float[] mActiveTouchPos = new float[32];
-    private int mActiveTouchCount = 0;
-    private final Object mTouchLock = new Object();
-
-    private boolean mInitialized = false;
-    private boolean mNeedsReset = false;
-    private boolean mUseDoubleBuffer = false;
+    private final AtomicInteger mPaletteRequests = new AtomicInteger();
+    private int mUploadedPaletteRequest = 0; // GL thread only.
+    private boolean mPaletteReady = false; // GL thread only.
+
+
+    // Trail modes (used when motion blur is on).
+    // Geometry: each particle draws its own trail (cost grows with the number of particles).
+    // Feedback: the previous frame is faded and the particles are drawn on top of it, in a pair
+    // of offscreen targets (one full screen pass, independent of the number of particles).
+    public static final int TRAIL_MODE_GEOMETRY = 0;
+    public static final int TRAIL_MODE_FEEDBACK = 1;
+    private final OffscreenTarget[] mTrailTargets = {new OffscreenTarget(), new OffscreenTarget()};
+    private int mTrailIndex = 0;
+    // Scene target used when rendering below the surface resolution, or with MSAA.
+    private final OffscreenTarget mSceneTarget = new OffscreenTarget();
+    private static final int MSAA_SAMPLES = 4;
+
+    private boolean mSurfaceReady = false;
+
+    // Thermal quality ladder (see QualityLadder). The thermal source also holds the performance
+    // hint session of the GL thread, so both are created with each surface.
+    private ThermalSource mThermalSource;
+    private QualityLadder mQuality;
 
     private long mLastFrameTimeNs = 0;
+    private final RenderMetrics mMetrics = new RenderMetrics();
+    // Vsync timestamp of the frame to render, set by the frame pacer (0 if not vsync-driven).
+    private volatile long mFrameTimeNs = 0;
+
+    // Touch replay (see TouchReplayer): set on the UI thread, run on the GL thread.
+    private volatile TouchReplayer mReplay;
+    private boolean mReplayStarted = false;
+
+    // Sweep benchmark run (see BenchmarkSweep): set on the UI thread, run on the GL thread.
+    private volatile BenchmarkSweep.Run mBenchmarkRun;
+    private volatile Runnable mBenchmarkDone;
+    private boolean mBenchmarkStarted = false;
+    private final int[] mScriptIds = new int[ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS];
+    private final float[] mScriptXs = new float[ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS];
+    private final float[] mScriptYs = new float[ParticlesSurfaceView.MAX_MAX_NUM_ATT_POINTS];
+
+    // Start-up timing: from the process start for the first renderer of the process (cold
+    // start), from the renderer creation otherwise.
+    public static final String TIME_TO_FIRST_FRAME = "time_to_first_frame_ms";
+    public static final String TIME_TO_FIRST_PARTICLE = "time_to_first_particle_ms";
+    private static boolean sColdStart = true;
+    private final long mStartTimeNs;
+    private boolean mFirstFrameDrawn = false;
+    private boolean mFirstParticleDrawn = false;
+
+    // Live metrics stream (see LiveMetricsServer): the GL thread only keeps the timings of the
+    // last frame, the samples are built on the publisher thread while a client is connected.
+    private static final AtomicInteger sLiveIds = new AtomicInteger();
+    private final String mLiveName;
+    private boolean mLiveMetrics = false;
+    private volatile long mComputeNs = 0;
+    private volatile long mDrawNs = 0;
+    private volatile int mConfigGeneration = 0;
+    private final MetricsStream.Source mLiveSource = new MetricsStream.Source() {
+        @Override
+        public String sampleJson() {
+            return sampleLiveMetrics();
+        }
+    };
 
     // ================= SHADERS =================
 
-    private final String mVertexShader =
-        "#version 310 es\n" +
+    /**
+     * The culling variant reads the particles through a visible list (binding 2) starting at
+     * uVisibleBase, or directly if uVisibleBase is negative. It needs a third vertex storage
+     * block, so it is only built once the simulation culls.
+     */
+    private static String getVertexShader(boolean culled) {
+        return "#version 310 es\n" +
         "precision highp float;\n" +
         "layout(std430, binding = 0) readonly buffer PosB { vec2 pB[]; };\n" +
         "layout(std430, binding = 1) readonly buffer VelB { uint vB[]; };\n" +
+        (culled ? "layout(std430, binding = 2) readonly buffer VisB { uint visB[]; };\n" +
+        "uniform int uVisibleBase;\n" : "") +
         "uniform vec2 uScale, uOffset;\n" +
-        "uniform mediump float uPointSize, uTimeScale, uBlurStrength, uGlowStrength;\n" +
+        "uniform mediump float uPointSize, uPixelScale, uTimeScale, uBlurStrength, uGlowStrength;\n" +
         "uniform int uMode;\n" +
         "uniform mediump sampler2D uGradient;\n" +
         "out lowp vec4 vColor;\n" +
@@ -85,6 +188,7 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
         "  if (uMode == 1) idx = uint(gl_VertexID / 3);\n" +
         "  else if (uMode == 2) idx = uint(gl_VertexID >> 1);\n" +
         "  else idx = uint(gl_VertexID);\n" +
+        (culled ? "  if (uVisibleBase >= 0) idx = visB[uint(uVisibleBase) + idx];\n" : "") +
         "  vec2 pos = pB[idx];\n" +
         "  vec2 vel = unpackHalf2x16(vB[idx]);\n" +
         "  mediump vec2 v = vel / uTimeScale;\n" +
@@ -101,7 +205,7 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
         "    pos -= vel * uBlurStrength;\n" +
         "  }\n" +
         "  gl_Position = vec4(pos * uScale + uOffset, 0.0, 1.0);\n" +
-        "  gl_PointSize = (uMode == 0) ? uPointSize : 1.0;\n" +
+        "  gl_PointSize = (uMode == 0) ? max(uPointSize * uPixelScale, 1.0) : 1.0;\n" +
         "  mediump float d2 = dot(v, v);\n" +
         "  mediump float sc = clamp(log2(d2 + 1.0) * 0.15, 0.0, 1.0);\n" +
         "  vColor = texture(uGradient, vec2(sc, 0.5));\n" +
@@ -112,6 +216,7 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
         "    vColor.a = 0.0;\n" +
         "  }\n" +
         "}\n";
+    }
 
     private final String mFragmentShader =
         "#version 310 es\n" +
@@ -120,74 +225,72 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
         "out vec4 fragColor;\n" +
         "void main() { fragColor = vColor; }\n";
 
-    private int mWorkgroupSize = 256;
+    // Full screen triangle (no vertex buffer needed) sampling an offscreen target.
+    // The sampled color is faded toward the background color by uFade (1.0 = plain copy), and
+    // by at least uStep per channel: the fade alone would stop short of the background, once a
+    // step rounds to nothing in the 8-bit (or 565) trail target, and leave ghost trails.
+    private final String mCompositeVertexShader =
+        "#version 310 es\n" +
+        "out vec2 vUV;\n" +
+        "void main() {\n" +
+        "  vUV = vec2(float((gl_VertexID << 1) & 2), float(gl_VertexID & 2));\n" +
+        "  gl_Position = vec4(vUV * 2.0 - 1.0, 0.0, 1.0);\n" +
+        "}\n";
 
-    private String getComputeShaderCode() {
-        return "#version 310 es\n" +
-        "layout (local_size_x = " + mWorkgroupSize + ") in;\n" +
-        "precision highp float;\n" +
-        "layout(std430, binding = 0) readonly restrict buffer InPos { vec4 inP[]; };\n" +
-        "layout(std430, binding = 1) readonly restrict buffer InVel { uvec2 inV[]; };\n" +
-        "layout(std430, binding = 2) writeonly restrict buffer OutPos { vec4 outP[]; };\n" +
-        "layout(std430, binding = 3) writeonly restrict buffer OutVel { uvec2 outV[]; };\n" +
-        "uniform int uNumP, uNumT;\n" +
-        "uniform bool uReset;\n" +
-        "uniform vec2 uRes;\n" +
-        "uniform vec2 uT[16];\n" +
-        "uniform float uAtt, uDrag;\n" +
-        "shared vec2 sharedT[16];\n" +
-        "uint hash(uint x) { x = ((x >> 16) ^ x) * 0x45d9f3b1u; x = ((x >> 16) ^ x) * 0x45d9f3b1u; x = (x >> 16) ^ x; return x; }\n" +
+    private final String mCompositeFragmentShader =
+        "#version 310 es\n" +
+        "precision mediump float;\n" +
+        "in vec2 vUV;\n" +
+        "uniform sampler2D uTex;\n" +
+        "uniform float uFade;\n" +
+        "uniform vec3 uBG;\n" +
+        "uniform vec3 uStep;\n" +
+        "out vec4 fragColor;\n" +
         "void main() {\n" +
-        "  uint i = gl_GlobalInvocationID.x;\n" +
-        "  if (i >= uint(uNumP >> 1)) return;\n" +
-        "  if (uReset) {\n" +
-        "    uint idx = (i << 1);\n" +
-        "    uint h1 = hash(idx), h2 = hash(idx + 1337u);\n" +
-        "    vec2 r1 = vec2(float(h1 & 0xFFFFu), float(h1 >> 16)) * 1.5258e-5;\n" +
-        "    vec2 r2 = vec2(float(h2 & 0xFFFFu), float(h2 >> 16)) * 1.5258e-5;\n" +
-        "    vec2 rad = sqrt(vec2(r1.x, r2.x)) * min(uRes.x, uRes.y) * 0.45;\n" +
-        "    vec2 th = vec2(r1.y, r2.y) * 6.2831853;\n" +
-        "    outP[i] = uRes.xyxy * 0.5 + vec4(cos(th.x), sin(th.x), cos(th.y), sin(th.y)) * rad.xxyy;\n" +
-        "    outV[i] = uvec2(packHalf2x16(vec2(0.0)), packHalf2x16(vec2(0.0)));\n" +
-        "    return;\n" +
-        "  }\n" +
-        "  uint localId = gl_LocalInvocationIndex;\n" +
-        "  if (localId < 16u) { sharedT[localId] = uT[localId]; }\n" +
-        "  barrier();\n" +
-        "  vec4 p = inP[i];\n" +
-        "  vec2 v1 = unpackHalf2x16(inV[i].x), v2 = unpackHalf2x16(inV[i].y);\n" +
-        "  vec2 acc1 = vec2(0.0), acc2 = vec2(0.0);\n" +
-        "  for (int j = 0; j < uNumT; j++) {\n" +
-        "    vec2 t = sharedT[j];\n" +
-        "    vec4 d = t.xyxy - p;\n" +
-        "    vec2 distSq = vec2(dot(d.xy, d.xy), dot(d.zw, d.zw));\n" +
-        "    vec2 near = step(distSq, vec2(0.1));\n" +
-        "    uint h = hash((i << 1) + uint(j));\n" +
-        "    vec2 rnd = vec2(float(h & 0xFFFFu), float(h >> 16)) * 9.587e-5; // normalized to ~6.28\n" +
-        "    vec4 noise = vec4(cos(rnd.x), sin(rnd.x), cos(rnd.y), sin(rnd.y));\n" +
-        "    vec2 invDist = 1.0 / max(distSq, vec2(1.0));\n" +
-        "    acc1 += uAtt * mix(d.xy * invDist.x, noise.xy, near.x);\n" +
-        "    acc2 += uAtt * mix(d.zw * invDist.y, noise.zw, near.y);\n" +
-        "  }\n" +
-        "  v1 = (v1 + acc1) * uDrag; v2 = (v2 + acc2) * uDrag;\n" +
-        "  p += vec4(v1, v2);\n" +
-        "  outP[i] = p; outV[i] = uvec2(packHalf2x16(v1), packHalf2x16(v2));\n" +
+        "  vec3 d = texture(uTex, vUV).rgb - uBG;\n" +
+        "  vec3 a = abs(d);\n" +
+        "  a = max(min(a * uFade, a - uStep), vec3(0.0));\n" +
+        "  fragColor = vec4(uBG + sign(d) * a, 1.0);\n" +
         "}\n";
-    }
+
 
     public ParticlesRenderer(Context context, ParticlesSurfaceView view) {
+        mContext = context.getApplicationContext();
         mPrefs = context.getSharedPreferences(ParticlesSurfaceView.SHARED_PREFS_NAME, Context.MODE_PRIVATE);
         mParticlesSurfaceView = view;
+        mStartTimeNs = getStartTimeNs();
+        GlResources.setDebug((mContext.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+        mSharedSimulation = view != null && view.isWallpaper();
+        mLiveName = (mSharedSimulation ? "wallpaper-" : "app-") + sLiveIds.incrementAndGet();
+        mSimulation = mSharedSimulation ? SharedSimulation.acquire(context) : new ParticleSimulation(context, false);
         loadConfig();
     }
 
+    /** Releases the simulation (the shared one is only freed when its last user releases it). */
+    public void release() {
+        releaseSimThread();
+        if (mSharedSimulation) SharedSimulation.release(mSimulation);
+        if (mCompiler != null) mCompiler.release();
+        if (mThermalSource != null) mThermalSource.release();
+        if (mLiveMetrics) LiveMetricsServer.unregister(mLiveSource);
+        mLiveMetrics = false;
+    }
+
+    private static synchronized long getStartTimeNs() {
+        boolean coldStart = sColdStart;
+        sColdStart = false;
+        if (coldStart && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartElapsedRealtime() * 1000000L;
+        }
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public ParticleSimulation getSimulation() {
+        return mSimulation;
+    }
+
     private void loadConfig() {
-        mPartCount = mPrefs.getInt("NumParticles", 1000000);
-        if (mPartCount % 2 != 0) mPartCount++;
         mParticleSize = mPrefs.getInt("ParticleSize", 1);
-        mNumTouch = mPrefs.getInt("NumAttPoints", 5);
-        mUseDoubleBuffer = mPrefs.getBoolean("use_double_buffer", false);
-        mWorkgroupSize = mPrefs.getInt("WorkgroupSize", 256);
 
         // --- Cache SharedPreferences ---
         mConstantSpeed = mPrefs.getBoolean("constant_speed", false);
@@ -196,245 +299,714 @@ public class ParticlesRenderer implements GLSurfaceView.Renderer {
         mGlowMode = mPrefs.getBoolean("glow_mode", false);
         mMotionBlur = mPrefs.getBoolean("motion_blur", false);
         mBlurStrength = mPrefs.getFloat("blur_strength", 1.0f);
+        mTrailMode = mPrefs.getInt("trail_mode", TRAIL_MODE_GEOMETRY);
+        mTrailScale = Math.max(0.25f, Math.min(1.0f, mPrefs.getFloat("trail_scale", 1.0f)));
+        mTrailLowPrecision = mPrefs.getBoolean("trail_low_precision", false);
+        // The live wallpaper has its own (usually lower) render scale.
+        boolean wallpaper = mParticlesSurfaceView != null && mParticlesSurfaceView.isWallpaper();
+        mRenderScale = Math.max(0.5f, Math.min(1.0f,
+                mPrefs.getFloat(wallpaper ? "wallpaper_render_scale" : "render_scale", 1.0f)));
+        mMsaa = mPrefs.getBoolean("render_msaa", false);
+        mAdaptiveQuality = mPrefs.getBoolean("adaptive_quality", true);
         mGlowIntensity = mPrefs.getFloat("glow_intensity", 1.0f);
-        mF01Attraction = mPrefs.getInt("F01Attraction", 100);
-        mF01Drag = 1.0f - mPrefs.getInt("F01Drag", 4) / 100f;
         mBGColorValue = mPrefs.getInt("BGColor", 0xFF000000);
-
-        synchronized (mTouchLock) {
-            for (int i = 0; i < 32; i++) mTouchPos[i] = -1.0f;
-            updateActiveTouchList();
+        int backend = mPrefs.getInt("compute_backend", ComputeBackend.GLES);
+        if (backend != mRequestedBackend) {
+            mRequestedBackend = backend;
+            mComputeBackend = ComputeBackend.select(mContext, backend, mMetrics);
+        }
+        boolean liveMetrics = mPrefs.getBoolean("live_metrics", false);
+        if (liveMetrics != mLiveMetrics) {
+            mLiveMetrics = liveMetrics;
+            if (liveMetrics) LiveMetricsServer.register(mLiveSource);
+            else LiveMetricsServer.unregister(mLiveSource);
         }
     }
 
     public void onPrefsChanged() {
-        int oldPartCount = mPartCount;
+        PerfTrace.begin("loadConfig");
         loadConfig();
-        if (mPartCount != oldPartCount) mNeedsReset = true;
-        mInitialized = false;
+        PerfTrace.end();
+        mConfigGeneration++;
+        mSimulation.onPrefsChanged();
+    }
+
+    /**
+     * Applies uniform-only settings to the running renderer, without resetting anything and
+     * without saving them (see onPrefsChanged to go back to the saved settings).
+     */
+    public void previewTuning(int attraction, int dragPercent, float glowIntensity, float blurStrength) {
+        mSimulation.setForces(attraction, dragPercent);
+        mGlowIntensity = glowIntensity;
+        mBlurStrength = blurStrength;
     }
 
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
-        if (mParticlesSurfaceView != null) mParticlesSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
-        mRenderProgram = createProgram(mVertexShader, mFragmentShader);
-        uRScale = GLES31.glGetUniformLocation(mRenderProgram, "uScale");
-        uROffset = GLES31.glGetUniformLocation(mRenderProgram, "uOffset");
-        uRPointSize = GLES31.glGetUniformLocation(mRenderProgram, "uPointSize");
-        uRTimeScale = GLES31.glGetUniformLocation(mRenderProgram, "uTimeScale");
-        uRBlurStrength = GLES31.glGetUniformLocation(mRenderProgram, "uBlurStrength");
-        uRGlowStrength = GLES31.glGetUniformLocation(mRenderProgram, "uGlowStrength");
-        uRGradient = GLES31.glGetUniformLocation(mRenderProgram, "uGradient");
-        uRMode = GLES31.glGetUniformLocation(mRenderProgram, "uMode");
-
-        mComputeProgram = createComputeProgram(getComputeShaderCode());
-        uCNumP = GLES31.glGetUniformLocation(mComputeProgram, "uNumP");
-        uCNumT = GLES31.glGetUniformLocation(mComputeProgram, "uNumT");
-        uCTouch = GLES31.glGetUniformLocation(mComputeProgram, "uT");
-        uCAtt = GLES31.glGetUniformLocation(mComputeProgram, "uAtt");
-        uCDrag = GLES31.glGetUniformLocation(mComputeProgram, "uDrag");
-        uCReset = GLES31.glGetUniformLocation(mComputeProgram, "uReset");
-        uCRes = GLES31.glGetUniformLocation(mComputeProgram, "uRes");
+        if (mParticlesSurfaceView != null) mParticlesSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        // The objects of a context lost without onSurfaceLost went away with it.
+        releaseSimThread();
+        if (mGlGroup != 0) dropGlGroup(false);
+        mGlGroup = mSharedSimulation ? SharedSimulation.attachSurface() : GlResources.newGroup();
+        // The share group may have outlived the release of its objects.
+        if (mSharedSimulation) GlResources.openGroup(mGlGroup);
+        GlResources.setCurrentGroup(mGlGroup);
+        PerfTrace.begin("createPrograms");
+        mMetrics.increment(RenderMetrics.PROGRAM_REBUILDS);
+        // The previous compiler (if any) served a context that is gone.
+        if (mCompiler != null) mCompiler.release();
+        mCompiler = new ProgramCompiler();
+        mRenderProgram = 0; mCompositeProgram = 0;
+        mRenderJob = mCompiler.compile(getVertexShader(false), mFragmentShader);
+        mCulledRenderJob = null;
+        mRenderCulls = false;
+        mCompositeJob = mCompiler.compile(mCompositeVertexShader, mCompositeFragmentShader);
+        // A new context: the offscreen targets of the previous one (if any) are gone.
+        for (OffscreenTarget target : mTrailTargets) target.forget();
+        mSceneTarget.forget();
+        PerfTrace.end();
+        if (mThermalSource != null) mThermalSource.release();
+        mThermalSource = new AndroidThermalSource(mContext, getTargetWorkDuration());
+        mQuality = new QualityLadder(mThermalSource);
+        applyQuality();
+
+        // A private simulation gets a new context each time; a shared one only when the share
+        // group was recreated.
+        mSimulation.onSurfaceCreated(mSharedSimulation ? SharedSimulation.getGeneration() : ++mContextGeneration, mMetrics, mCompiler);
 
         int[] tex = new int[1]; GLES31.glGenTextures(1, tex, 0); mGradientTex = tex[0];
+        GlResources.track(GlResources.TEXTURE, mGradientTex, TAG);
+        GlResources.setBytes(GlResources.TEXTURE, mGradientTex, PALETTE_WIDTH * 8);
         GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, mGradientTex);
+        GLES31.glTexStorage2D(GLES31.GL_TEXTURE_2D, 1, GLES31.GL_RGBA16F, PALETTE_WIDTH, 1);
         GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_MIN_FILTER, GLES31.GL_LINEAR);
         GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_MAG_FILTER, GLES31.GL_LINEAR);
         GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_WRAP_S, GLES31.GL_CLAMP_TO_EDGE);
         GLES31.glTexParameteri(GLES31.GL_TEXTURE_2D, GLES31.GL_TEXTURE_WRAP_T, GLES31.GL_CLAMP_TO_EDGE);
+        // The new texture needs the current palette, whatever was uploaded to the previous one.
+        mUploadedPaletteRequest = 0;
+        mPaletteReady = false;
         updateGradient();
     }
 
+    /**
+     * Deletes the GL objects of the renderer, and those of the simulation unless other wallpaper
+     * engines still draw it, while the context is still current (it goes away with the pause).
+     * Whatever is left in the group of a context going away is then reported as leaked.
+     * Must be called on the GL thread; does nothing if the objects are already released.
+     */
+    public void onSurfaceLost() {
+        if (mGlGroup == 0) return;
+        mSurfaceReady = false;
+        for (ProgramCompiler.Program job : new ProgramCompiler.Program[] {mRenderJob, mCompositeJob, mCulledRenderJob}) {
+            if (job != null) job.discard();
+        }
+        mRenderJob = null; mCompositeJob = null; mCulledRenderJob = null;
+        GlResources.delete(GlResources.PROGRAM, mRenderProgram);
+        GlResources.delete(GlResources.PROGRAM, mCompositeProgram);
+        mRenderProgram = 0; mCompositeProgram = 0; mRenderCulls = false;
+        GlResources.delete(GlResources.TEXTURE, mGradientTex);
+        mGradientTex = 0; mPaletteReady = false;
+        for (OffscreenTarget target : mTrailTargets) target.release();
+        mSceneTarget.release();
+        releaseSimThread();
+        dropGlGroup(true);
+    }
+
+    /** Stops the simulation thread (if any) before its share context goes away. */
+    private void releaseSimThread() {
+        SimulationThread thread;
+        synchronized (mSimThreadLock) {
+            thread = mSimThread;
+            mSimThread = null;
+        }
+        if (thread != null) thread.release();
+    }
+
+    /**
+     * Leaves the group of the current context. The simulation objects are deleted (if
+     * deleteObjects) with the last context of the group, and the group is then released.
+     */
+    private void dropGlGroup(boolean deleteObjects) {
+        boolean last = !mSharedSimulation || SharedSimulation.detachSurface();
+        if (last && deleteObjects) mSimulation.destroy();
+        // Its worker deletes the programs still building once they are built.
+        if (mCompiler != null) mCompiler.release();
+        mCompiler = null;
+        if (last) GlResources.releaseGroup(mGlGroup, deleteObjects);
+        mGlGroup = 0;
+    }
+
     @Override
     public void onDrawFrame(GL10 unused) {
-        if (!mInitialized) { if (mWidth > 1) { initBuffers(mNeedsReset || !mInitialized); mNeedsReset = false; } else return; }
-        long now = System.nanoTime(); if (mLastFrameTimeNs == 0) mLastFrameTimeNs = now;
+        if (!mSurfaceReady) return;
+        long frameStartNs = System.nanoTime();
+        mSimulation.applyTrim(mMetrics);
+        boolean programsReady = areProgramsReady() && mPaletteReady;
+        if (!programsReady || !mSimulation.isInitialized()) {
+            if (programsReady) {
+                PerfTrace.begin("initBuffers");
+                String stepDown = mSimulation.initBuffers(mMetrics, mCompiler);
+                PerfTrace.end();
+                if (stepDown != null) reportAllocationStepDown(stepDown);
+            }
+            if (!programsReady || !mSimulation.isInitialized()) {
+                drawPlaceholder();
+                return;
+            }
+            updateScale();
+        }
+        long vsyncNs = mFrameTimeNs;
+        long now = vsyncNs != 0 ? vsyncNs : System.nanoTime(); if (mLastFrameTimeNs == 0) mLastFrameTimeNs = now;
+        int partCount = mSimulation.getParticleCount();
+        long frameIntervalNs = now - mLastFrameTimeNs;
+        mMetrics.recordFrame(frameIntervalNs, partCount);
         float deltaTime = (now - mLastFrameTimeNs) * 1e-9f; mLastFrameTimeNs = now;
-
-        int inPosB, outPosB, inVelB, outVelB;
-        if (mUseDoubleBuffer) {
-            inPosB = mSSBOs[mCurrentBufferIndex]; outPosB = mSSBOs[1 - mCurrentBufferIndex];
-            inVelB = mSSBOs[mCurrentBufferIndex + 2]; outVelB = mSSBOs[1 - mCurrentBufferIndex + 2];
-        } else { inPosB = outPosB = mSSBOs[0]; inVelB = outVelB = mSSBOs[2]; }
+        long computeStartNs = System.nanoTime();
 
         float fpsFactor = 1.1f;
-        if (mConstantSpeed) {
+        TouchReplayer replay = mReplay;
+        BenchmarkSweep.Run benchmark = mBenchmarkRun;
+        if (benchmark != null) {
+            // Fixed time step too, with the attractor script of the sweep.
+            scriptFrame(benchmark);
+        } else if (replay != null) {
+            // Fixed time step: the replay must not depend on the actual frame times.
+            replayFrame(replay);
+        } else if (mConstantSpeed) {
             if (deltaTime <= 0.0001f) deltaTime = 1.0f/120.0f;
             fpsFactor = (deltaTime * 120.0f) * 1.1f;
             if (fpsFactor > 12.0f) fpsFactor = 12.0f;
         }
 
-        GLES31.glUseProgram(mComputeProgram);
-        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, inPosB);
-        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, inVelB);
-        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 2, outPosB);
-        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 3, outVelB);
-        GLES31.glUniform1i(uCNumP, mPartCount);
+        // A threaded simulation steps at the paced rate, except for replays and benchmark runs
+        // which need one step per frame. A shared simulation is only stepped by the first engine
+        // drawing this vsync.
+        SimulationThread simThread = mSimThread;
+        if (!mSimulation.isThreaded()) {
+            releaseSimThread();
+            simThread = null;
+        } else if (simThread == null) {
+            simThread = new SimulationThread(mSimulation, mMetrics, mCompiler);
+            synchronized (mSimThreadLock) {
+                mSimThread = simThread;
+            }
+        }
+        if (simThread != null) {
+            simThread.setPaused(replay != null || benchmark != null);
+            simThread.setPacing(1e9f / getTargetWorkDuration(), mConstantSpeed);
+        }
+        if (simThread == null || !simThread.isRunning() || replay != null || benchmark != null) {
+            mSimulation.step(vsyncNs, fpsFactor, mMetrics, mCompiler);
+        }
+        long renderStartNs = System.nanoTime();
+
+        // Feedback trails render in their own targets (at the trail scale times the render scale).
+        // Otherwise an offscreen scene target is only used for a lower render scale or MSAA.
+        // The quality ladder may lower the render scale and change the trails.
+        QualityLadder.Level quality = mQuality.getLevel();
+        boolean motionBlur = mMotionBlur && quality.trails != QualityLadder.TRAILS_OFF;
+        int trailMode = quality.trails == QualityLadder.TRAILS_FEEDBACK ? TRAIL_MODE_FEEDBACK : mTrailMode;
+        float renderScale = Math.min(mRenderScale, quality.renderScale);
+        boolean feedbackTrails = motionBlur && trailMode == TRAIL_MODE_FEEDBACK;
+        boolean sceneTarget = !feedbackTrails && (renderScale < 1.0f || mMsaa);
+        if (!feedbackTrails && mTrailTargets[0].getTexture() != 0) {
+            for (OffscreenTarget target : mTrailTargets) target.release();
+        }
+        if (!sceneTarget && mSceneTarget.getTexture() != 0) mSceneTarget.release();
+        float pixelScale = 1.0f;
+        if (feedbackTrails) {
+            PerfTrace.begin("fadeTrails");
+            pixelScale = fadeTrails(renderScale);
+            PerfTrace.end();
+        } else {
+            if (sceneTarget) {
+                mSceneTarget.resize(Math.round(mWidth * renderScale), Math.round(mHeight * renderScale),
+                        false, mMsaa ? MSAA_SAMPLES : 1);
+                mSceneTarget.bind();
+                pixelScale = mSceneTarget.getWidth() / (float) mWidth;
+            }
+            GLES31.glClearColor(Color.red(mBGColorValue)/255f, Color.green(mBGColorValue)/255f, Color.blue(mBGColorValue)/255f, 1f);
+            GLES31.glClear(GLES31.GL_COLOR_BUFFER_BIT);
+        }
+        synchronized (mSimulation) {
+            int drawSlot = mSimulation.beginDraw();
+            drawParticles(drawSlot, partCount, fpsFactor, motionBlur && !feedbackTrails, pixelScale);
+            mSimulation.endDraw(drawSlot);
+        }
+        if (feedbackTrails) {
+            PerfTrace.begin("compositeTrails");
+            compositeTrails();
+            PerfTrace.end();
+        } else if (sceneTarget) {
+            PerfTrace.begin("compositeScene");
+            mSceneTarget.resolve();
+            GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, 0);
+            GLES31.glViewport(0, 0, mWidth, mHeight);
+            GLES31.glDisable(GLES31.GL_BLEND);
+            drawFullscreen(mSceneTarget.getTexture(), 1.0f);
+            PerfTrace.end();
+        }
+
+        if (!mFirstParticleDrawn) {
+            mFirstParticleDrawn = true;
+            recordStartupTime(TIME_TO_FIRST_PARTICLE);
+        }
+        long endNs = System.nanoTime();
+        mComputeNs = renderStartNs - computeStartNs;
+        mDrawNs = endNs - renderStartNs;
+        PerfTrace.counter("particles", partCount);
+        updateQuality(endNs, endNs - frameStartNs);
+        if (benchmark != null && benchmark.recordFrame(frameIntervalNs, endNs - frameStartNs)) finishBenchmarkRun(benchmark);
+        if (mParticlesSurfaceView != null) {
+            if (vsyncNs != 0) mParticlesSurfaceView.getFramePacer().onFrameDrawn(vsyncNs);
+            mParticlesSurfaceView.notifyFrameRendered(renderStartNs - computeStartNs, endNs - renderStartNs);
+        }
+    }
+
+    /**
+     * Resets the simulation and replays the given touch recording, one fixed time step per
+     * frame, from the next frame on.
+     */
+    public void startReplay(TouchReplayer replay) {
+        mSimulation.reset();
+        mReplayStarted = false;
+        mReplay = replay;
+    }
+
+    /**
+     * Resets the simulation and runs a cell of a sweep benchmark from the next frame on (the
+     * settings of the cell must already be saved). onDone is posted to the UI thread once the
+     * run is done.
+     */
+    public void startBenchmarkRun(BenchmarkSweep.Run run, Runnable onDone) {
+        mSimulation.reset();
+        mBenchmarkStarted = false;
+        mBenchmarkDone = onDone;
+        mBenchmarkRun = run;
+    }
+
+    private void scriptFrame(BenchmarkSweep.Run run) {
+        if (!mBenchmarkStarted) {
+            mMetrics.reset();
+            mBenchmarkStarted = true;
+        }
+        if (mParticlesSurfaceView == null) return;
+        int count = BenchmarkSweep.getAttractors(run.getFrame(), mWidth, mHeight, mScriptIds, mScriptXs, mScriptYs);
+        mParticlesSurfaceView.applyTouches(count, mScriptIds, mScriptXs, mScriptYs);
+    }
+
+    private void finishBenchmarkRun(BenchmarkSweep.Run run) {
+        mBenchmarkRun = null;
+        mSimulation.recordStats(mMetrics);
+        run.setMetricsJson(mMetrics.toJson());
+        Log.i(TAG, "Benchmark cell " + run.getCell().getName() + ": " + run.getCell().getPercentileMs(50, false) + " ms");
+        Runnable onDone = mBenchmarkDone;
+        if (onDone != null && mParticlesSurfaceView != null) mParticlesSurfaceView.post(onDone);
+    }
+
+    /** Whether a replay or a benchmark run drives the attraction points. */
+    public boolean isReplaying() {
+        return mReplay != null || mBenchmarkRun != null;
+    }
 
-        synchronized (mTouchLock) {
-            GLES31.glUniform1i(uCNumT, mActiveTouchCount);
-            GLES31.glUniform2fv(uCTouch, 16, mActiveTouchPos, 0);
+    private void replayFrame(TouchReplayer replay) {
+        if (!mReplayStarted) {
+            // The frame times of the benchmark only: drop what was recorded before.
+            mMetrics.reset();
+            mReplayStarted = true;
         }
+        if (replay.replayFrame(mParticlesSurfaceView, mWidth, mHeight)) return;
+        mReplay = null;
+        mMetrics.set("replay_frames", replay.getFrame());
+        mSimulation.recordStats(mMetrics);
+        final String result = mMetrics.toJson();
+        Log.i(TAG, "Replay of " + replay.getFile().getName() + ": " + result);
+        File resultFile = new File(replay.getFile().getPath() + ".result.json");
+        try {
+            FileWriter writer = new FileWriter(resultFile);
+            try {
+                writer.write(result);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + resultFile, e);
+        }
+    }
 
-        GLES31.glUniform1f(uCAtt, (float)mF01Attraction * fpsFactor);
-        GLES31.glUniform1f(uCDrag, mF01Drag);
-        GLES31.glUniform2f(uCRes, (float)mWidth, (float)mHeight);
+    /**
+     * Polls the background compilation of the render and composite programs (never blocks),
+     * and gets their uniform locations once they are ready.
+     */
+    private boolean areProgramsReady() {
+        if (mRenderProgram != 0 && mCompositeProgram != 0) return true;
+        if (!mRenderJob.isReady() || !mCompositeJob.isReady()) return false;
+        mRenderProgram = mRenderJob.get();
+        getRenderUniforms();
+
+        mCompositeProgram = mCompositeJob.get();
+        mRenderJob = null; mCompositeJob = null;
+        uPTex = GLES31.glGetUniformLocation(mCompositeProgram, "uTex");
+        uPFade = GLES31.glGetUniformLocation(mCompositeProgram, "uFade");
+        uPBG = GLES31.glGetUniformLocation(mCompositeProgram, "uBG");
+        uPStep = GLES31.glGetUniformLocation(mCompositeProgram, "uStep");
+        return true;
+    }
 
-        GLES31.glDispatchCompute((mPartCount / 2 + mWorkgroupSize - 1) / mWorkgroupSize, 1, 1);
-        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+    /**
+     * Whether the culling variant of the render program is ready, in which case it replaces
+     * the render program (it can also draw without a visible list). Builds it on first use.
+     */
+    private boolean isCulledProgramReady() {
+        if (mRenderCulls) return true;
+        if (mCulledRenderJob == null) {
+            mMetrics.increment(RenderMetrics.PROGRAM_REBUILDS);
+            mCulledRenderJob = mCompiler.compile(getVertexShader(true), mFragmentShader);
+        }
+        if (!mCulledRenderJob.isReady()) return false;
+        GlResources.delete(GlResources.PROGRAM, mRenderProgram);
+        mRenderProgram = mCulledRenderJob.get();
+        mCulledRenderJob = null;
+        getRenderUniforms();
+        mRenderCulls = true;
+        return true;
+    }
 
+    private void getRenderUniforms() {
+        uRScale = GLES31.glGetUniformLocation(mRenderProgram, "uScale");
+        uROffset = GLES31.glGetUniformLocation(mRenderProgram, "uOffset");
+        uRPointSize = GLES31.glGetUniformLocation(mRenderProgram, "uPointSize");
+        uRPixelScale = GLES31.glGetUniformLocation(mRenderProgram, "uPixelScale");
+        uRTimeScale = GLES31.glGetUniformLocation(mRenderProgram, "uTimeScale");
+        uRBlurStrength = GLES31.glGetUniformLocation(mRenderProgram, "uBlurStrength");
+        uRGlowStrength = GLES31.glGetUniformLocation(mRenderProgram, "uGlowStrength");
+        uRGradient = GLES31.glGetUniformLocation(mRenderProgram, "uGradient");
+        uRMode = GLES31.glGetUniformLocation(mRenderProgram, "uMode");
+        uRVisibleBase = GLES31.glGetUniformLocation(mRenderProgram, "uVisibleBase");
+    }
+
+    /** Cheap frame shown while the programs compile: the background color only. */
+    private void drawPlaceholder() {
+        GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, 0);
+        GLES31.glViewport(0, 0, mWidth, mHeight);
         GLES31.glClearColor(Color.red(mBGColorValue)/255f, Color.green(mBGColorValue)/255f, Color.blue(mBGColorValue)/255f, 1f);
         GLES31.glClear(GLES31.GL_COLOR_BUFFER_BIT);
+        if (!mFirstFrameDrawn) {
+            mFirstFrameDrawn = true;
+            recordStartupTime(TIME_TO_FIRST_FRAME);
+        }
+    }
 
+    private void recordStartupTime(String name) {
+        double ms = (SystemClock.elapsedRealtimeNanos() - mStartTimeNs) * 1e-6;
+        mMetrics.set(name, ms);
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f", name, ms));
+        if (name.equals(TIME_TO_FIRST_PARTICLE) && !mFirstFrameDrawn) {
+            mFirstFrameDrawn = true;
+            mMetrics.set(TIME_TO_FIRST_FRAME, ms);
+        }
+    }
+
+    /**
+     * Draws the particles of the given slot in the current framebuffer.
+     * geometryTrails draws the per-particle trails; pixelScale is the resolution of the target
+     * relative to the surface (positions stay in surface pixels, only point sizes are scaled).
+     */
+    private void drawParticles(int drawSlot, int partCount, float fpsFactor, boolean geometryTrails, float pixelScale) {
         if (mAlphaBlending || mGlowMode) {
             GLES31.glEnable(GLES31.GL_BLEND);
             GLES31.glBlendFunc(GLES31.GL_SRC_ALPHA, mGlowMode ? GLES31.GL_ONE : GLES31.GL_ONE_MINUS_SRC_ALPHA);
         } else GLES31.glDisable(GLES31.GL_BLEND);
 
+        // Until the culling variant is built, all the particles are drawn.
+        boolean culled = mSimulation.usesCulling() && isCulledProgramReady();
         GLES31.glUseProgram(mRenderProgram);
         GLES31.glUniform2fv(uRScale, 1, mScaleVec, 0);
         GLES31.glUniform2fv(uROffset, 1, mOffsetVec, 0);
         GLES31.glUniform1f(uRPointSize, (float)mParticleSize);
+        GLES31.glUniform1f(uRPixelScale, pixelScale);
         GLES31.glUniform1f(uRTimeScale, mColorCorrection ? fpsFactor : 1.0f);
-        GLES31.glUniform1f(uRBlurStrength, mMotionBlur ? mBlurStrength : 0.0f);
+        GLES31.glUniform1f(uRBlurStrength, geometryTrails ? mBlurStrength : 0.0f);
         GLES31.glUniform1f(uRGlowStrength, mGlowMode ? mGlowIntensity : 1.0f);
-        GLES31.glUniform1i(uRMode, (mMotionBlur && mParticleSize > 1) ? 1 : 0);
+        GLES31.glUniform1i(uRMode, (geometryTrails && mParticleSize > 1) ? 1 : 0);
 
         GLES31.glActiveTexture(GLES31.GL_TEXTURE0); GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, mGradientTex);
         GLES31.glUniform1i(uRGradient, 0);
 
-        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, outPosB);
-        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, outVelB);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, mSimulation.getPositionBuffer(drawSlot));
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, mSimulation.getVelocityBuffer(drawSlot));
+        if (mRenderCulls) GLES31.glUniform1i(uRVisibleBase, culled ? mSimulation.getVisibleBase(drawSlot) : -1);
+        if (culled) GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 2, mSimulation.getVisibleBuffer());
+        boolean indirect = culled || mSimulation.usesEmitters();
 
-        if (mMotionBlur) {
+        if (geometryTrails) {
             if (mParticleSize > 1) {
                 // Pass 1: Draw Triangle Trail behind the particle
+                PerfTrace.begin("drawTrails");
                 GLES31.glUniform1i(uRMode, 1);
-                GLES31.glDrawArrays(GLES31.GL_TRIANGLES, 0, mPartCount * 3);
+                drawArrays(GLES31.GL_TRIANGLES, ParticleEmitter.DRAW_TRIANGLES, drawSlot, partCount * 3, indirect);
+                PerfTrace.end();
                 // Pass 2: Draw Square Head (Particle itself)
+                PerfTrace.begin("drawPoints");
                 GLES31.glUniform1i(uRMode, 0);
-                GLES31.glDrawArrays(GLES31.GL_POINTS, 0, mPartCount);
+                drawArrays(GLES31.GL_POINTS, ParticleEmitter.DRAW_POINTS, drawSlot, partCount, indirect);
+                PerfTrace.end();
             } else {
                 // For size 1, a simple line is sufficient
+                PerfTrace.begin("drawLines");
                 GLES31.glUniform1i(uRMode, 2);
-                GLES31.glDrawArrays(GLES31.GL_LINES, 0, mPartCount * 2);
+                drawArrays(GLES31.GL_LINES, ParticleEmitter.DRAW_LINES, drawSlot, partCount * 2, indirect);
+                PerfTrace.end();
             }
         } else {
+            PerfTrace.begin("drawPoints");
             GLES31.glUniform1i(uRMode, 0);
-            GLES31.glDrawArrays(GLES31.GL_POINTS, 0, mPartCount);
+            drawArrays(GLES31.GL_POINTS, ParticleEmitter.DRAW_POINTS, drawSlot, partCount, indirect);
+            PerfTrace.end();
         }
+    }
+
+    /**
+     * Draws count vertices or, if indirect, the live (emitters) or visible (culling) particles of
+     * the slot, whose count the GPU wrote in the slot's indirect command for the given primitive.
+     */
+    private void drawArrays(int mode, int primitive, int drawSlot, int count, boolean indirect) {
+        if (indirect) {
+            GLES31.glBindBuffer(GLES31.GL_DRAW_INDIRECT_BUFFER, mSimulation.getIndirectBuffer());
+            GLES31.glDrawArraysIndirect(mode, mSimulation.getDrawOffset(drawSlot, primitive));
+        } else {
+            GLES31.glDrawArrays(mode, 0, count);
+        }
+    }
+
+    /**
+     * Binds the next trail target and fills it with the previous one, faded toward the
+     * background color. Returns the scale of the trail targets relative to the surface.
+     */
+    private float fadeTrails(float renderScale) {
+        OffscreenTarget src = mTrailTargets[mTrailIndex], dst = mTrailTargets[1 - mTrailIndex];
+        float scale = mTrailScale * renderScale;
+        int w = Math.round(mWidth * scale), h = Math.round(mHeight * scale);
+        boolean recreated = src.resize(w, h, mTrailLowPrecision);
+        recreated |= dst.resize(w, h, mTrailLowPrecision);
+        GLES31.glDisable(GLES31.GL_BLEND);
+        dst.bind();
+        if (recreated) {
+            GLES31.glClearColor(Color.red(mBGColorValue)/255f, Color.green(mBGColorValue)/255f, Color.blue(mBGColorValue)/255f, 1f);
+            GLES31.glClear(GLES31.GL_COLOR_BUFFER_BIT);
+        } else {
+            // Trail factor 1.0 keeps ~90% per frame, i.e. a trail of about 10 frames.
+            float fade = Math.max(0.0f, Math.min(0.98f, 1.0f - 0.1f / Math.max(mBlurStrength, 0.05f)));
+            drawFullscreen(src.getTexture(), fade);
+        }
+        return mTrailTargets[0].getWidth() / (float) mWidth;
+    }
 
-        if (mUseDoubleBuffer) mCurrentBufferIndex = 1 - mCurrentBufferIndex;
-        if (mParticlesSurfaceView != null) mParticlesSurfaceView.notifyFrameRendered(0, 0);
+    /** Copies the trail target drawn this frame to the surface and swaps the targets. */
+    private void compositeTrails() {
+        OffscreenTarget dst = mTrailTargets[1 - mTrailIndex];
+        GLES31.glBindFramebuffer(GLES31.GL_FRAMEBUFFER, 0);
+        GLES31.glViewport(0, 0, mWidth, mHeight);
+        GLES31.glDisable(GLES31.GL_BLEND);
+        drawFullscreen(dst.getTexture(), 1.0f);
+        mTrailIndex = 1 - mTrailIndex;
+    }
+
+    private void drawFullscreen(int texture, float fade) {
+        GLES31.glUseProgram(mCompositeProgram);
+        GLES31.glActiveTexture(GLES31.GL_TEXTURE0); GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, texture);
+        GLES31.glUniform1i(uPTex, 0);
+        GLES31.glUniform1f(uPFade, fade);
+        GLES31.glUniform3f(uPBG, Color.red(mBGColorValue)/255f, Color.green(mBGColorValue)/255f, Color.blue(mBGColorValue)/255f);
+        // One LSB of the trail target when fading, nothing for a plain copy.
+        if (fade >= 1.0f) GLES31.glUniform3f(uPStep, 0f, 0f, 0f);
+        else if (mTrailLowPrecision) GLES31.glUniform3f(uPStep, 1f/31f, 1f/63f, 1f/31f);
+        else GLES31.glUniform3f(uPStep, 1f/255f, 1f/255f, 1f/255f);
+        GLES31.glDrawArrays(GLES31.GL_TRIANGLES, 0, 3);
+    }
+
+    /** The metrics, with the live GL objects of the current context (see GlResources). */
+    public RenderMetrics getMetrics() {
+        GlResources.recordMetrics(mGlGroup, mMetrics);
+        return mMetrics;
+    }
+
+    /**
+     * One sample of the live metrics stream: the CPU times of the compute and draw submissions
+     * of the last frame, the active attraction points, the generation of the settings and all
+     * the metrics (frame time percentiles, buffer bytes, quality level...).
+     */
+    private String sampleLiveMetrics() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("{\"t_ms\":").append(System.currentTimeMillis());
+        sb.append(",\"source\":\"").append(mLiveName).append('"');
+        sb.append(",\"backend\":\"").append(mComputeBackend.getName()).append('"');
+        sb.append(",\"config_generation\":").append(mConfigGeneration);
+        sb.append(String.format(Locale.US, ",\"compute_ms\":%.3f,\"draw_ms\":%.3f", mComputeNs * 1e-6, mDrawNs * 1e-6));
+        sb.append(",\"attractors\":").append(mSimulation.getAttractorCount());
+        sb.append(",\"metrics\":").append(getMetrics().toJson());
+        return sb.append('}').toString();
+    }
+
+    /** Sets the vsync timestamp used to compute the simulation time step of the next frame. */
+    public void setFrameTime(long frameTimeNanos) {
+        mFrameTimeNs = frameTimeNanos;
     }
 
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         mWidth = width; mHeight = height; GLES31.glViewport(0, 0, width, height);
-        mScaleVec[0] = 2.0f / (float)width;
-        mScaleVec[1] = 2.0f / (float)height;
-        mInitialized = false;
-    }
-
-    private void initBuffers(boolean resetParticles) {
-        if (mSSBOs[0] != 0 && resetParticles) { GLES31.glDeleteBuffers(4, mSSBOs, 0); mSSBOs[0] = 0; }
-        if (mSSBOs[0] == 0) {
-            GLES31.glGenBuffers(4, mSSBOs, 0);
-            for (int i = 0; i < 4; i++) {
-                GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, mSSBOs[i]);
-                GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, mPartCount * (i < 2 ? 4 : 2) * 2, null, GLES31.GL_DYNAMIC_DRAW);
-            }
-            resetParticles = true;
-        }
-        if (resetParticles) {
-            GLES31.glUseProgram(mComputeProgram); GLES31.glUniform1i(uCReset, 1);
-            GLES31.glUniform2f(uCRes, (float)mWidth, (float)mHeight); GLES31.glUniform1i(uCNumP, mPartCount);
-            for (int i = 0; i < 2; i++) {
-                GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 2, mSSBOs[i]);
-                GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 3, mSSBOs[i + 2]);
-                GLES31.glDispatchCompute((mPartCount / 2 + mWorkgroupSize - 1) / mWorkgroupSize, 1, 1);
-            }
-            GLES31.glUniform1i(uCReset, 0); GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
-        }
-        resetAttractionPoints(); mInitialized = true;
+        // Only the first wallpaper engine decides the size of a shared simulation; the others
+        // stretch it over their own surface.
+        mSimulation.setSize(width, height, !mSharedSimulation || SharedSimulation.getRefCount() == 1);
+        mSurfaceReady = true;
+        updateScale();
     }
 
-    public void setTouch(int index, float x, float y) {
-        if (index >= 16) return;
-        synchronized (mTouchLock) {
-            if (x < 0) { mTouchPos[2 * index] = -1f; mTouchPos[2 * index + 1] = -1f; } else { mTouchPos[2 * index] = x; mTouchPos[2 * index + 1] = mHeight - y; }
-            updateActiveTouchList();
-        }
+    /** Maps the simulation space (in pixels of the simulation size) to clip space. */
+    private void updateScale() {
+        mScaleVec[0] = 2.0f / (float)Math.max(1, mSimulation.getWidth());
+        mScaleVec[1] = 2.0f / (float)Math.max(1, mSimulation.getHeight());
     }
 
-    private void updateActiveTouchList() {
-        mActiveTouchCount = 0;
-        for (int i = 0; i < 16; i++) {
-            if (mTouchPos[2 * i] >= 0.0f) {
-                mActiveTouchPos[2 * mActiveTouchCount] = mTouchPos[2 * i];
-                mActiveTouchPos[2 * mActiveTouchCount + 1] = mTouchPos[2 * i + 1];
-                mActiveTouchCount++;
+    /**
+     * Responds to a ComponentCallbacks2 trim level (any thread): the simulation gives its
+     * buffers up on the GL thread (see ParticleSimulation.onTrimMemory), and critical pressure
+     * also drops the cached palettes.
+     */
+    public void onTrimMemory(int level) {
+        mSimulation.onTrimMemory(level);
+        if (ParticleSimulation.getTrimTier(level) == ParticleSimulation.TRIM_CRITICAL) {
+            synchronized (PALETTE_CACHE) {
+                PALETTE_CACHE.clear();
             }
         }
     }
 
-    public void syncTouch() {}
+    /**
+     * Applies a pending trim now rather than on the next frame, which a hidden wallpaper or a
+     * background activity may never draw. Must be called on the GL thread; does nothing once the
+     * objects of the context are released.
+     */
+    public void applyTrim() {
+        if (mGlGroup == 0) return;
+        mSimulation.applyTrim(mMetrics);
+    }
 
-    public void resetAttractionPoints() {
-        if (mWidth <= 1) return;
-        float l = Math.min(mWidth, mHeight) / 3f;
-        setTouch(0, mWidth / 2f, mHeight / 2f + (mNumTouch == 1 ? 0 : l));
-        for (int i = 1; i < mNumTouch; i++) {
-            setTouch(i, (float) (mWidth / 2f + l * Math.sin(i * 6.28 / mNumTouch)), (float) (mHeight / 2f + l * Math.cos(i * 6.28 / mNumTouch)));
-        }
+    /** Gets back what was given up under moderate memory pressure, once visible again. */
+    public void restoreMemory() {
+        mSimulation.restoreMemory();
     }
 
-    private int createProgram(String v, String f) {
-        int vs = loadShader(GLES31.GL_VERTEX_SHADER, v); int fs = loadShader(GLES31.GL_FRAGMENT_SHADER, f);
-        int p = GLES31.glCreateProgram(); GLES31.glAttachShader(p, vs); GLES31.glAttachShader(p, fs);
-        GLES31.glLinkProgram(p); return p;
+    /** Target duration of the work of a frame: the period of the paced frame rate. */
+    private long getTargetWorkDuration() {
+        float rate = mParticlesSurfaceView != null ? mParticlesSurfaceView.getFramePacer().getTargetFrameRate() : 60f;
+        return (long) (1e9f / rate);
     }
 
-    private int createComputeProgram(String c) {
-        int cs = loadShader(GLES31.GL_COMPUTE_SHADER, c);
-        int p = GLES31.glCreateProgram(); GLES31.glAttachShader(p, cs); GLES31.glLinkProgram(p);
-        return p;
+    /**
+     * Reports the work of the frame (workNs) to the performance hint session, and moves the
+     * quality ladder with the thermal state. Replays keep the full quality, so that benchmarks
+     * stay comparable.
+     */
+    private void updateQuality(long nowNs, long workNs) {
+        mThermalSource.setTargetWorkDuration(getTargetWorkDuration());
+        mThermalSource.reportWorkDuration(workNs);
+        int previous = mQuality.getLevelIndex();
+        mQuality.setEnabled(mAdaptiveQuality && mReplay == null && mBenchmarkRun == null);
+        mQuality.update(nowNs);
+        mMetrics.set("thermal_status", mQuality.getThermalStatus());
+        if (!Float.isNaN(mQuality.getThermalHeadroom())) mMetrics.set("thermal_headroom", mQuality.getThermalHeadroom());
+        if (mQuality.getLevelIndex() == previous) return;
+        mMetrics.increment("quality_changes");
+        Log.i(TAG, "Quality level " + previous + " -> " + mQuality.getLevelIndex());
+        PerfTrace.counter("quality_level", mQuality.getLevelIndex());
+        applyQuality();
     }
 
-    private int loadShader(int type, String code) {
-        int s = GLES31.glCreateShader(type);
-        GLES31.glShaderSource(s, code); GLES31.glCompileShader(s);
-        int[] compiled = new int[1]; GLES31.glGetShaderiv(s, GLES31.GL_COMPILE_STATUS, compiled, 0);
-        if (compiled[0] == 0) Log.e(TAG, "Shader error: " + GLES31.glGetShaderInfoLog(s));
-        return s;
+    /** Applies the particle count and the frame rate cap of the current quality level. */
+    private void applyQuality() {
+        QualityLadder.Level level = mQuality.getLevel();
+        mMetrics.set("quality_level", mQuality.getLevelIndex());
+        mMetrics.set("max_frame_rate", level.maxFrameRate);
+        mSimulation.setParticleFraction(level.particleFraction);
+        if (mParticlesSurfaceView != null) mParticlesSurfaceView.getFramePacer().setMaxFrameRate(level.maxFrameRate);
     }
 
+    private void reportAllocationStepDown(final String reason) {
+        Log.w(TAG, reason);
+        mMetrics.increment("allocation_step_downs");
+        if (mParticlesSurfaceView == null) return;
+        mParticlesSurfaceView.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mParticlesSurfaceView.getContext(), reason, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /** Sets an attraction point, in surface pixels (converted to the simulation space). */
+    public void setTouch(int index, float x, float y) {
+        if (x < 0 || mWidth <= 1) { mSimulation.setTouch(index, x, y); return; }
+        mSimulation.setTouch(index, x * mSimulation.getWidth() / mWidth, y * mSimulation.getHeight() / mHeight);
+    }
+
+    public void syncTouch() {}
+
+    public void resetAttractionPoints() {
+        mSimulation.resetAttractionPoints();
+    }
+
+    /**
+     * Loads the palette from the preferences and uploads its lookup table to the gradient texture.
+     * May be called from any thread: the table is built on a worker (unless it is cached), then
+     * uploaded on the GL thread.
+     */
     public void updateGradient() {
-        if (mGradientTex == 0) return;
-        int width = 256;
-        ByteBuffer bb = ByteBuffer.allocateDirect(width * 4).order(ByteOrder.nativeOrder());
-        float[] hsvSlow = new float[3], hsvFast = new float[3];
-        
-        // Always read fresh values from prefs to avoid sync issues
-        int slowColor = mPrefs.getInt("SlowColor", 0xFF0000FF);
-        int fastColor = mPrefs.getInt("FastColor", 0xFFFF0000);
-        int hueDir = mPrefs.getInt("HueDirection", 0);
-
-        Color.colorToHSV(slowColor, hsvSlow);
-        Color.colorToHSV(fastColor, hsvFast);
-        float sh = hsvSlow[0] / 360f, fh = hsvFast[0] / 360f;
-        if (sh < fh && hueDir == 0) sh += 1f; else if (sh > fh && hueDir == 1) fh += 1f;
-        float[] temp = new float[3];
-        for (int i = 0; i < width; i++) {
-            float t = i / (float) (width - 1);
-            temp[0] = (((1f - t) * sh + t * fh) % 1f) * 360f;
-            temp[1] = (1f - t) * hsvSlow[1] + t * hsvFast[1];
-            temp[2] = (1f - t) * hsvSlow[2] + t * hsvFast[2];
-            int c = Color.HSVToColor(temp);
-            bb.put((byte) Color.red(c)); bb.put((byte) Color.green(c)); bb.put((byte) Color.blue(c)); bb.put((byte) 255);
+        final Palette palette = Palette.preset(mPrefs.getInt("palette_preset", Palette.PRESET_CUSTOM),
+                mPrefs.getInt("SlowColor", 0xFF0000FF), mPrefs.getInt("FastColor", 0xFFFF0000),
+                mPrefs.getInt("palette_interpolation", Palette.INTERPOLATION_HSV),
+                mPrefs.getInt("HueDirection", 0) == 0);
+        final int request = mPaletteRequests.incrementAndGet();
+        ByteBuffer lut;
+        synchronized (PALETTE_CACHE) {
+            lut = PALETTE_CACHE.get(palette);
         }
-        bb.position(0);
-        GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, mGradientTex);
-        GLES31.glTexImage2D(GLES31.GL_TEXTURE_2D, 0, GLES31.GL_RGBA, width, 1, 0, GLES31.GL_RGBA, GLES31.GL_UNSIGNED_BYTE, bb);
+        if (lut != null) {
+            queuePaletteUpload(lut, request);
+            return;
+        }
+        PALETTE_WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                PerfTrace.begin("buildPalette");
+                ByteBuffer built = palette.build(PALETTE_WIDTH);
+                PerfTrace.end();
+                synchronized (PALETTE_CACHE) {
+                    PALETTE_CACHE.put(palette, built);
+                }
+                queuePaletteUpload(built, request);
+            }
+        });
+    }
+
+    private void queuePaletteUpload(final ByteBuffer lut, final int request) {
+        if (mParticlesSurfaceView == null) return;
+        mParticlesSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                // Drop the tables of older requests that were built after a newer one.
+                if (mGradientTex == 0 || request < mUploadedPaletteRequest) return;
+                mUploadedPaletteRequest = request;
+                // The cached buffer is shared: upload from a view with its own position.
+                ByteBuffer data = lut.duplicate();
+                data.position(0);
+                GLES31.glBindTexture(GLES31.GL_TEXTURE_2D, mGradientTex);
+                GLES31.glTexSubImage2D(GLES31.GL_TEXTURE_2D, 0, 0, 0, PALETTE_WIDTH, 1,
+                        GLES31.GL_RGBA, GLES31.GL_HALF_FLOAT, data);
+                mPaletteReady = true;
+            }
+        });
     }
 }
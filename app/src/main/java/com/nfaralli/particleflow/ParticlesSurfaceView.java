@@ -6,15 +6,19 @@ import android.opengl.GLSurfaceView;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
+import android.view.Surface;
 import android.view.View;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * View container used to draw OpenGL points (particles).
  * This view creates and set its renderer (in charge of drawing the particles)
  * and is in charge of capturing the touch events (to move the attraction points).
  */
 public class ParticlesSurfaceView extends GLSurfaceView
-        implements SharedPreferences.OnSharedPreferenceChangeListener {
+        implements SharedPreferences.OnSharedPreferenceChangeListener, FramePacer.Target {
 
     public interface FrameRenderedListener {
         void onFrameRendered(long computeTimeNs, long renderTimeNs);
@@ -46,6 +50,7 @@ public class ParticlesSurfaceView extends GLSurfaceView
     public static final int DEFAULT_F01_DRAG_COEF = 4;
 
     private final ParticlesRenderer mRenderer;
+    private final FramePacer mFramePacer;
     // The count array is a hack to activate or deactivate an attraction point.
     // Each touch has its own counter in this array, which is incremented at each touch event.
     // If the touch is present during one touch event, then a new attraction point is created.
@@ -54,6 +59,10 @@ public class ParticlesSurfaceView extends GLSurfaceView
     // This is necessary when moving several attraction points simultaneously and lifting all the
     // fingers at once, which usually results in several touch events, not just one.
     private int mCount[];
+    private final int[] mTouchIds = new int[MAX_MAX_NUM_ATT_POINTS];
+    private final float[] mTouchXs = new float[MAX_MAX_NUM_ATT_POINTS];
+    private final float[] mTouchYs = new float[MAX_MAX_NUM_ATT_POINTS];
+    private TouchRecorder mTouchRecorder;
     private final SharedPreferences mPrefs;
 
     public ParticlesSurfaceView(Context context, AttributeSet attrs) {
@@ -61,10 +70,17 @@ public class ParticlesSurfaceView extends GLSurfaceView
 
         // Create an OpenGL ES 3.0+ context.
         setEGLContextClientVersion(3);
+        if (isWallpaper()) {
+            // All the wallpaper engines share one simulation, hence one GL share group.
+            setEGLContextFactory(SharedSimulation.CONTEXT_FACTORY);
+        }
 
         // Create and set the Renderer for drawing on the GLSurfaceView
         mRenderer = new ParticlesRenderer(context, this);
         setRenderer(mRenderer);
+        // Frames are requested on vsync by the frame pacer (see onVsync).
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+        mFramePacer = new FramePacer(context, this);
 
         // Get the shared preferences and create the counter array.
         mPrefs = context.getSharedPreferences(SHARED_PREFS_NAME, Context.MODE_PRIVATE);
@@ -85,44 +101,144 @@ public class ParticlesSurfaceView extends GLSurfaceView
                     | View.SYSTEM_UI_FLAG_FULLSCREEN
                     | View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY);
         }
+        mRenderer.restoreMemory();
+        mFramePacer.start();
+    }
+
+    /**
+     * Forwards a ComponentCallbacks2 trim level to the renderer (see
+     * ParticlesRenderer.onTrimMemory), and applies it on the GL thread without waiting for a
+     * frame. Events run even while paused.
+     */
+    public void onTrimMemory(int level) {
+        mRenderer.onTrimMemory(level);
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.applyTrim();
+            }
+        });
     }
 
     @Override
-    public boolean onTouchEvent(MotionEvent e) {
-    	int numPointers;
-        int index, id, ids;
+    public void onPause() {
+        mFramePacer.stop();
+        // The context goes away with the pause: delete the GL objects first, so that none of
+        // them outlives it in the wallpaper share group. Events run before the pause.
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.onSurfaceLost();
+            }
+        });
+        super.onPause();
+    }
+
+    @Override
+    public void onVsync(long frameTimeNanos) {
+        mRenderer.setFrameTime(frameTimeNanos);
+        requestRender();
+    }
+
+    @Override
+    public Surface getPacedSurface() {
+        return getHolder().getSurface();
+    }
+
+    public FramePacer getFramePacer() {
+        return mFramePacer;
+    }
+
+    /** Whether this view draws a live wallpaper (which has its own render settings). */
+    public boolean isWallpaper() {
+        return false;
+    }
 
+    public RenderMetrics getMetrics() {
+        return mRenderer.getMetrics();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent e) {
+        // Live touches would make a replay non deterministic.
+        if (mRenderer.isReplaying()) return true;
         switch (e.getAction()) {
             case MotionEvent.ACTION_MOVE:
             case MotionEvent.ACTION_DOWN:
-            	ids = 0;
-            	numPointers = e.getPointerCount();
-                // Get the list of touch IDs and check for current or new attraction points.
-            	for(index = 0; index < numPointers; index++) {
-            		id = e.getPointerId(index);
-            		ids |= 1 << id;
-            		if(id < mCount.length) {
-            		    mCount[id] = 0;
-      	        	    mRenderer.setTouch(id, e.getX(index), e.getY(index));
-            		}
-            	}
-                // Check which attraction points should be deactivated.
-            	for(id = 0; id < mCount.length; id++, ids >>= 1){
-                	if ((ids & 1) == 0) {
-                    	if(mCount[id]++ >= 3){
-                            // Negative coordinates are used to deactivate an attraction point.
-              	        	mRenderer.setTouch(id, -1.0f, -1.0f);
-                    	}
-                	}
-            	}
-                // syncTouch() must be used to update the script.
-            	mRenderer.syncTouch();
-                requestRender();
+                int numPointers = Math.min(e.getPointerCount(), mTouchIds.length);
+                for (int index = 0; index < numPointers; index++) {
+                    mTouchIds[index] = e.getPointerId(index);
+                    mTouchXs[index] = e.getX(index);
+                    mTouchYs[index] = e.getY(index);
+                }
+                if (mTouchRecorder != null) mTouchRecorder.record(numPointers, mTouchIds, mTouchXs, mTouchYs);
+                applyTouches(numPointers, mTouchIds, mTouchXs, mTouchYs);
                 break;
         }
         return true;
     }
 
+    /**
+     * Moves the attraction points to the given pointers of one touch event. Called on the UI
+     * thread for live touches, and on the GL thread during a replay.
+     */
+    void applyTouches(int numPointers, int[] pointerIds, float[] xs, float[] ys) {
+        int index, id, ids;
+
+        ids = 0;
+        // Get the list of touch IDs and check for current or new attraction points.
+        for(index = 0; index < numPointers; index++) {
+            id = pointerIds[index];
+            ids |= 1 << id;
+            if(id < mCount.length) {
+                mCount[id] = 0;
+                mRenderer.setTouch(id, xs[index], ys[index]);
+            }
+        }
+        // Check which attraction points should be deactivated.
+        for(id = 0; id < mCount.length; id++, ids >>= 1){
+            if ((ids & 1) == 0) {
+                if(mCount[id]++ >= 3){
+                    // Negative coordinates are used to deactivate an attraction point.
+                    mRenderer.setTouch(id, -1.0f, -1.0f);
+                }
+            }
+        }
+        // syncTouch() must be used to update the script.
+        mRenderer.syncTouch();
+    }
+
+    /** Records the touch events into the given file (see TouchRecorder) until stopRecording. */
+    public void startRecording(File file) throws IOException {
+        stopRecording();
+        TouchRecorder recorder = new TouchRecorder(file);
+        recorder.start(getWidth(), getHeight());
+        mTouchRecorder = recorder;
+    }
+
+    public void stopRecording() {
+        if (mTouchRecorder == null) return;
+        mTouchRecorder.stop();
+        mTouchRecorder = null;
+    }
+
+    /** Runs a cell of a sweep benchmark (see ParticlesRenderer.startBenchmarkRun). */
+    public void startBenchmarkRun(BenchmarkSweep.Run run, Runnable onDone) {
+        stopRecording();
+        mCount = new int[mPrefs.getInt("NumAttPoints", DEFAULT_MAX_NUM_ATT_POINTS)];
+        mRenderer.startBenchmarkRun(run, onDone);
+    }
+
+    /**
+     * Resets the particles and replays the given recording at a fixed time step. The results
+     * are logged and written next to the recording once it ends (see ParticlesRenderer).
+     */
+    public void startReplay(File file) throws IOException {
+        stopRecording();
+        mCount = new int[mPrefs.getInt("NumAttPoints", DEFAULT_MAX_NUM_ATT_POINTS)];
+        mRenderer.startReplay(new TouchReplayer(file));
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
         if (key == "ShowSettingsHint") {
@@ -133,7 +249,23 @@ public class ParticlesSurfaceView extends GLSurfaceView
         mRenderer.updateGradient();
     }
 
+    /** Live preview of the uniform-only settings (see ParticlesRenderer.previewTuning). */
+    public void previewTuning(int attraction, int dragPercent, float glowIntensity, float blurStrength) {
+        mRenderer.previewTuning(attraction, dragPercent, glowIntensity, blurStrength);
+    }
+
+    /** Drops the previewed settings and goes back to the saved ones. */
+    public void cancelPreview() {
+        mRenderer.onPrefsChanged();
+    }
+
     public void resetAttractionPoints(){
         mRenderer.resetAttractionPoints();
     }
+
+    /** Releases the renderer's simulation. The view must not be resumed afterwards. */
+    public void release() {
+        mPrefs.unregisterOnSharedPreferenceChangeListener(this);
+        mRenderer.release();
+    }
 }
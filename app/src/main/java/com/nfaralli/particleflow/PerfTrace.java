@@ -0,0 +1,53 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Thin wrapper around android.os.Trace used to split the render loop into named sections and
+ * counters visible in Perfetto/systrace.
+ * On a device the sections go to android.os.Trace (see AndroidTraceBackend); off-device (desktop
+ * harness), where that backend is not built or cannot load, a no-op backend is used instead.
+ * Sections must be properly nested and begun/ended on the same thread.
+ */
+public final class PerfTrace {
+
+    public interface Backend {
+        void beginSection(String name);
+        void endSection();
+        void setCounter(String name, long value);
+    }
+
+    public static final Backend NO_OP = new Backend() {
+        @Override public void beginSection(String name) {}
+        @Override public void endSection() {}
+        @Override public void setCounter(String name, long value) {}
+    };
+
+    private static volatile Backend sBackend = createDefaultBackend();
+
+    private PerfTrace() {}
+
+    private static Backend createDefaultBackend() {
+        try {
+            return (Backend) Class.forName("com.nfaralli.particleflow.AndroidTraceBackend")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return NO_OP;
+        }
+    }
+
+    /** Replaces the backend, e.g. with NO_OP or a recording stand-in when running off-device. */
+    public static void setBackend(Backend backend) {
+        sBackend = backend != null ? backend : NO_OP;
+    }
+
+    public static void begin(String name) {
+        sBackend.beginSection(name);
+    }
+
+    public static void end() {
+        sBackend.endSection();
+    }
+
+    public static void counter(String name, long value) {
+        sBackend.setCounter(name, value);
+    }
+}
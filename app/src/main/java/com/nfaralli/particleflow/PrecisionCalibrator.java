@@ -0,0 +1,203 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import android.content.SharedPreferences;
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * Picks the precision tier of the step programs for this device: each tier runs TEST_STEPS
+ * steps of a fixed scene, and is compared with a CPU reference (see PrecisionReference) on the
+ * median position drift and the kinetic energy divergence. The fastest tier within tolerance
+ * of the reference wins. The result is kept per GPU, driver and workgroup size.
+ * The programs are built in the background; the measures then run at once on the GL thread
+ * (a few milliseconds), so a device is only calibrated once.
+ */
+public class PrecisionCalibrator {
+
+    private static final String TAG = "PrecisionCalibrator";
+
+    public static final String PREFS_NAME = "precision_calibration";
+    private static final int[] TIERS = {
+        ParticleSimulation.PRECISION_HIGH, ParticleSimulation.PRECISION_MIXED, ParticleSimulation.PRECISION_MEDIUM};
+    private static final String[] TIER_NAMES = {"high", "mixed", "medium"};
+
+    private static final int TEST_PARTICLES = 4096;
+    private static final int TEST_STEPS = 120;
+    private static final int TIMING_PARTICLES = 1 << 18;
+    private static final int TIMING_DISPATCHES = 10;
+    private static final float TEST_SIZE = 1024f;
+    private static final float ATTRACTION = 110f;
+    private static final float DRAG = 0.96f;
+    private static final float[] TARGETS = {256, 256, 768, 256, 512, 512, 256, 768, 768, 768};
+    // A tier may drift twice as far as highp (which already differs from the double precision
+    // reference), and never less than half a pixel.
+    private static final double MIN_DRIFT_TOLERANCE = 0.5;
+    private static final double MIN_ENERGY_TOLERANCE = 0.02;
+    private static final double TOLERANCE_FACTOR = 2;
+
+    private final SharedPreferences mPrefs;
+    private ProgramCompiler.Program[] mJobs;
+    private int mJobWorkgroupSize = 0;
+
+    public PrecisionCalibrator(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Returns the tier calibrated for the current GPU and the given workgroup size, or
+     * PRECISION_AUTO while the calibration programs are being built. Must be called on the GL
+     * thread.
+     */
+    public int calibrate(int workgroupSize, RenderMetrics metrics, ProgramCompiler compiler) {
+        String key = GLES31.glGetString(GLES31.GL_RENDERER) + "|" + GLES31.glGetString(GLES31.GL_VERSION)
+                + "|" + workgroupSize;
+        int tier = mPrefs.getInt(key, ParticleSimulation.PRECISION_AUTO);
+        if (tier != ParticleSimulation.PRECISION_AUTO) return tier;
+        if (mJobs == null || mJobWorkgroupSize != workgroupSize) {
+            deletePrograms();
+            mJobs = new ProgramCompiler.Program[TIERS.length];
+            for (int k = 0; k < TIERS.length; k++) {
+                mJobs[k] = compiler.compileCompute(
+                        ParticleSimulation.getComputeShaderCode(workgroupSize, false, false, TIERS[k]));
+            }
+            mJobWorkgroupSize = workgroupSize;
+        }
+        for (ProgramCompiler.Program job : mJobs) if (!job.isReady()) return ParticleSimulation.PRECISION_AUTO;
+        PerfTrace.begin("calibratePrecision");
+        tier = measure(workgroupSize, metrics);
+        PerfTrace.end();
+        deletePrograms();
+        Log.i(TAG, "Precision tier " + tier + " for " + key);
+        mPrefs.edit().putInt(key, tier).apply();
+        return tier;
+    }
+
+    private int measure(int workgroupSize, RenderMetrics metrics) {
+        Random random = new Random(1);
+        float[] pos = new float[2 * TIMING_PARTICLES];
+        for (int i = 0; i < pos.length; i++) pos[i] = random.nextFloat() * TEST_SIZE;
+        float[] testPos = new float[2 * TEST_PARTICLES];
+        System.arraycopy(pos, 0, testPos, 0, testPos.length);
+        PrecisionReference reference = new PrecisionReference(testPos, TARGETS, ATTRACTION, DRAG);
+        for (int s = 0; s < TEST_STEPS; s++) reference.step();
+
+        ByteBuffer initialPos = ByteBuffer.allocateDirect(pos.length * 4).order(ByteOrder.nativeOrder());
+        initialPos.asFloatBuffer().put(pos);
+        ByteBuffer initialVel = ByteBuffer.allocateDirect(TIMING_PARTICLES * 4).order(ByteOrder.nativeOrder());
+        int[] buffers = new int[5]; // In and out positions and velocities, and the SimParams block.
+        GLES31.glGenBuffers(5, buffers, 0);
+        GlResources.track(GlResources.BUFFER, buffers, 0, 5, TAG);
+        ByteBuffer params = ByteBuffer.allocateDirect(ParticleSimulation.SIM_PARAMS_SIZE).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < 32; i++) params.putFloat(4 * i, i < TARGETS.length ? TARGETS[i] : -1f);
+        params.putFloat(ParticleSimulation.SIM_PARAMS_RES, TEST_SIZE);
+        params.putFloat(ParticleSimulation.SIM_PARAMS_RES + 4, TEST_SIZE);
+        params.putFloat(ParticleSimulation.SIM_PARAMS_ATT, ATTRACTION);
+        params.putFloat(ParticleSimulation.SIM_PARAMS_DRAG, DRAG);
+        params.putInt(ParticleSimulation.SIM_PARAMS_NUMT, TARGETS.length / 2);
+        GLES31.glBindBuffer(GLES31.GL_UNIFORM_BUFFER, buffers[4]);
+        GLES31.glBufferData(GLES31.GL_UNIFORM_BUFFER, ParticleSimulation.SIM_PARAMS_SIZE, null, GLES31.GL_DYNAMIC_DRAW);
+        GLES31.glBindBufferBase(GLES31.GL_UNIFORM_BUFFER, 0, buffers[4]);
+
+        double[] drift = new double[TIERS.length], energy = new double[TIERS.length], ms = new double[TIERS.length];
+        for (int k = 0; k < TIERS.length; k++) {
+            int program = mJobs[k].get();
+            if (program == 0) { drift[k] = Double.MAX_VALUE; continue; }
+            GLES31.glUseProgram(program);
+            // Accuracy, on the test particles.
+            upload(buffers, initialPos, initialVel);
+            setParticleCount(params, TEST_PARTICLES);
+            for (int s = 0; s < TEST_STEPS; s++) dispatch(buffers, s, TEST_PARTICLES, workgroupSize);
+            int last = TEST_STEPS % 2 == 0 ? 0 : 2; // Output of the last step.
+            drift[k] = reference.getMedianDrift(read(buffers[last], TEST_PARTICLES, false));
+            energy[k] = reference.getEnergyDivergence(read(buffers[last + 1], TEST_PARTICLES, true));
+            // Speed, on more particles.
+            upload(buffers, initialPos, initialVel);
+            setParticleCount(params, TIMING_PARTICLES);
+            dispatch(buffers, 0, TIMING_PARTICLES, workgroupSize); // Warm up.
+            GLES31.glFinish();
+            long start = System.nanoTime();
+            for (int s = 1; s <= TIMING_DISPATCHES; s++) dispatch(buffers, s, TIMING_PARTICLES, workgroupSize);
+            GLES31.glFinish();
+            ms[k] = (System.nanoTime() - start) * 1e-6 / TIMING_DISPATCHES;
+            metrics.set("precision_drift_" + TIER_NAMES[k], drift[k]);
+            metrics.set("precision_energy_" + TIER_NAMES[k], energy[k]);
+            metrics.set("precision_ms_" + TIER_NAMES[k], ms[k]);
+        }
+        GlResources.delete(GlResources.BUFFER, buffers, 0, 5);
+
+        // highp is the fallback; the others must stay close to it.
+        double driftTolerance = Math.max(MIN_DRIFT_TOLERANCE, TOLERANCE_FACTOR * drift[0]);
+        double energyTolerance = Math.max(MIN_ENERGY_TOLERANCE, TOLERANCE_FACTOR * energy[0]);
+        int best = 0;
+        for (int k = 1; k < TIERS.length; k++) {
+            if (drift[k] <= driftTolerance && energy[k] <= energyTolerance && ms[k] < ms[best]) best = k;
+        }
+        return TIERS[best];
+    }
+
+    /** Sets both ping-pong states to the initial particles. */
+    private static void upload(int[] buffers, ByteBuffer pos, ByteBuffer vel) {
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer data = i % 2 == 0 ? pos : vel;
+            data.position(0);
+            GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, buffers[i]);
+            GLES31.glBufferData(GLES31.GL_SHADER_STORAGE_BUFFER, data.capacity(), data, GLES31.GL_DYNAMIC_COPY);
+        }
+    }
+
+    private static void setParticleCount(ByteBuffer params, int count) {
+        params.putInt(ParticleSimulation.SIM_PARAMS_NUMP, count);
+        params.position(0);
+        GLES31.glBufferSubData(GLES31.GL_UNIFORM_BUFFER, 0, ParticleSimulation.SIM_PARAMS_SIZE, params);
+    }
+
+    /** Dispatches step s: even steps read buffers 0 and 1 and write 2 and 3, odd steps the reverse. */
+    private static void dispatch(int[] buffers, int s, int count, int workgroupSize) {
+        int in = s % 2 == 0 ? 0 : 2, out = 2 - in;
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 0, buffers[in]);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 1, buffers[in + 1]);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 2, buffers[out]);
+        GLES31.glBindBufferBase(GLES31.GL_SHADER_STORAGE_BUFFER, 3, buffers[out + 1]);
+        GLES31.glDispatchCompute((count / 2 + workgroupSize - 1) / workgroupSize, 1, 1);
+        GLES31.glMemoryBarrier(GLES31.GL_SHADER_STORAGE_BARRIER_BIT);
+    }
+
+    /** Reads the positions, or the (half float) velocities, of the first count particles. */
+    private static float[] read(int buffer, int count, boolean velocities) {
+        float[] values = new float[2 * count];
+        int bytes = velocities ? 4 * count : 8 * count;
+        GLES31.glMemoryBarrier(GLES31.GL_BUFFER_UPDATE_BARRIER_BIT);
+        GLES31.glBindBuffer(GLES31.GL_SHADER_STORAGE_BUFFER, buffer);
+        ByteBuffer data = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_SHADER_STORAGE_BUFFER, 0, bytes, GLES31.GL_MAP_READ_BIT);
+        if (data == null) return values;
+        data.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < count; i++) {
+            if (velocities) {
+                int v = data.getInt(4 * i);
+                values[2 * i] = HalfFloat.toFloat(v & 0xFFFF);
+                values[2 * i + 1] = HalfFloat.toFloat(v >>> 16);
+            } else {
+                values[2 * i] = data.getFloat(8 * i);
+                values[2 * i + 1] = data.getFloat(8 * i + 4);
+            }
+        }
+        GLES31.glUnmapBuffer(GLES31.GL_SHADER_STORAGE_BUFFER);
+        return values;
+    }
+
+    /** Deletes the programs of the calibration, built or still building. */
+    public void deletePrograms() {
+        if (mJobs == null) return;
+        for (ProgramCompiler.Program job : mJobs) job.discard();
+        mJobs = null;
+    }
+
+    /** Forgets the programs, e.g. after the context was lost. */
+    public void forget() {
+        mJobs = null;
+    }
+}
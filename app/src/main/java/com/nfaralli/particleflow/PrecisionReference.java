@@ -0,0 +1,94 @@
+package com.nfaralli.particleflow;
+
+import java.util.Arrays;
+
+/**
+ * CPU reference of the step shader (attraction points and drag, no interaction), in double
+ * precision. The velocities are rounded to half floats after each step, like the velocity
+ * buffers of the GPU, so that the only differences left are those of the shader arithmetic.
+ * This class has no Android dependencies.
+ */
+public class PrecisionReference {
+
+    private final double[] mPos;
+    private final double[] mVel;
+    private final double[] mTargets;
+    private final double mAttraction;
+    private final double mDrag;
+
+    /**
+     * pos holds the initial positions (x, y), targets the attraction points (x, y). The
+     * velocities start at 0.
+     */
+    public PrecisionReference(float[] pos, float[] targets, float attraction, float drag) {
+        mPos = new double[pos.length];
+        for (int i = 0; i < pos.length; i++) mPos[i] = pos[i];
+        mVel = new double[pos.length];
+        mTargets = new double[targets.length];
+        for (int i = 0; i < targets.length; i++) mTargets[i] = targets[i];
+        mAttraction = attraction;
+        mDrag = drag;
+    }
+
+    /** Same hash as the step shader. */
+    static int hash(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b1;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b1;
+        return (x >>> 16) ^ x;
+    }
+
+    public void step() {
+        int numTargets = mTargets.length / 2;
+        for (int k = 0; k < mPos.length / 2; k++) {
+            double px = mPos[2 * k], py = mPos[2 * k + 1];
+            double ax = 0, ay = 0;
+            for (int j = 0; j < numTargets; j++) {
+                double dx = mTargets[2 * j] - px, dy = mTargets[2 * j + 1] - py;
+                double distSq = dx * dx + dy * dy;
+                // The shader hashes once per pair of particles: low bits for the first one.
+                int h = hash((k & ~1) + j);
+                double rnd = ((k & 1) == 0 ? h & 0xFFFF : h >>> 16) * 9.587e-5;
+                if (distSq <= 0.1) {
+                    ax += mAttraction * Math.cos(rnd);
+                    ay += mAttraction * Math.sin(rnd);
+                } else {
+                    double invDist = 1.0 / Math.max(distSq, 1.0);
+                    ax += mAttraction * dx * invDist;
+                    ay += mAttraction * dy * invDist;
+                }
+            }
+            double vx = HalfFloat.round((float) ((mVel[2 * k] + ax) * mDrag));
+            double vy = HalfFloat.round((float) ((mVel[2 * k + 1] + ay) * mDrag));
+            mVel[2 * k] = vx; mVel[2 * k + 1] = vy;
+            mPos[2 * k] = px + vx; mPos[2 * k + 1] = py + vy;
+        }
+    }
+
+    /** Median distance between the reference positions and pos (same layout). */
+    public double getMedianDrift(float[] pos) {
+        double[] drift = new double[mPos.length / 2];
+        for (int k = 0; k < drift.length; k++) {
+            drift[k] = Math.hypot(pos[2 * k] - mPos[2 * k], pos[2 * k + 1] - mPos[2 * k + 1]);
+        }
+        Arrays.sort(drift);
+        return drift[drift.length / 2];
+    }
+
+    /** Relative difference between the kinetic energies of vel and of the reference. */
+    public double getEnergyDivergence(float[] vel) {
+        double energy = getEnergy(vel), reference = getEnergy(mVel);
+        return Math.abs(energy - reference) / Math.max(reference, 1e-12);
+    }
+
+    private static double getEnergy(float[] vel) {
+        double energy = 0;
+        for (float v : vel) energy += 0.5 * v * v;
+        return energy;
+    }
+
+    private static double getEnergy(double[] vel) {
+        double energy = 0;
+        for (double v : vel) energy += 0.5 * v * v;
+        return energy;
+    }
+}
@@ -0,0 +1,287 @@
+package com.nfaralli.particleflow;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * Compiles and links programs without blocking the GL thread, so that a first (placeholder)
+ * frame can be shown while the drivers compile the shaders.
+ * With GL_KHR_parallel_shader_compile the driver compiles in its own threads and the GL thread
+ * only polls GL_COMPLETION_STATUS_KHR. Otherwise the programs are built on a worker thread whose
+ * context is in the share group of the GL thread's context. If that context cannot be created,
+ * the programs are built synchronously the first time they are polled.
+ * A compiler must be created on the GL thread, with the context it serves current. The programs
+ * are registered in the GlResources group of that context.
+ */
+public class ProgramCompiler {
+
+    private static final String TAG = "ProgramCompiler";
+    private static final int GL_COMPLETION_STATUS_KHR = 0x91B1;
+
+    /** A program being built. isReady and get must be called on the GL thread. */
+    public interface Program {
+        /** Whether the program is built (never blocks, except in the synchronous fallback). */
+        boolean isReady();
+        /** The program name, or 0 if it is not ready. */
+        int get();
+        /**
+         * Deletes the program, now if it is built and once built otherwise, whether get was
+         * called or not. The program must not be used afterwards.
+         */
+        void discard();
+    }
+
+    private final boolean mParallelCompile;
+    private final int mGroup;
+    private ExecutorService mWorker;
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mWorkerContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mWorkerSurface = EGL14.EGL_NO_SURFACE;
+    private volatile boolean mWorkerFailed = false;
+
+    public ProgramCompiler() {
+        String extensions = GLES31.glGetString(GLES31.GL_EXTENSIONS);
+        mParallelCompile = extensions != null && extensions.contains("GL_KHR_parallel_shader_compile");
+        mGroup = GlResources.getCurrentGroup();
+        if (mParallelCompile) return;
+        final EGLDisplay display = EGL14.eglGetCurrentDisplay();
+        final EGLContext shareContext = EGL14.eglGetCurrentContext();
+        final EGLConfig config = getCurrentConfig(display, shareContext);
+        if (config == null) {
+            mWorkerFailed = true;
+            return;
+        }
+        mDisplay = display;
+        mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ProgramCompiler");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                createWorkerContext(display, config, shareContext);
+            }
+        });
+    }
+
+    public boolean usesParallelCompile() {
+        return mParallelCompile;
+    }
+
+    /** The config of a context, or null if it cannot be found. */
+    static EGLConfig getCurrentConfig(EGLDisplay display, EGLContext context) {
+        if (display == EGL14.EGL_NO_DISPLAY || context == EGL14.EGL_NO_CONTEXT) return null;
+        int[] configId = new int[1];
+        if (!EGL14.eglQueryContext(display, context, EGL14.EGL_CONFIG_ID, configId, 0)) return null;
+        int[] attribs = {EGL14.EGL_CONFIG_ID, configId[0], EGL14.EGL_NONE};
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(display, attribs, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] == 0) {
+            return null;
+        }
+        return configs[0];
+    }
+
+    /** Worker thread: creates a context sharing the GL thread's objects, on a 1x1 pbuffer. */
+    private void createWorkerContext(EGLDisplay display, EGLConfig config, EGLContext shareContext) {
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+        mWorkerContext = EGL14.eglCreateContext(display, config, shareContext, contextAttribs, 0);
+        if (mWorkerContext != EGL14.EGL_NO_CONTEXT) {
+            int[] surfaceAttribs = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+            mWorkerSurface = EGL14.eglCreatePbufferSurface(display, config, surfaceAttribs, 0);
+            if (mWorkerSurface != EGL14.EGL_NO_SURFACE
+                    && EGL14.eglMakeCurrent(display, mWorkerSurface, mWorkerSurface, mWorkerContext)) {
+                GlResources.setCurrentGroup(mGroup);
+                return;
+            }
+        }
+        Log.w(TAG, "Cannot create the compiler context (0x" + Integer.toHexString(EGL14.eglGetError())
+                + "), compiling on the GL thread");
+        destroyWorkerContext();
+        mWorkerFailed = true;
+    }
+
+    private void destroyWorkerContext() {
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (mWorkerSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(mDisplay, mWorkerSurface);
+        if (mWorkerContext != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(mDisplay, mWorkerContext);
+        mWorkerSurface = EGL14.EGL_NO_SURFACE;
+        mWorkerContext = EGL14.EGL_NO_CONTEXT;
+    }
+
+    public Program compile(String vertexCode, String fragmentCode) {
+        return submit(new String[] {vertexCode, fragmentCode},
+                new int[] {GLES31.GL_VERTEX_SHADER, GLES31.GL_FRAGMENT_SHADER});
+    }
+
+    public Program compileCompute(String computeCode) {
+        return submit(new String[] {computeCode}, new int[] {GLES31.GL_COMPUTE_SHADER});
+    }
+
+    private Program submit(String[] sources, int[] types) {
+        final String site = GlResources.getCallSite();
+        if (mParallelCompile) {
+            // The compile and link calls return immediately, the status queries would block.
+            final int program = GLES31.glCreateProgram();
+            GlResources.track(GlResources.PROGRAM, program, TAG, site);
+            final int[] shaders = new int[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                shaders[i] = GLES31.glCreateShader(types[i]);
+                GlResources.track(GlResources.SHADER, shaders[i], TAG, site);
+                GLES31.glShaderSource(shaders[i], sources[i]);
+                GLES31.glCompileShader(shaders[i]);
+                GLES31.glAttachShader(program, shaders[i]);
+            }
+            GLES31.glLinkProgram(program);
+            // Attached shaders are only flagged: they stay queryable until the program goes.
+            GlResources.delete(GlResources.SHADER, shaders, 0, shaders.length);
+            return new Program() {
+                private boolean mReady = false;
+                private boolean mDiscarded = false;
+
+                @Override
+                public boolean isReady() {
+                    if (mReady) return true;
+                    if (mDiscarded) return false;
+                    int[] status = new int[1];
+                    GLES31.glGetProgramiv(program, GL_COMPLETION_STATUS_KHR, status, 0);
+                    if (status[0] == 0) return false;
+                    for (int shader : shaders) checkShader(shader);
+                    checkProgram(program);
+                    mReady = true;
+                    return true;
+                }
+
+                @Override
+                public int get() {
+                    return mReady ? program : 0;
+                }
+
+                @Override
+                public void discard() {
+                    if (mDiscarded) return;
+                    mDiscarded = true;
+                    mReady = false;
+                    GlResources.delete(GlResources.PROGRAM, program);
+                }
+            };
+        }
+        return new WorkerProgram(sources, types, site);
+    }
+
+    /** Program built on the worker thread, or on the GL thread if the worker has no context. */
+    private class WorkerProgram implements Program, Runnable {
+        private final String[] mSources;
+        private final int[] mTypes;
+        private final String mSite;
+        private volatile int mProgram = 0;
+        private volatile boolean mDone = false;
+        private boolean mDiscarded = false; // Guarded by this.
+
+        WorkerProgram(String[] sources, int[] types, String site) {
+            mSources = sources;
+            mTypes = types;
+            mSite = site;
+            if (!mWorkerFailed) mWorker.execute(this);
+        }
+
+        @Override
+        public void run() {
+            if (mWorkerFailed) return; // Built by the GL thread instead.
+            int program = build(mSources, mTypes);
+            // The objects must be complete before another context of the group uses them.
+            GLES31.glFinish();
+            synchronized (this) {
+                // Only registered once handed out: the group may be released meanwhile.
+                if (mDiscarded) {
+                    GLES31.glDeleteProgram(program);
+                    return;
+                }
+                // Deleted instead if the group was released meanwhile.
+                if (!GlResources.track(GlResources.PROGRAM, program, TAG, mSite)) return;
+                mProgram = program;
+                mDone = true;
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            if (!mDone && mWorkerFailed) {
+                synchronized (this) {
+                    if (mDiscarded) return false;
+                }
+                mProgram = build(mSources, mTypes);
+                GlResources.track(GlResources.PROGRAM, mProgram, TAG, mSite);
+                mDone = true;
+            }
+            return mDone;
+        }
+
+        @Override
+        public int get() {
+            return mDone ? mProgram : 0;
+        }
+
+        @Override
+        public synchronized void discard() {
+            if (mDiscarded) return;
+            mDiscarded = true;
+            // Otherwise the worker deletes it once built (or it is never built).
+            if (mDone) GlResources.delete(GlResources.PROGRAM, mProgram);
+            mProgram = 0;
+            mDone = false;
+        }
+    }
+
+    /** Builds a program, not registered yet; its shaders are deleted once linked. */
+    private static int build(String[] sources, int[] types) {
+        int program = GLES31.glCreateProgram();
+        int[] shaders = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            shaders[i] = ShaderUtils.loadShader(types[i], sources[i]);
+            GLES31.glAttachShader(program, shaders[i]);
+        }
+        GLES31.glLinkProgram(program);
+        checkProgram(program);
+        GlResources.delete(GlResources.SHADER, shaders, 0, shaders.length);
+        return program;
+    }
+
+    private static void checkShader(int shader) {
+        int[] compiled = new int[1];
+        GLES31.glGetShaderiv(shader, GLES31.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) Log.e(TAG, "Shader error: " + GLES31.glGetShaderInfoLog(shader));
+    }
+
+    private static void checkProgram(int program) {
+        int[] linked = new int[1];
+        GLES31.glGetProgramiv(program, GLES31.GL_LINK_STATUS, linked, 0);
+        if (linked[0] == 0) Log.e(TAG, "Link error: " + GLES31.glGetProgramInfoLog(program));
+    }
+
+    /** Stops the worker once the pending programs are built, and destroys its context. */
+    public void release() {
+        if (mWorker == null) return;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                destroyWorkerContext();
+            }
+        });
+        mWorker.shutdown();
+        mWorker = null;
+    }
+}
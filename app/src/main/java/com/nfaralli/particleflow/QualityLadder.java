@@ -0,0 +1,119 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Steps the rendering quality down as the device heats up, and back up once it has cooled
+ * down for a while. The rungs first lower what costs nothing to change (render scale, frame
+ * rate, trails) and only then the number of particles (which resets them).
+ * The thermal status gives the level to reach, and the headroom forecast steps down before the
+ * status changes. Steps down are immediate, steps up are one rung at a time after STEP_UP_DELAY_NS.
+ * This class has no Android dependencies: the platform is behind ThermalSource.
+ */
+public class QualityLadder {
+
+    public static final int TRAILS_AS_SET = 0;
+    public static final int TRAILS_FEEDBACK = 1; // Cost independent of the number of particles.
+    public static final int TRAILS_OFF = 2;
+
+    /** One rung of the ladder. A maxFrameRate of 0 means no cap. */
+    public static final class Level {
+        public final float particleFraction;
+        public final float renderScale;
+        public final int trails;
+        public final float maxFrameRate;
+
+        Level(float particleFraction, float renderScale, int trails, float maxFrameRate) {
+            this.particleFraction = particleFraction;
+            this.renderScale = renderScale;
+            this.trails = trails;
+            this.maxFrameRate = maxFrameRate;
+        }
+    }
+
+    private static final Level[] LEVELS = {
+        new Level(1f, 1f, TRAILS_AS_SET, 0f),
+        new Level(1f, 0.75f, TRAILS_AS_SET, 0f),
+        new Level(1f, 0.75f, TRAILS_FEEDBACK, 60f),
+        new Level(0.5f, 0.5f, TRAILS_FEEDBACK, 30f),
+        new Level(0.25f, 0.5f, TRAILS_OFF, 30f),
+    };
+
+    // The headroom may not be queried more than once per second.
+    private static final long SAMPLE_PERIOD_NS = 2000000000L;
+    private static final long STEP_UP_DELAY_NS = 30000000000L;
+    private static final int FORECAST_SECONDS = 10;
+    // Forecast headroom from which each level is reached (1.0 is the throttling threshold).
+    private static final float[] HEADROOM_LEVELS = {0f, 0.75f, 0.9f, 1f};
+
+    private final ThermalSource mSource;
+    private boolean mEnabled = true;
+    private int mLevel = 0;
+    private long mLastSampleNs = 0;
+    private long mCoolSinceNs = 0;
+    private int mStatus = ThermalSource.STATUS_NONE;
+    private float mHeadroom = Float.NaN;
+
+    public QualityLadder(ThermalSource source) {
+        mSource = source;
+    }
+
+    /** When disabled the ladder stays on its first rung. */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) { mLevel = 0; mCoolSinceNs = 0; }
+    }
+
+    /**
+     * Samples the thermal source (at most every SAMPLE_PERIOD_NS) and moves along the ladder.
+     * Returns whether the level changed.
+     */
+    public boolean update(long nowNs) {
+        if (mLastSampleNs != 0 && nowNs - mLastSampleNs < SAMPLE_PERIOD_NS) return false;
+        mLastSampleNs = nowNs;
+        mStatus = mSource.getThermalStatus();
+        mHeadroom = mSource.getThermalHeadroom(FORECAST_SECONDS);
+        if (!mEnabled) return false;
+        int target = getTargetLevel(mStatus, mHeadroom);
+        if (target > mLevel) {
+            mLevel = target;
+            mCoolSinceNs = 0;
+            return true;
+        }
+        if (target == mLevel) {
+            mCoolSinceNs = 0;
+        } else if (mCoolSinceNs == 0) {
+            mCoolSinceNs = nowNs;
+        } else if (nowNs - mCoolSinceNs >= STEP_UP_DELAY_NS) {
+            mLevel--;
+            mCoolSinceNs = nowNs;
+            return true;
+        }
+        return false;
+    }
+
+    /** Level matching a thermal status and a headroom forecast (NaN if unknown). */
+    static int getTargetLevel(int status, float headroom) {
+        int level = Math.min(status, LEVELS.length - 1);
+        if (!Float.isNaN(headroom)) {
+            for (int i = HEADROOM_LEVELS.length - 1; i > level; i--) {
+                if (headroom >= HEADROOM_LEVELS[i]) { level = i; break; }
+            }
+        }
+        return level;
+    }
+
+    public int getLevelIndex() {
+        return mLevel;
+    }
+
+    public Level getLevel() {
+        return LEVELS[mLevel];
+    }
+
+    public int getThermalStatus() {
+        return mStatus;
+    }
+
+    public float getThermalHeadroom() {
+        return mHeadroom;
+    }
+}
@@ -0,0 +1,123 @@
+package com.nfaralli.particleflow;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process registry of render loop metrics: counters (e.g. program rebuilds), gauges
+ * (e.g. buffer bytes) and a short history of frame times used for percentiles.
+ * Written from the GL thread, readable from any thread, and free of Android dependencies so
+ * that it can also be used by the desktop harness.
+ */
+public class RenderMetrics {
+
+    // Well known metric names.
+    public static final String FRAMES = "frames";
+    public static final String PROGRAM_REBUILDS = "program_rebuilds";
+    public static final String BUFFER_BYTES = "buffer_bytes";
+    public static final String PARTICLES = "particles";
+    public static final String PARTICLES_PER_SECOND = "particles_per_second";
+
+    private static final int FRAME_HISTORY = 256;
+
+    private final ConcurrentMap<String, AtomicLong> mCounters = new ConcurrentSkipListMap<>();
+    private final Map<String, Double> mGauges = new ConcurrentSkipListMap<>();
+
+    private final long[] mFrameTimesNs = new long[FRAME_HISTORY];
+    private int mFrameIndex = 0;
+    private int mFrameSamples = 0;
+    private double mAvgFrameTimeNs = 0;
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        counter.addAndGet(delta);
+    }
+
+    public long getCounter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    public void set(String name, double value) {
+        mGauges.put(name, value);
+    }
+
+    public double getGauge(String name) {
+        Double value = mGauges.get(name);
+        return value != null ? value : 0;
+    }
+
+    /** Records the duration of one frame that simulated and drew numParticles particles. */
+    public synchronized void recordFrame(long frameTimeNs, int numParticles) {
+        if (frameTimeNs <= 0) return;
+        mFrameTimesNs[mFrameIndex] = frameTimeNs;
+        mFrameIndex = (mFrameIndex + 1) % FRAME_HISTORY;
+        if (mFrameSamples < FRAME_HISTORY) mFrameSamples++;
+        mAvgFrameTimeNs = mAvgFrameTimeNs == 0 ? frameTimeNs : mAvgFrameTimeNs * 0.95 + frameTimeNs * 0.05;
+        increment(FRAMES);
+        set(PARTICLES, numParticles);
+        set(PARTICLES_PER_SECOND, numParticles * 1e9 / mAvgFrameTimeNs);
+    }
+
+    /** Returns the given percentile (0-100) of the recent frame times, in milliseconds. */
+    public synchronized double getFrameTimePercentileMs(double percentile) {
+        if (mFrameSamples == 0) return 0;
+        long[] sorted = Arrays.copyOf(mFrameTimesNs, mFrameSamples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * mFrameSamples) - 1;
+        return sorted[Math.max(0, Math.min(mFrameSamples - 1, index))] * 1e-6;
+    }
+
+    public synchronized void reset() {
+        mCounters.clear();
+        mGauges.clear();
+        mFrameIndex = 0;
+        mFrameSamples = 0;
+        mAvgFrameTimeNs = 0;
+    }
+
+    /** Dumps all the metrics as a single JSON object. */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"frame_time_ms\":{");
+        appendNumber(sb, "p50", getFrameTimePercentileMs(50)).append(',');
+        appendNumber(sb, "p90", getFrameTimePercentileMs(90)).append(',');
+        appendNumber(sb, "p99", getFrameTimePercentileMs(99)).append(',');
+        appendNumber(sb, "max", getFrameTimePercentileMs(100));
+        sb.append("},\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, AtomicLong> e : mCounters.entrySet()) {
+            if (!first) sb.append(',');
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue().get());
+            first = false;
+        }
+        sb.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Double> e : mGauges.entrySet()) {
+            if (!first) sb.append(',');
+            appendNumber(sb, e.getKey(), e.getValue());
+            first = false;
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static StringBuilder appendNumber(StringBuilder sb, String name, double value) {
+        sb.append('"').append(name).append("\":");
+        if (Double.isNaN(value) || Double.isInfinite(value)) return sb.append("null");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return sb.append((long) value);
+        return sb.append(String.format(Locale.US, "%.3f", value));
+    }
+}
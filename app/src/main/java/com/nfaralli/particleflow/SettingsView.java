@@ -25,6 +25,12 @@ public class SettingsView extends FrameLayout {
     private GradientView mBGGradientView;
     private GradientView mPartGradientView;
     private Spinner mHueDirection;
+    private Spinner mPalettePreset;
+    private Spinner mPaletteInterpolation;
+    private Spinner mInteractionMode;
+    private Spinner mBoundaryMode;
+    private Spinner mResizePolicy;
+    private Spinner mParticleSource;
     private CheckBox mShowFpsCheckBox;
     private View mFpsControlsContainer;
     private ColorView mFpsColor;
@@ -33,21 +39,53 @@ public class SettingsView extends FrameLayout {
     private Spinner mFpsPosition;
 
     private CheckBox mUseDoubleBufferCheckBox;
+    private Spinner mBufferRingDepth;
     private CheckBox mConstantSpeedCheckBox;
     private CheckBox mColorCorrectionCheckBox;
     private CheckBox mMotionBlurCheckBox;
+    private Spinner mTrailMode;
+    private View mFeedbackTrailControls;
+    private Spinner mTrailResolution;
+    private CheckBox mTrailLowPrecisionCheckBox;
     private CheckBox mAlphaBlendingCheckBox;
+    private CheckBox mCullOffscreenCheckBox;
+    private CheckBox mCpuSimulationCheckBox;
+    private CheckBox mSimulationThreadCheckBox;
     private CheckBox mGlowModeCheckBox;
     
     private SeekBar mGlowIntensity;
     private TextView mGlowIntensityLabel;
     private SeekBar mBlurStrength;
     private TextView mBlurStrengthLabel;
+    private Spinner mRenderScale;
+    private Spinner mWallpaperRenderScale;
+    private CheckBox mMsaaCheckBox;
+    private CheckBox mAdaptiveQualityCheckBox;
+    private CheckBox mLiveMetricsCheckBox;
     private SeekBar mWorkgroupSize;
     private TextView mWorkgroupSizeLabel;
+    private Spinner mPrecisionTier;
     
     private SharedPreferences mPrefs;
 
+    /** Receives the uniform-only settings while they are tuned (before they are saved). */
+    public interface OnTuningChangedListener {
+        void onTuningChanged(int attraction, int dragPercent, float glowIntensity, float blurStrength);
+    }
+
+    // SeekBars fire on every pixel of a drag: only the last value of a burst is sent.
+    private static final long TUNING_DEBOUNCE_MS = 50;
+    private OnTuningChangedListener mOnTuningChangedListener;
+    private final Runnable mTuningRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mOnTuningChangedListener == null) return;
+            mOnTuningChangedListener.onTuningChanged(mF01AttractionSeekBar.getProgress(),
+                    mF01DragSeekBar.getProgress(), (mGlowIntensity.getProgress() + 1) / 10.0f,
+                    mBlurStrength.getProgress() / 100.0f);
+        }
+    };
+
     public SettingsView(Context context) {
         super(context);
         addView(inflate(getContext(), R.layout.settings, null));
@@ -61,6 +99,12 @@ public class SettingsView extends FrameLayout {
         mBGGradientView = (GradientView)findViewById(R.id.bgGradientView);
         mPartGradientView = (GradientView)findViewById(R.id.gradientView);
         mHueDirection = (Spinner)findViewById(R.id.hueDirection);
+        mPalettePreset = (Spinner)findViewById(R.id.palettePreset);
+        mPaletteInterpolation = (Spinner)findViewById(R.id.paletteInterpolation);
+        mInteractionMode = (Spinner)findViewById(R.id.interactionMode);
+        mBoundaryMode = (Spinner)findViewById(R.id.boundaryMode);
+        mResizePolicy = (Spinner)findViewById(R.id.resizePolicy);
+        mParticleSource = (Spinner)findViewById(R.id.particleSource);
         mF01Attraction = (ValidatedEditText)findViewById(R.id.f01_attraction);
         mF01Drag = (ValidatedEditText)findViewById(R.id.f01_drag);
         
@@ -77,18 +121,32 @@ public class SettingsView extends FrameLayout {
         mFpsPosition = (Spinner)findViewById(R.id.fpsPosition);
 
         mUseDoubleBufferCheckBox = (CheckBox)findViewById(R.id.useDoubleBuffer);
+        mBufferRingDepth = (Spinner)findViewById(R.id.bufferRingDepth);
         mConstantSpeedCheckBox = (CheckBox) findViewById(R.id.constant_speed_checkbox);
         mColorCorrectionCheckBox = (CheckBox) findViewById(R.id.color_correction_checkbox);
         mMotionBlurCheckBox = (CheckBox) findViewById(R.id.motionBlur);
+        mTrailMode = (Spinner) findViewById(R.id.trailMode);
+        mFeedbackTrailControls = findViewById(R.id.feedbackTrailControls);
+        mTrailResolution = (Spinner) findViewById(R.id.trailResolution);
+        mTrailLowPrecisionCheckBox = (CheckBox) findViewById(R.id.trailLowPrecision);
         mAlphaBlendingCheckBox = (CheckBox) findViewById(R.id.alphaBlending);
+        mCullOffscreenCheckBox = (CheckBox) findViewById(R.id.cullOffscreen);
+        mCpuSimulationCheckBox = (CheckBox) findViewById(R.id.cpuSimulation);
+        mSimulationThreadCheckBox = (CheckBox) findViewById(R.id.simulationThread);
         mGlowModeCheckBox = (CheckBox) findViewById(R.id.glowMode);
         
         mGlowIntensity = (SeekBar) findViewById(R.id.glowIntensity);
         mGlowIntensityLabel = (TextView) findViewById(R.id.glowIntensityLabel);
         mBlurStrength = (SeekBar) findViewById(R.id.blurStrength);
         mBlurStrengthLabel = (TextView) findViewById(R.id.blurStrengthLabel);
+        mRenderScale = (Spinner) findViewById(R.id.renderScale);
+        mWallpaperRenderScale = (Spinner) findViewById(R.id.wallpaperRenderScale);
+        mMsaaCheckBox = (CheckBox) findViewById(R.id.renderMsaa);
+        mAdaptiveQualityCheckBox = (CheckBox) findViewById(R.id.adaptiveQuality);
+        mLiveMetricsCheckBox = (CheckBox) findViewById(R.id.liveMetrics);
         mWorkgroupSize = (SeekBar) findViewById(R.id.workgroupSize);
         mWorkgroupSizeLabel = (TextView) findViewById(R.id.workgroupSizeLabel);
+        mPrecisionTier = (Spinner) findViewById(R.id.precisionTier);
 
         mNumParticles.setMinValue(1);
         mNumParticles.setMaxValue(ParticlesSurfaceView.MAX_NUM_PARTICLES);
@@ -107,12 +165,24 @@ public class SettingsView extends FrameLayout {
         loadValues();
     }
 
+    public void setOnTuningChangedListener(OnTuningChangedListener listener) {
+        mOnTuningChangedListener = listener;
+    }
+
+    /** Previews the tuning after a user edit; values loaded by code are not previewed. */
+    private void scheduleTuningUpdate() {
+        removeCallbacks(mTuningRunnable);
+        postDelayed(mTuningRunnable, TUNING_DEBOUNCE_MS);
+    }
+
     private void setupListeners() {
         // --- Sync Listeners for Attraction ---
         mF01AttractionSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                if (fromUser) mF01Attraction.setText(String.valueOf(progress));
+                if (!fromUser) return;
+                mF01Attraction.setText(String.valueOf(progress));
+                scheduleTuningUpdate();
             }
             @Override public void onStartTrackingTouch(SeekBar seekBar) {}
             @Override public void onStopTrackingTouch(SeekBar seekBar) {}
@@ -124,6 +194,7 @@ public class SettingsView extends FrameLayout {
                     int val = Integer.parseInt(str);
                     if (val != mF01AttractionSeekBar.getProgress()) {
                         mF01AttractionSeekBar.setProgress(val);
+                        scheduleTuningUpdate();
                     }
                 } catch (NumberFormatException ignored) {}
             }
@@ -133,7 +204,9 @@ public class SettingsView extends FrameLayout {
         mF01DragSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                if (fromUser) mF01Drag.setText(String.valueOf(progress));
+                if (!fromUser) return;
+                mF01Drag.setText(String.valueOf(progress));
+                scheduleTuningUpdate();
             }
             @Override public void onStartTrackingTouch(SeekBar seekBar) {}
             @Override public void onStopTrackingTouch(SeekBar seekBar) {}
@@ -145,6 +218,7 @@ public class SettingsView extends FrameLayout {
                     int val = Integer.parseInt(str);
                     if (val != mF01DragSeekBar.getProgress()) {
                         mF01DragSeekBar.setProgress(val);
+                        scheduleTuningUpdate();
                     }
                 } catch (NumberFormatException ignored) {}
             }
@@ -198,6 +272,13 @@ public class SettingsView extends FrameLayout {
             @Override public void onNothingSelected(AdapterView<?> parent) {}
         });
 
+        mUseDoubleBufferCheckBox.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                updateVisibility();
+            }
+        });
+
         mMotionBlurCheckBox.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -205,6 +286,14 @@ public class SettingsView extends FrameLayout {
             }
         });
 
+        mTrailMode.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                updateVisibility();
+            }
+            @Override public void onNothingSelected(AdapterView<?> parent) {}
+        });
+
         mGlowModeCheckBox.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -216,6 +305,7 @@ public class SettingsView extends FrameLayout {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 mGlowIntensityLabel.setText("Glow Intensity: " + String.format("%.1f", (progress + 1) / 10.0f));
+                if (fromUser) scheduleTuningUpdate();
             }
             @Override public void onStartTrackingTouch(SeekBar seekBar) {}
             @Override public void onStopTrackingTouch(SeekBar seekBar) {}
@@ -225,6 +315,7 @@ public class SettingsView extends FrameLayout {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 mBlurStrengthLabel.setText("Blur Strength: " + (progress / 100.0f));
+                if (fromUser) scheduleTuningUpdate();
             }
             @Override public void onStartTrackingTouch(SeekBar seekBar) {}
             @Override public void onStopTrackingTouch(SeekBar seekBar) {}
@@ -243,16 +334,23 @@ public class SettingsView extends FrameLayout {
             @Override
             public void onClick(View v) {
                 loadDefaultValues();
+                // Previews the default tuning like a user edit (loadValues does not).
+                scheduleTuningUpdate();
             }
         });
     }
 
     private void updateVisibility() {
         mFpsControlsContainer.setVisibility(mShowFpsCheckBox.isChecked() ? View.VISIBLE : View.GONE);
+        mBufferRingDepth.setVisibility(mUseDoubleBufferCheckBox.isChecked() ? View.VISIBLE : View.GONE);
 
         int blurVis = mMotionBlurCheckBox.isChecked() ? View.VISIBLE : View.GONE;
         mBlurStrength.setVisibility(blurVis);
         mBlurStrengthLabel.setVisibility(blurVis);
+        mTrailMode.setVisibility(blurVis);
+        mFeedbackTrailControls.setVisibility(mMotionBlurCheckBox.isChecked()
+                && mTrailMode.getSelectedItemPosition() == ParticlesRenderer.TRAIL_MODE_FEEDBACK
+                ? View.VISIBLE : View.GONE);
 
         int glowVis = mGlowModeCheckBox.isChecked() ? View.VISIBLE : View.GONE;
         mGlowIntensity.setVisibility(glowVis);
@@ -267,6 +365,12 @@ public class SettingsView extends FrameLayout {
         mSlowPColor.setColor(mPrefs.getInt("SlowColor", ParticlesSurfaceView.DEFAULT_SLOW_COLOR));
         mFastPColor.setColor(mPrefs.getInt("FastColor", ParticlesSurfaceView.DEFAULT_FAST_COLOR));
         mHueDirection.setSelection(mPrefs.getInt("HueDirection", ParticlesSurfaceView.DEFAULT_HUE_DIRECTION));
+        mPalettePreset.setSelection(mPrefs.getInt("palette_preset", Palette.PRESET_CUSTOM));
+        mPaletteInterpolation.setSelection(mPrefs.getInt("palette_interpolation", Palette.INTERPOLATION_HSV));
+        mInteractionMode.setSelection(mPrefs.getInt("interaction_mode", ParticleSimulation.INTERACTION_OFF));
+        mBoundaryMode.setSelection(mPrefs.getInt("boundary_mode", ParticleSimulation.BOUNDARY_NONE));
+        mResizePolicy.setSelection(mPrefs.getInt("resize_policy", ParticleSimulation.RESIZE_LETTERBOX));
+        mParticleSource.setSelection(mPrefs.getInt("particle_source", ParticleEmitter.SOURCE_FIXED));
         int f01Att = mPrefs.getInt("F01Attraction", ParticlesSurfaceView.DEFAULT_F01_ATTRACTION_COEF);
         mF01Attraction.setText(String.valueOf(f01Att));
         mF01AttractionSeekBar.setProgress(f01Att);
@@ -281,10 +385,19 @@ public class SettingsView extends FrameLayout {
         mFpsPosition.setSelection(mPrefs.getInt("fps_position", 0));
 
         mUseDoubleBufferCheckBox.setChecked(mPrefs.getBoolean("use_double_buffer", false));
+        mBufferRingDepth.setSelection(mPrefs.getInt("buffer_ring_depth", ParticleSimulation.MAX_RING_DEPTH) - 2);
         mConstantSpeedCheckBox.setChecked(mPrefs.getBoolean("constant_speed", false));
         mColorCorrectionCheckBox.setChecked(mPrefs.getBoolean("color_correction", false));
         mMotionBlurCheckBox.setChecked(mPrefs.getBoolean("motion_blur", false));
+        mTrailMode.setSelection(mPrefs.getInt("trail_mode", ParticlesRenderer.TRAIL_MODE_GEOMETRY));
+        // Full, half and quarter resolution.
+        float trailScale = mPrefs.getFloat("trail_scale", 1.0f);
+        mTrailResolution.setSelection(trailScale > 0.75f ? 0 : trailScale > 0.375f ? 1 : 2);
+        mTrailLowPrecisionCheckBox.setChecked(mPrefs.getBoolean("trail_low_precision", false));
         mAlphaBlendingCheckBox.setChecked(mPrefs.getBoolean("alpha_blending", false));
+        mCullOffscreenCheckBox.setChecked(mPrefs.getBoolean("cull_offscreen", false));
+        mCpuSimulationCheckBox.setChecked(mPrefs.getBoolean("cpu_simulation", false));
+        mSimulationThreadCheckBox.setChecked(mPrefs.getBoolean("simulation_thread", false));
         mGlowModeCheckBox.setChecked(mPrefs.getBoolean("glow_mode", false));
         
         float gInt = mPrefs.getFloat("glow_intensity", 1.0f);
@@ -295,9 +408,16 @@ public class SettingsView extends FrameLayout {
         mBlurStrength.setProgress((int)(bStr * 100));
         mBlurStrengthLabel.setText("Trail Factor: " + bStr);
 
+        mRenderScale.setSelection(getRenderScalePosition(mPrefs.getFloat("render_scale", 1.0f)));
+        mWallpaperRenderScale.setSelection(getRenderScalePosition(mPrefs.getFloat("wallpaper_render_scale", 1.0f)));
+        mMsaaCheckBox.setChecked(mPrefs.getBoolean("render_msaa", false));
+        mAdaptiveQualityCheckBox.setChecked(mPrefs.getBoolean("adaptive_quality", true));
+        mLiveMetricsCheckBox.setChecked(mPrefs.getBoolean("live_metrics", false));
+
         int wgSize = mPrefs.getInt("WorkgroupSize", 256);
         mWorkgroupSize.setProgress((wgSize / 32) - 1);
         mWorkgroupSizeLabel.setText("Workgroup Size: " + wgSize);
+        mPrecisionTier.setSelection(mPrefs.getInt("precision_tier", ParticleSimulation.PRECISION_AUTO));
         
         updateVisibility();
     }
@@ -310,6 +430,12 @@ public class SettingsView extends FrameLayout {
         mSlowPColor.setColor(ParticlesSurfaceView.DEFAULT_SLOW_COLOR);
         mFastPColor.setColor(ParticlesSurfaceView.DEFAULT_FAST_COLOR);
         mHueDirection.setSelection(ParticlesSurfaceView.DEFAULT_HUE_DIRECTION);
+        mPalettePreset.setSelection(Palette.PRESET_CUSTOM);
+        mPaletteInterpolation.setSelection(Palette.INTERPOLATION_HSV);
+        mInteractionMode.setSelection(ParticleSimulation.INTERACTION_OFF);
+        mBoundaryMode.setSelection(ParticleSimulation.BOUNDARY_NONE);
+        mResizePolicy.setSelection(ParticleSimulation.RESIZE_LETTERBOX);
+        mParticleSource.setSelection(ParticleEmitter.SOURCE_FIXED);
         mF01Attraction.setText(String.valueOf(ParticlesSurfaceView.DEFAULT_F01_ATTRACTION_COEF));
         mF01AttractionSeekBar.setProgress(ParticlesSurfaceView.DEFAULT_F01_ATTRACTION_COEF);
         mF01Drag.setText("4");
@@ -321,16 +447,29 @@ public class SettingsView extends FrameLayout {
         mFpsPosition.setSelection(0);
         mShowFpsCheckBox.setChecked(false);
         mUseDoubleBufferCheckBox.setChecked(false);
+        mBufferRingDepth.setSelection(ParticleSimulation.MAX_RING_DEPTH - 2);
         mConstantSpeedCheckBox.setChecked(false);
         mColorCorrectionCheckBox.setChecked(false);
         mMotionBlurCheckBox.setChecked(false);
+        mTrailMode.setSelection(ParticlesRenderer.TRAIL_MODE_GEOMETRY);
+        mTrailResolution.setSelection(0);
+        mTrailLowPrecisionCheckBox.setChecked(false);
         mAlphaBlendingCheckBox.setChecked(false);
+        mCullOffscreenCheckBox.setChecked(false);
+        mCpuSimulationCheckBox.setChecked(false);
+        mSimulationThreadCheckBox.setChecked(false);
         mGlowModeCheckBox.setChecked(false);
         mGlowIntensity.setProgress(9); // 1.0
         mGlowIntensityLabel.setText("Glow Intensity: 1.0");
         mBlurStrength.setProgress(100);
         mBlurStrengthLabel.setText("Trail Factor: 1.0");
+        mRenderScale.setSelection(0);
+        mWallpaperRenderScale.setSelection(0);
+        mMsaaCheckBox.setChecked(false);
+        mAdaptiveQualityCheckBox.setChecked(true);
+        mLiveMetricsCheckBox.setChecked(false);
         mWorkgroupSize.setProgress(7); // 256
+        mPrecisionTier.setSelection(ParticleSimulation.PRECISION_AUTO);
         updateVisibility();
     }
 
@@ -346,6 +485,12 @@ public class SettingsView extends FrameLayout {
         editor.putInt("SlowColor", mSlowPColor.getColor());
         editor.putInt("FastColor", mFastPColor.getColor());
         editor.putInt("HueDirection", mHueDirection.getSelectedItemPosition());
+        editor.putInt("palette_preset", mPalettePreset.getSelectedItemPosition());
+        editor.putInt("palette_interpolation", mPaletteInterpolation.getSelectedItemPosition());
+        editor.putInt("interaction_mode", mInteractionMode.getSelectedItemPosition());
+        editor.putInt("boundary_mode", mBoundaryMode.getSelectedItemPosition());
+        editor.putInt("resize_policy", mResizePolicy.getSelectedItemPosition());
+        editor.putInt("particle_source", mParticleSource.getSelectedItemPosition());
         editor.putInt("F01Attraction", Integer.parseInt(mF01Attraction.getText().toString()));
         editor.putInt("F01Drag", Integer.parseInt(mF01Drag.getText().toString()));
         editor.putBoolean("show_fps", mShowFpsCheckBox.isChecked());
@@ -353,14 +498,38 @@ public class SettingsView extends FrameLayout {
         editor.putInt("fps_font_size", mFpsFontSize.getProgress());
         editor.putInt("fps_position", mFpsPosition.getSelectedItemPosition());
         editor.putBoolean("use_double_buffer", mUseDoubleBufferCheckBox.isChecked());
+        editor.putInt("buffer_ring_depth", mBufferRingDepth.getSelectedItemPosition() + 2);
         editor.putBoolean("constant_speed", mConstantSpeedCheckBox.isChecked());
         editor.putBoolean("color_correction", mColorCorrectionCheckBox.isChecked());
         editor.putBoolean("motion_blur", mMotionBlurCheckBox.isChecked());
+        editor.putInt("trail_mode", mTrailMode.getSelectedItemPosition());
+        editor.putFloat("trail_scale", 1.0f / (1 << mTrailResolution.getSelectedItemPosition()));
+        editor.putBoolean("trail_low_precision", mTrailLowPrecisionCheckBox.isChecked());
         editor.putBoolean("alpha_blending", mAlphaBlendingCheckBox.isChecked());
+        editor.putBoolean("cull_offscreen", mCullOffscreenCheckBox.isChecked());
+        editor.putBoolean("cpu_simulation", mCpuSimulationCheckBox.isChecked());
+        editor.putBoolean("simulation_thread", mSimulationThreadCheckBox.isChecked());
         editor.putBoolean("glow_mode", mGlowModeCheckBox.isChecked());
         editor.putFloat("glow_intensity", (mGlowIntensity.getProgress() + 1) / 10.0f);
         editor.putFloat("blur_strength", mBlurStrength.getProgress() / 100.0f);
+        editor.putFloat("render_scale", RENDER_SCALES[mRenderScale.getSelectedItemPosition()]);
+        editor.putFloat("wallpaper_render_scale", RENDER_SCALES[mWallpaperRenderScale.getSelectedItemPosition()]);
+        editor.putBoolean("render_msaa", mMsaaCheckBox.isChecked());
+        editor.putBoolean("adaptive_quality", mAdaptiveQualityCheckBox.isChecked());
+        editor.putBoolean("live_metrics", mLiveMetricsCheckBox.isChecked());
         editor.putInt("WorkgroupSize", (mWorkgroupSize.getProgress() + 1) * 32);
+        editor.putInt("precision_tier", mPrecisionTier.getSelectedItemPosition());
         editor.apply();
     }
-}
\ No newline at end of file
+
+    // Must match the render_scales string array.
+    private static final float[] RENDER_SCALES = {1.0f, 0.75f, 0.5f};
+
+    private static int getRenderScalePosition(float scale) {
+        int best = 0;
+        for (int i = 1; i < RENDER_SCALES.length; i++) {
+            if (Math.abs(RENDER_SCALES[i] - scale) < Math.abs(RENDER_SCALES[best] - scale)) best = i;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,25 @@
+package com.nfaralli.particleflow;
+
+import android.opengl.GLES31;
+import android.util.Log;
+
+/**
+ * Shader compilation for ProgramCompiler, which links the programs. Compile errors are logged,
+ * and the shaders are registered in GlResources.
+ */
+public final class ShaderUtils {
+
+    private static final String TAG = "ShaderUtils";
+
+    private ShaderUtils() {}
+
+    /** Compiles a shader (registered in GlResources: delete it with GlResources.delete). */
+    public static int loadShader(int type, String code) {
+        int s = GLES31.glCreateShader(type);
+        GlResources.track(GlResources.SHADER, s, TAG);
+        GLES31.glShaderSource(s, code); GLES31.glCompileShader(s);
+        int[] compiled = new int[1]; GLES31.glGetShaderiv(s, GLES31.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) Log.e(TAG, "Shader error: " + GLES31.glGetShaderInfoLog(s));
+        return s;
+    }
+}
@@ -0,0 +1,108 @@
+package com.nfaralli.particleflow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+import android.content.Context;
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+/**
+ * Reference-counted simulation shared by all the live wallpaper engines (launcher preview,
+ * home screen, lock screen...), so that the particles are simulated once and stored once in
+ * GPU memory whatever the number of engines.
+ * The engines' GL contexts are created by CONTEXT_FACTORY in a single share group, so that the
+ * buffers and programs of the simulation are visible to all of them.
+ */
+public final class SharedSimulation {
+
+    private static final String TAG = "SharedSimulation";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+    private static ParticleSimulation sSimulation;
+    private static int sRefCount = 0;
+
+    // Live contexts of the share group, and the generation of the group. The generation changes
+    // each time the group is recreated, i.e. when a context is created while none is alive.
+    private static final List<EGLContext> sContexts = new ArrayList<>();
+    private static int sGeneration = 0;
+    // Renderers with a live context in the group (see attachSurface).
+    private static int sSurfaces = 0;
+
+    private SharedSimulation() {}
+
+    public static synchronized ParticleSimulation acquire(Context context) {
+        if (sSimulation == null) {
+            sSimulation = new ParticleSimulation(context.getApplicationContext(), true);
+        }
+        sRefCount++;
+        return sSimulation;
+    }
+
+    public static synchronized void release(ParticleSimulation simulation) {
+        if (simulation != sSimulation || sRefCount == 0) return;
+        if (--sRefCount == 0) {
+            // Its GL objects were deleted by the last renderer detached from the group.
+            sSimulation = null;
+        }
+    }
+
+    public static synchronized int getRefCount() {
+        return sRefCount;
+    }
+
+    public static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Called by a renderer once its context is created: returns the GlResources group of the
+     * share group (the negated generation).
+     */
+    public static synchronized int attachSurface() {
+        sSurfaces++;
+        return -sGeneration;
+    }
+
+    /**
+     * Called by a renderer before its context goes away. Returns true if it was the last one
+     * attached, in which case the objects of the group must go with it.
+     */
+    public static synchronized boolean detachSurface() {
+        return sSurfaces > 0 && --sSurfaces == 0;
+    }
+
+    /** Creates every context in the share group of the contexts that are still alive. */
+    public static final GLSurfaceView.EGLContextFactory CONTEXT_FACTORY = new GLSurfaceView.EGLContextFactory() {
+        @Override
+        public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+            int[] attribs = {EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE};
+            synchronized (SharedSimulation.class) {
+                EGLContext share = sContexts.isEmpty() ? EGL10.EGL_NO_CONTEXT : sContexts.get(0);
+                EGLContext context = egl.eglCreateContext(display, config, share, attribs);
+                if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+                    Log.e(TAG, "eglCreateContext failed: 0x" + Integer.toHexString(egl.eglGetError()));
+                    return context;
+                }
+                if (sContexts.isEmpty()) sGeneration++;
+                sContexts.add(context);
+                return context;
+            }
+        }
+
+        @Override
+        public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+            synchronized (SharedSimulation.class) {
+                sContexts.remove(context);
+            }
+            if (!egl.eglDestroyContext(display, context)) {
+                Log.e(TAG, "eglDestroyContext failed: 0x" + Integer.toHexString(egl.eglGetError()));
+            }
+        }
+    };
+}
@@ -0,0 +1,150 @@
+package com.nfaralli.particleflow;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Steps a private simulation on its own thread, with a context in the share group of the
+ * renderer's context, at its own rate (the paced frame rate by default). The renderer no longer
+ * steps: it draws the newest slot whose step has completed (see ParticleSimulation.beginDraw),
+ * so a slow frame does not slow the simulation down and a slow step does not hold a frame. The
+ * slots are ordered between both contexts by their fences, like those of a shared simulation.
+ * Must be created on the GL thread, with the context it shares current. If its own context
+ * cannot be created the thread stops, and isRunning tells the renderer to step again.
+ */
+public class SimulationThread {
+
+    private static final String TAG = "SimulationThread";
+
+    private final ParticleSimulation mSimulation;
+    private final RenderMetrics mMetrics;
+    private final ProgramCompiler mCompiler;
+    private final int mGroup;
+    private final EGLDisplay mDisplay;
+    private final EGLConfig mConfig;
+    private final EGLContext mShareContext;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile boolean mPaused = false;
+    private volatile float mStepRate = 60f;
+    private volatile boolean mConstantSpeed = false;
+
+    public SimulationThread(ParticleSimulation simulation, RenderMetrics metrics, ProgramCompiler compiler) {
+        mSimulation = simulation;
+        mMetrics = metrics;
+        mCompiler = compiler;
+        mGroup = GlResources.getCurrentGroup();
+        mDisplay = EGL14.eglGetCurrentDisplay();
+        mShareContext = EGL14.eglGetCurrentContext();
+        mConfig = ProgramCompiler.getCurrentConfig(mDisplay, mShareContext);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                loop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /** Whether the thread steps the simulation (false once stopped, or if it has no context). */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Sets the steps per second, and whether each step follows the actual time since the
+     * previous one (the constant speed setting) rather than a fixed time step.
+     */
+    public void setPacing(float stepRate, boolean constantSpeed) {
+        mStepRate = Math.max(1f, stepRate);
+        mConstantSpeed = constantSpeed;
+    }
+
+    /** A paused thread does not step, e.g. while the renderer replays at a fixed time step. */
+    public void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    /** Stops the thread and waits for it, so that the simulation can be destroyed. */
+    public void release() {
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        EGLContext context = EGL14.EGL_NO_CONTEXT;
+        EGLSurface surface = EGL14.EGL_NO_SURFACE;
+        if (mConfig != null) {
+            int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+            context = EGL14.eglCreateContext(mDisplay, mConfig, mShareContext, contextAttribs, 0);
+        }
+        if (context != EGL14.EGL_NO_CONTEXT) {
+            int[] surfaceAttribs = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+            surface = EGL14.eglCreatePbufferSurface(mDisplay, mConfig, surfaceAttribs, 0);
+        }
+        if (surface == EGL14.EGL_NO_SURFACE || !EGL14.eglMakeCurrent(mDisplay, surface, surface, context)) {
+            Log.w(TAG, "Cannot create the simulation context (0x" + Integer.toHexString(EGL14.eglGetError())
+                    + "), stepping on the GL thread");
+            mRunning = false;
+        } else {
+            GlResources.setCurrentGroup(mGroup);
+            run();
+        }
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (surface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(mDisplay, surface);
+        if (context != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(mDisplay, context);
+    }
+
+    private void run() {
+        long nextNs = System.nanoTime(), lastStepNs = 0, rateStartNs = nextNs;
+        int steps = 0;
+        while (mRunning) {
+            long periodNs = (long) (1e9f / mStepRate);
+            long waitNs = nextNs - System.nanoTime();
+            if (waitNs > 0) {
+                try {
+                    Thread.sleep(waitNs / 1000000L, (int) (waitNs % 1000000L));
+                } catch (InterruptedException e) {
+                    continue; // Released.
+                }
+            }
+            long now = System.nanoTime();
+            // After a stall (e.g. a long frame holding the lock), do not try to catch up.
+            nextNs = Math.max(nextNs + periodNs, now);
+            if (mPaused) {
+                lastStepNs = 0;
+                continue;
+            }
+            float fpsFactor = 1.1f;
+            if (mConstantSpeed) {
+                // Same time step as the renderer's (see ParticlesRenderer.onDrawFrame).
+                float deltaTime = lastStepNs != 0 ? (now - lastStepNs) * 1e-9f : 0f;
+                if (deltaTime <= 0.0001f) deltaTime = 1.0f / 120.0f;
+                fpsFactor = Math.min(12.0f, (deltaTime * 120.0f) * 1.1f);
+            }
+            lastStepNs = now;
+            PerfTrace.begin("simulationStep");
+            if (mSimulation.step(0, fpsFactor, mMetrics, mCompiler)) {
+                mMetrics.increment("simulation_steps");
+                steps++;
+            }
+            PerfTrace.end();
+            if (now - rateStartNs >= 1000000000L) {
+                mMetrics.set("simulation_steps_per_second", steps * 1e9 / (now - rateStartNs));
+                rateStartNs = now;
+                steps = 0;
+            }
+        }
+    }
+}
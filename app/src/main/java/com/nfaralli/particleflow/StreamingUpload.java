@@ -0,0 +1,88 @@
+package com.nfaralli.particleflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import android.opengl.GLES31;
+
+/**
+ * Streams a particle state written on the CPU into the position and velocity buffers of a
+ * ring slot. Both buffers are mapped unsynchronized (and invalidated), so the driver neither
+ * copies nor waits for the GPU: the caller passes the fence of the last draw of the slot,
+ * which is waited for on the CPU instead. The mapped buffers are handed out as direct buffers
+ * to be filled in place, then unmapped before the slot is drawn.
+ * Records the bytes, the fence wait and the fill bandwidth of each upload.
+ */
+public class StreamingUpload {
+
+    private static final long FENCE_TIMEOUT_NS = 100000000L;
+    private static final int MAP_FLAGS = GLES31.GL_MAP_WRITE_BIT | GLES31.GL_MAP_INVALIDATE_BUFFER_BIT
+            | GLES31.GL_MAP_UNSYNCHRONIZED_BIT;
+
+    private FloatBuffer mPositions;
+    private IntBuffer mVelocities;
+    private long mBytes = 0;
+    private long mStallNs = 0;
+    private long mMapNs = 0;
+
+    /**
+     * Waits for readFence (0 if the slot was never drawn), then maps count particles of both
+     * buffers. Returns false if they could not be mapped. Must be called on the GL thread.
+     */
+    public boolean map(int posBuffer, int velBuffer, int count, long readFence) {
+        long start = System.nanoTime();
+        if (readFence != 0) {
+            PerfTrace.begin("uploadFenceWait");
+            int status;
+            do {
+                status = GLES31.glClientWaitSync(readFence, GLES31.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NS);
+            } while (status == GLES31.GL_TIMEOUT_EXPIRED);
+            PerfTrace.end();
+        }
+        mMapNs = System.nanoTime();
+        mStallNs = mMapNs - start;
+        int posBytes = count * BufferPlanner.POS_BYTES, velBytes = count * BufferPlanner.VEL_BYTES;
+        GLES31.glBindBuffer(GLES31.GL_COPY_WRITE_BUFFER, posBuffer);
+        ByteBuffer pos = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_COPY_WRITE_BUFFER, 0, posBytes, MAP_FLAGS);
+        GLES31.glBindBuffer(GLES31.GL_COPY_READ_BUFFER, velBuffer);
+        ByteBuffer vel = (ByteBuffer) GLES31.glMapBufferRange(GLES31.GL_COPY_READ_BUFFER, 0, velBytes, MAP_FLAGS);
+        if (pos == null || vel == null) {
+            if (pos != null) GLES31.glUnmapBuffer(GLES31.GL_COPY_WRITE_BUFFER);
+            if (vel != null) GLES31.glUnmapBuffer(GLES31.GL_COPY_READ_BUFFER);
+            return false;
+        }
+        mPositions = pos.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mVelocities = vel.order(ByteOrder.nativeOrder()).asIntBuffer();
+        mBytes = posBytes + velBytes;
+        return true;
+    }
+
+    /** Mapped positions (vec2 FP32), valid until unmap. */
+    public FloatBuffer getPositions() {
+        return mPositions;
+    }
+
+    /** Mapped velocities (packed half floats), valid until unmap. */
+    public IntBuffer getVelocities() {
+        return mVelocities;
+    }
+
+    /**
+     * Unmaps both buffers and records the upload in metrics. Returns false if their content
+     * was lost meanwhile (the slot must then not be drawn).
+     */
+    public boolean unmap(RenderMetrics metrics) {
+        mPositions = null; mVelocities = null;
+        // Both must be unmapped, whatever the first one returns.
+        boolean pos = GLES31.glUnmapBuffer(GLES31.GL_COPY_WRITE_BUFFER);
+        boolean vel = GLES31.glUnmapBuffer(GLES31.GL_COPY_READ_BUFFER);
+        long fillNs = Math.max(1, System.nanoTime() - mMapNs);
+        metrics.set("upload_mb_per_frame", mBytes / 1048576.0);
+        metrics.set("upload_gb_per_s", mBytes / (double) fillNs);
+        metrics.set("upload_fill_ms", fillNs * 1e-6);
+        metrics.set("upload_stall_ms", mStallNs * 1e-6);
+        return pos && vel;
+    }
+}
@@ -0,0 +1,34 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Thermal state and performance hints of the platform. The quality ladder (see QualityLadder)
+ * only talks to this interface, so that it can run against a simulated source on the JVM.
+ */
+public interface ThermalSource {
+
+    // Same values as the PowerManager.THERMAL_STATUS_* constants.
+    int STATUS_NONE = 0;
+    int STATUS_LIGHT = 1;
+    int STATUS_MODERATE = 2;
+    int STATUS_SEVERE = 3;
+    int STATUS_CRITICAL = 4;
+    int STATUS_EMERGENCY = 5;
+    int STATUS_SHUTDOWN = 6;
+
+    /** Current thermal status, STATUS_NONE if unknown. */
+    int getThermalStatus();
+
+    /**
+     * Forecast thermal headroom in forecastSeconds (1.0 means throttling), or NaN if unknown.
+     * Must not be called more than once per second.
+     */
+    float getThermalHeadroom(int forecastSeconds);
+
+    /** Sets the target duration of the work of a frame. */
+    void setTargetWorkDuration(long durationNs);
+
+    /** Reports the actual duration of the work of a frame. */
+    void reportWorkDuration(long durationNs);
+
+    void release();
+}
@@ -0,0 +1,77 @@
+package com.nfaralli.particleflow;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records the touches handled by ParticlesSurfaceView into a compact binary file, to be played
+ * back by TouchReplayer.
+ * File format (big endian): the MAGIC int, the VERSION short, the surface width and height
+ * (ints), then one record per touch event: its time in ms since the start of the recording
+ * (int), the number of pointers (byte) and, for each pointer, its id (byte) and its x and y
+ * coordinates in pixels (floats).
+ */
+public class TouchRecorder {
+
+    private static final String TAG = "TouchRecorder";
+    static final int MAGIC = 0x50465452; // "PFTR"
+    static final short VERSION = 1;
+
+    private final File mFile;
+    private DataOutputStream mOut;
+    private long mStartMs;
+    private int mEvents = 0;
+
+    public TouchRecorder(File file) {
+        mFile = file;
+    }
+
+    public void start(int width, int height) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+        mOut.writeInt(MAGIC);
+        mOut.writeShort(VERSION);
+        mOut.writeInt(width);
+        mOut.writeInt(height);
+        mStartMs = SystemClock.uptimeMillis();
+        mEvents = 0;
+    }
+
+    /** Records the pointers of one touch event (same arguments as applyTouches). */
+    public void record(int count, int[] ids, float[] xs, float[] ys) {
+        if (mOut == null) return;
+        try {
+            mOut.writeInt((int) (SystemClock.uptimeMillis() - mStartMs));
+            mOut.writeByte(count);
+            for (int i = 0; i < count; i++) {
+                mOut.writeByte(ids[i]);
+                mOut.writeFloat(xs[i]);
+                mOut.writeFloat(ys[i]);
+            }
+            mEvents++;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + mFile, e);
+            stop();
+        }
+    }
+
+    public void stop() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+            Log.i(TAG, "Recorded " + mEvents + " touch events in " + mFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close " + mFile, e);
+        }
+        mOut = null;
+    }
+
+    public boolean isRecording() {
+        return mOut != null;
+    }
+}
@@ -0,0 +1,117 @@
+package com.nfaralli.particleflow;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Plays back a touch recording (see TouchRecorder) at a fixed time step: frame n replays the
+ * events recorded up to n * FRAME_MS, whatever the actual frame rate. Together with the
+ * deterministic particle reset, this makes a run reproducible, so that frame times and final
+ * particle statistics can be compared across builds.
+ * The recorded coordinates are scaled to the size of the replaying surface.
+ */
+public class TouchReplayer {
+
+    public static final float FRAME_MS = 1000f / 60f;
+
+    private final File mFile;
+    private final int mWidth, mHeight;
+    private final int[] mTimesMs;
+    private final int[] mOffsets; // Index of the first pointer of each event (plus the total).
+    private final int[] mIds;
+    private final float[] mXs, mYs;
+
+    private int mFrame = 0;
+    private int mNextEvent = 0;
+    private final int[] mFrameIds = new int[256];
+    private final float[] mFrameXs = new float[256], mFrameYs = new float[256];
+
+    public TouchReplayer(File file) throws IOException {
+        mFile = file;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != TouchRecorder.MAGIC || in.readShort() != TouchRecorder.VERSION) {
+                throw new IOException("Not a touch recording: " + file);
+            }
+            mWidth = in.readInt();
+            mHeight = in.readInt();
+            int[] times = new int[64], offsets = new int[65], ids = new int[256];
+            float[] xs = new float[256], ys = new float[256];
+            int events = 0, pointers = 0;
+            while (true) {
+                int time;
+                try {
+                    time = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int count = in.readUnsignedByte();
+                if (events == times.length) {
+                    times = Arrays.copyOf(times, events * 2);
+                    offsets = Arrays.copyOf(offsets, events * 2 + 1);
+                }
+                if (pointers + count > ids.length) {
+                    int size = Math.max(ids.length * 2, pointers + count);
+                    ids = Arrays.copyOf(ids, size);
+                    xs = Arrays.copyOf(xs, size);
+                    ys = Arrays.copyOf(ys, size);
+                }
+                times[events] = time;
+                offsets[events] = pointers;
+                for (int i = 0; i < count; i++, pointers++) {
+                    ids[pointers] = in.readUnsignedByte();
+                    xs[pointers] = in.readFloat();
+                    ys[pointers] = in.readFloat();
+                }
+                events++;
+            }
+            offsets[events] = pointers;
+            mTimesMs = Arrays.copyOf(times, events);
+            mOffsets = Arrays.copyOf(offsets, events + 1);
+            mIds = ids;
+            mXs = xs;
+            mYs = ys;
+        } finally {
+            in.close();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getFrame() {
+        return mFrame;
+    }
+
+    public boolean isFinished() {
+        return mNextEvent >= mTimesMs.length;
+    }
+
+    /**
+     * Replays the events of the next frame on the view, scaled to a width x height surface.
+     * Returns false once all the events were replayed.
+     */
+    public boolean replayFrame(ParticlesSurfaceView view, int width, int height) {
+        float endMs = mFrame * FRAME_MS;
+        float sx = width / (float) mWidth, sy = height / (float) mHeight;
+        while (mNextEvent < mTimesMs.length && mTimesMs[mNextEvent] <= endMs) {
+            int first = mOffsets[mNextEvent], count = mOffsets[mNextEvent + 1] - first;
+            count = Math.min(count, mFrameIds.length);
+            for (int i = 0; i < count; i++) {
+                mFrameIds[i] = mIds[first + i];
+                mFrameXs[i] = mXs[first + i] * sx;
+                mFrameYs[i] = mYs[first + i] * sy;
+            }
+            view.applyTouches(count, mFrameIds, mFrameXs, mFrameYs);
+            mNextEvent++;
+        }
+        mFrame++;
+        return !isFinished();
+    }
+}
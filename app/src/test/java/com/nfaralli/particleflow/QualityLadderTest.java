@@ -0,0 +1,137 @@
+package com.nfaralli.particleflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QualityLadderTest {
+
+    private static final long SECOND_NS = 1000000000L;
+
+    /** A source whose status and headroom are set by the test. */
+    private static final class FakeThermalSource implements ThermalSource {
+        int status = STATUS_NONE;
+        float headroom = Float.NaN;
+
+        @Override
+        public int getThermalStatus() {
+            return status;
+        }
+
+        @Override
+        public float getThermalHeadroom(int forecastSeconds) {
+            return headroom;
+        }
+
+        @Override
+        public void setTargetWorkDuration(long durationNs) {}
+
+        @Override
+        public void reportWorkDuration(long durationNs) {}
+
+        @Override
+        public void release() {}
+    }
+
+    private FakeThermalSource mSource;
+    private QualityLadder mLadder;
+    private long mNowNs;
+
+    @Before
+    public void setUp() {
+        mSource = new FakeThermalSource();
+        mLadder = new QualityLadder(mSource);
+        mNowNs = SECOND_NS;
+        assertFalse(mLadder.update(mNowNs));
+    }
+
+    /** Moves the clock forward and samples the source. */
+    private boolean advance(long seconds) {
+        mNowNs += seconds * SECOND_NS;
+        return mLadder.update(mNowNs);
+    }
+
+    @Test
+    public void stepsDownImmediately() {
+        mSource.status = ThermalSource.STATUS_SEVERE;
+        assertTrue(advance(2));
+        assertEquals(ThermalSource.STATUS_SEVERE, mLadder.getLevelIndex());
+        assertEquals(ThermalSource.STATUS_SEVERE, mLadder.getThermalStatus());
+    }
+
+    @Test
+    public void doesNotSampleMoreThanEveryTwoSeconds() {
+        mSource.status = ThermalSource.STATUS_MODERATE;
+        assertFalse(advance(1));
+        assertEquals(0, mLadder.getLevelIndex());
+        assertTrue(advance(1));
+        assertEquals(ThermalSource.STATUS_MODERATE, mLadder.getLevelIndex());
+    }
+
+    @Test
+    public void stepsUpOneRungAfterThirtySeconds() {
+        mSource.status = ThermalSource.STATUS_SEVERE;
+        assertTrue(advance(2));
+        mSource.status = ThermalSource.STATUS_NONE;
+        // The device starts cooling down at the next sample.
+        assertFalse(advance(2));
+        for (int i = 0; i < 14; i++) assertFalse(advance(2));
+        assertEquals(ThermalSource.STATUS_SEVERE, mLadder.getLevelIndex());
+        assertTrue(advance(2));
+        assertEquals(ThermalSource.STATUS_SEVERE - 1, mLadder.getLevelIndex());
+        // The next rung needs another 30 s.
+        assertFalse(advance(28));
+        assertTrue(advance(2));
+        assertEquals(ThermalSource.STATUS_SEVERE - 2, mLadder.getLevelIndex());
+    }
+
+    @Test
+    public void stepUpDelayRestartsWhenTheTargetIsReachedAgain() {
+        mSource.status = ThermalSource.STATUS_MODERATE;
+        assertTrue(advance(2));
+        mSource.status = ThermalSource.STATUS_NONE;
+        assertFalse(advance(2));
+        assertFalse(advance(20));
+        mSource.status = ThermalSource.STATUS_MODERATE;
+        assertFalse(advance(2));
+        mSource.status = ThermalSource.STATUS_NONE;
+        assertFalse(advance(2));
+        assertFalse(advance(20));
+        assertEquals(ThermalSource.STATUS_MODERATE, mLadder.getLevelIndex());
+    }
+
+    @Test
+    public void headroomPreemptsTheStatus() {
+        mSource.headroom = 0.8f;
+        assertTrue(advance(2));
+        assertEquals(1, mLadder.getLevelIndex());
+        mSource.headroom = 0.95f;
+        assertTrue(advance(2));
+        assertEquals(2, mLadder.getLevelIndex());
+        mSource.headroom = 1.2f;
+        assertTrue(advance(2));
+        assertEquals(3, mLadder.getLevelIndex());
+        assertEquals(ThermalSource.STATUS_NONE, mLadder.getThermalStatus());
+    }
+
+    @Test
+    public void headroomNeverRaisesTheStatusLevel() {
+        assertEquals(4, QualityLadder.getTargetLevel(ThermalSource.STATUS_CRITICAL, 0.8f));
+        assertEquals(4, QualityLadder.getTargetLevel(ThermalSource.STATUS_SHUTDOWN, Float.NaN));
+        assertEquals(1, QualityLadder.getTargetLevel(ThermalSource.STATUS_LIGHT, Float.NaN));
+    }
+
+    @Test
+    public void disabledLadderStaysOnTheFirstRung() {
+        mSource.status = ThermalSource.STATUS_SEVERE;
+        assertTrue(advance(2));
+        mLadder.setEnabled(false);
+        assertEquals(0, mLadder.getLevelIndex());
+        assertFalse(advance(2));
+        assertEquals(0, mLadder.getLevelIndex());
+        assertEquals(1f, mLadder.getLevel().particleFraction, 0f);
+    }
+}
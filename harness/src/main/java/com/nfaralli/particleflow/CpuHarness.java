@@ -0,0 +1,154 @@
+package com.nfaralli.particleflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless CPU runs of the particle step: the particles start from the reset distribution and
+ * follow the attractor script of the benchmark sweep (see BenchmarkSweep.getAttractors), split
+ * over several threads. The run is given as a spec such as
+ * "particles=10000000;steps=100;warmup=10;kernel=auto;threads=8;check=1" where missing keys
+ * keep their defaults. The first warmup steps (compiled by the JIT meanwhile) are not timed. kernel is one of auto (vector when supported, else scalar), scalar and vector.
+ * check=1 also runs the scalar kernel on a copy and fails unless both match bit for bit, and
+ * reports the drift of the first particles from the double precision PrecisionReference.
+ * The metrics are printed as JSON (see RenderMetrics).
+ * Run with ./gradlew :harness:run --args="particles=10000000;steps=100".
+ */
+public class CpuHarness {
+
+    private static final float ATTRACTION = 110f;
+    private static final float DRAG = 0.96f;
+    private static final int REFERENCE_PARTICLES = 4096;
+    private static final int MAX_TARGETS = 16;
+
+    private int mParticles = 1000000;
+    private int mSteps = 100;
+    private int mWarmup = 10;
+    private String mKernel = "auto";
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private int mWidth = 1080, mHeight = 2400;
+    private boolean mCheck = false;
+    private final RenderMetrics mMetrics = new RenderMetrics();
+
+    public CpuHarness(String spec) {
+        if (spec == null) return;
+        for (String entry : spec.split(";")) {
+            int eq = entry.indexOf('=');
+            if (eq < 0) continue;
+            String key = entry.substring(0, eq).trim(), value = entry.substring(eq + 1).trim();
+            if (key.equals("particles")) mParticles = Integer.parseInt(value) & ~1;
+            else if (key.equals("steps")) mSteps = Integer.parseInt(value);
+            else if (key.equals("warmup")) mWarmup = Integer.parseInt(value);
+            else if (key.equals("kernel")) mKernel = value;
+            else if (key.equals("threads")) mThreads = Math.max(1, Integer.parseInt(value));
+            else if (key.equals("width")) mWidth = Integer.parseInt(value);
+            else if (key.equals("height")) mHeight = Integer.parseInt(value);
+            else if (key.equals("check")) mCheck = !value.equals("0");
+            else throw new IllegalArgumentException("Unknown harness key: " + key);
+        }
+    }
+
+    /**
+     * Kernel by name: auto picks the vector kernel when the vector module is there and the CPU
+     * has vector lanes, and the scalar kernel otherwise.
+     */
+    public static CpuStepKernel createKernel(String name) {
+        if (name.equals("scalar")) return new CpuScalarKernel();
+        boolean supported;
+        try {
+            supported = CpuVectorKernel.isSupported();
+        } catch (LinkageError e) { // Not started with --add-modules jdk.incubator.vector.
+            supported = false;
+        }
+        if (supported) return new CpuVectorKernel();
+        if (name.equals("vector")) throw new IllegalStateException("The vector kernel is not supported");
+        return new CpuScalarKernel();
+    }
+
+    /** Runs the steps, returns false if the check failed. */
+    public boolean run() throws Exception {
+        CpuStepKernel kernel = createKernel(mKernel);
+        int warmup = Math.max(0, Math.min(mWarmup, mSteps - 1));
+        CpuParticles particles = CpuParticles.createReset(mParticles, mWidth, mHeight);
+        CpuParticles checked = mCheck ? particles.copy() : null;
+        float[][] targets = new float[mSteps][];
+        int[] ids = new int[MAX_TARGETS];
+        float[] xs = new float[MAX_TARGETS], ys = new float[MAX_TARGETS];
+        for (int s = 0; s < mSteps; s++) {
+            int n = BenchmarkSweep.getAttractors(s, mWidth, mHeight, ids, xs, ys);
+            targets[s] = new float[2 * n];
+            for (int j = 0; j < n; j++) { targets[s][2 * j] = xs[j]; targets[s][2 * j + 1] = ys[j]; }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            long start = System.nanoTime();
+            for (int s = 0; s < mSteps; s++) {
+                if (s == warmup) start = System.nanoTime();
+                long stepStart = System.nanoTime();
+                PerfTrace.begin("cpuStep");
+                step(executor, mThreads, kernel, particles, targets[s]);
+                PerfTrace.end();
+                // One step per frame: the frame_time_ms percentiles are those of the timed steps.
+                if (s >= warmup) mMetrics.recordFrame(System.nanoTime() - stepStart, mParticles);
+            }
+            long elapsedNs = System.nanoTime() - start;
+            int timed = mSteps - warmup;
+            mMetrics.set(RenderMetrics.PARTICLES, mParticles);
+            mMetrics.set("threads", mThreads);
+            mMetrics.set("step_ms", elapsedNs * 1e-6 / Math.max(1, timed));
+            mMetrics.set(RenderMetrics.PARTICLES_PER_SECOND, (double) mParticles * timed / (elapsedNs * 1e-9));
+            System.out.println("kernel " + kernel.getName());
+
+            if (!mCheck) return true;
+            CpuStepKernel scalar = new CpuScalarKernel();
+            for (int s = 0; s < mSteps; s++) step(executor, mThreads, scalar, checked, targets[s]);
+            int differences = particles.countDifferences(checked);
+            mMetrics.set("check_differences", differences);
+            // The reference only takes fixed attraction points: run it on the last ones.
+            float[] last = targets[Math.max(0, mSteps - 1)];
+            int referenceCount = Math.min(REFERENCE_PARTICLES, mParticles);
+            CpuParticles fixed = CpuParticles.createReset(referenceCount, mWidth, mHeight);
+            PrecisionReference reference = new PrecisionReference(fixed.getPositions(referenceCount), last, ATTRACTION, DRAG);
+            for (int s = 0; s < mSteps; s++) {
+                scalar.step(fixed, last, last.length / 2, ATTRACTION, DRAG, 0, referenceCount);
+                reference.step();
+            }
+            mMetrics.set("reference_median_drift", reference.getMedianDrift(fixed.getPositions(referenceCount)));
+            return differences == 0;
+        } finally {
+            executor.shutdown();
+            System.out.println(mMetrics.toJson());
+        }
+    }
+
+    /** One step of all the particles, in an even range per thread. */
+    static void step(ExecutorService executor, int threads, final CpuStepKernel kernel,
+            final CpuParticles particles, final float[] targets) throws Exception {
+        int chunk = ((particles.count + threads - 1) / threads + 1) & ~1;
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < particles.count; from += chunk) {
+            final int begin = from, end = Math.min(particles.count, from + chunk);
+            tasks.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    kernel.step(particles, targets, targets.length / 2, ATTRACTION, DRAG, begin, end);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> task : tasks) task.get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        CpuHarness harness = new CpuHarness(args.length > 0 ? args[0] : null);
+        if (!harness.run()) {
+            System.err.println("The kernels differ");
+            System.exit(1);
+        }
+    }
+}
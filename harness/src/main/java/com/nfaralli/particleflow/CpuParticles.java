@@ -0,0 +1,68 @@
+package com.nfaralli.particleflow;
+
+/**
+ * Particle state of the CPU step kernels, in structure of arrays: the positions as floats and
+ * the velocities as half floats, like the position and velocity buffers of the GPU.
+ */
+public class CpuParticles {
+
+    public final int count;
+    public final float[] x, y;
+    public final short[] vx, vy;
+
+    public CpuParticles(int count) {
+        this.count = count;
+        x = new float[count];
+        y = new float[count];
+        vx = new short[count];
+        vy = new short[count];
+    }
+
+    /**
+     * Particles at rest, spread like the reset of the step shader (see spawnPosition) over a
+     * width x height screen: particle 2i from hash(2i), particle 2i + 1 from hash(2i + 1337).
+     */
+    public static CpuParticles createReset(int count, int width, int height) {
+        CpuParticles particles = new CpuParticles(count);
+        float radius = Math.min(width, height) * 0.45f;
+        for (int k = 0; k < count; k++) {
+            int idx = k & ~1;
+            int h = PrecisionReference.hash((k & 1) == 0 ? idx : idx + 1337);
+            float r = (h & 0xFFFF) * 1.5258e-5f;
+            float th = (h >>> 16) * 1.5258e-5f * 6.2831853f;
+            float rad = (float) Math.sqrt(r) * radius;
+            particles.x[k] = width * 0.5f + (float) Math.cos(th) * rad;
+            particles.y[k] = height * 0.5f + (float) Math.sin(th) * rad;
+        }
+        return particles;
+    }
+
+    public CpuParticles copy() {
+        CpuParticles copy = new CpuParticles(count);
+        System.arraycopy(x, 0, copy.x, 0, count);
+        System.arraycopy(y, 0, copy.y, 0, count);
+        System.arraycopy(vx, 0, copy.vx, 0, count);
+        System.arraycopy(vy, 0, copy.vy, 0, count);
+        return copy;
+    }
+
+    /** Positions (x, y) of the first n particles, in the layout of PrecisionReference. */
+    public float[] getPositions(int n) {
+        float[] pos = new float[2 * n];
+        for (int k = 0; k < n; k++) { pos[2 * k] = x[k]; pos[2 * k + 1] = y[k]; }
+        return pos;
+    }
+
+    /** Number of particles whose position or velocity differs (bit for bit) from other's. */
+    public int countDifferences(CpuParticles other) {
+        int differences = 0;
+        for (int k = 0; k < count; k++) {
+            if (Float.floatToRawIntBits(x[k]) != Float.floatToRawIntBits(other.x[k])
+                    || Float.floatToRawIntBits(y[k]) != Float.floatToRawIntBits(other.y[k])
+                    || vx[k] != other.vx[k] || vy[k] != other.vy[k]) {
+                differences++;
+            }
+        }
+        return differences;
+    }
+}
@@ -0,0 +1,50 @@
+package com.nfaralli.particleflow;
+
+/** Scalar step kernel, one particle at a time. Also the reference of CpuVectorKernel. */
+public class CpuScalarKernel implements CpuStepKernel {
+
+    // Same thresholds and noise scale as the step shader.
+    static final float NEAR_DIST_SQ = 0.1f;
+    static final float NOISE_SCALE = 9.587e-5f;
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    public void step(CpuParticles particles, float[] targets, int numTargets, float attraction, float drag,
+            int from, int to) {
+        float[] x = particles.x, y = particles.y;
+        short[] vx = particles.vx, vy = particles.vy;
+        for (int k = from; k < to; k++) {
+            float px = x[k], py = y[k], ax = 0f, ay = 0f;
+            for (int j = 0; j < numTargets; j++) {
+                float dx = targets[2 * j] - px, dy = targets[2 * j + 1] - py;
+                float distSq = dx * dx + dy * dy;
+                if (distSq <= NEAR_DIST_SQ) {
+                    float rnd = getNoiseAngle(k, j);
+                    ax += attraction * (float) Math.cos(rnd);
+                    ay += attraction * (float) Math.sin(rnd);
+                } else {
+                    float invDist = 1f / Math.max(distSq, 1f);
+                    ax += attraction * (dx * invDist);
+                    ay += attraction * (dy * invDist);
+                }
+            }
+            float nvx = (Float.float16ToFloat(vx[k]) + ax) * drag;
+            float nvy = (Float.float16ToFloat(vy[k]) + ay) * drag;
+            x[k] = px + nvx; y[k] = py + nvy;
+            vx[k] = Float.floatToFloat16(nvx); vy[k] = Float.floatToFloat16(nvy);
+        }
+    }
+
+    /**
+     * Direction of the push of a particle sitting on an attraction point: the shader hashes
+     * once per pair of particles, low bits for the first one.
+     */
+    static float getNoiseAngle(int k, int j) {
+        int h = PrecisionReference.hash((k & ~1) + j);
+        return ((k & 1) == 0 ? h & 0xFFFF : h >>> 16) * NOISE_SCALE;
+    }
+}
@@ -0,0 +1,18 @@
+package com.nfaralli.particleflow;
+
+/**
+ * CPU implementation of the plain step shader (attraction points and drag, in float, with the
+ * velocities stored as half floats). Implementations must give the same results bit for bit,
+ * so that one can be checked against the other.
+ */
+public interface CpuStepKernel {
+
+    String getName();
+
+    /**
+     * Steps the particles [from, to) of particles. targets holds the attraction points (x, y).
+     * Different ranges may be stepped concurrently.
+     */
+    void step(CpuParticles particles, float[] targets, int numTargets, float attraction, float drag,
+            int from, int to);
+}
@@ -0,0 +1,89 @@
+package com.nfaralli.particleflow;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the matrix of a benchmark sweep (see BenchmarkSweep) with the CPU step, and writes the
+ * same CSV and JSON report as the app. Each cell starts from a reset and follows the attractor
+ * script, one step per frame: the frame and work durations of the report are the step
+ * durations. Only the particle count changes the CPU work; the other dimensions of the matrix
+ * are kept so that the report lines up with the one of a device.
+ * Run with ./gradlew :harness:sweep --args="particles=250000,1000000;seconds=5 build/sweep"
+ * where the second argument is the report directory (the current one by default).
+ */
+public class CpuSweep {
+
+    private static final int MAX_TARGETS = 16;
+
+    private final BenchmarkSweep mSweep;
+    private final int mThreads = Runtime.getRuntime().availableProcessors();
+    private final int mWidth = 1080, mHeight = 2400;
+
+    public CpuSweep(String spec) {
+        mSweep = new BenchmarkSweep(spec);
+    }
+
+    /** Runs every cell of the matrix. */
+    public void run() throws Exception {
+        CpuStepKernel kernel = CpuHarness.createKernel("auto");
+        System.out.println("kernel " + kernel.getName() + ", " + mSweep.getCells().size() + " cells");
+        int[] ids = new int[MAX_TARGETS];
+        float[] xs = new float[MAX_TARGETS], ys = new float[MAX_TARGETS];
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            BenchmarkSweep.Run run;
+            while ((run = mSweep.nextRun()) != null) {
+                BenchmarkSweep.Cell cell = run.getCell();
+                CpuParticles particles = CpuParticles.createReset(cell.particles & ~1, mWidth, mHeight);
+                RenderMetrics metrics = new RenderMetrics();
+                long measuredNs = 0;
+                boolean done = false;
+                while (!done) {
+                    int n = BenchmarkSweep.getAttractors(run.getFrame(), mWidth, mHeight, ids, xs, ys);
+                    float[] targets = new float[2 * n];
+                    for (int j = 0; j < n; j++) { targets[2 * j] = xs[j]; targets[2 * j + 1] = ys[j]; }
+                    long start = System.nanoTime();
+                    CpuHarness.step(executor, mThreads, kernel, particles, targets);
+                    long stepNs = System.nanoTime() - start;
+                    int frames = cell.getFrames();
+                    done = run.recordFrame(stepNs, stepNs);
+                    if (cell.getFrames() > frames) { // Past the warm-up.
+                        metrics.recordFrame(stepNs, particles.count);
+                        measuredNs += stepNs;
+                    }
+                }
+                metrics.set(RenderMetrics.PARTICLES, particles.count);
+                metrics.set("threads", mThreads);
+                metrics.set(RenderMetrics.PARTICLES_PER_SECOND, (double) particles.count * cell.getFrames() / (Math.max(1, measuredNs) * 1e-9));
+                run.setMetricsJson(metrics.toJson());
+                System.out.println(cell.getName() + ": " + cell.getFrames() + " steps, p50 "
+                        + cell.getPercentileMs(50, false) + " ms");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Writes sweep-<time>.csv and .json to dir, like the app. */
+    public void writeReport(File dir) throws Exception {
+        dir.mkdirs();
+        String name = "sweep-" + System.currentTimeMillis();
+        try (Writer csv = new FileWriter(new File(dir, name + ".csv"))) {
+            mSweep.writeCsv(csv);
+        }
+        try (Writer json = new FileWriter(new File(dir, name + ".json"))) {
+            mSweep.writeJson(json);
+        }
+        System.out.println("Benchmark sweep written to " + new File(dir, name + ".csv"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        CpuSweep sweep = new CpuSweep(args.length > 0 ? args[0] : null);
+        sweep.run();
+        sweep.writeReport(new File(args.length > 1 ? args[1] : "."));
+    }
+}
@@ -0,0 +1,105 @@
+package com.nfaralli.particleflow;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Step kernel on the lanes of the preferred vector species (jdk.incubator.vector). The
+ * particles go by blocks of BLOCK: the velocities of a block are unpacked to float, stepped
+ * SPECIES.length() particles at a time, then packed back. A group of lanes where a particle
+ * sits on an attraction point (rare) is stepped one particle at a time, for its noise. The
+ * operations are those of CpuScalarKernel in the same order (no fused multiply-add), so both
+ * give the same results. Only load this class once isSupported() returned true.
+ */
+public class CpuVectorKernel implements CpuStepKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int BLOCK = 1024;
+
+    /** Whether the vector module is there and has more than one float lane on this CPU. */
+    public static boolean isSupported() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return false;
+        return SPECIES.length() > 1;
+    }
+
+    @Override
+    public String getName() {
+        return "vector" + SPECIES.length();
+    }
+
+    @Override
+    public void step(CpuParticles particles, float[] targets, int numTargets, float attraction, float drag,
+            int from, int to) {
+        float[] x = particles.x, y = particles.y;
+        short[] vx = particles.vx, vy = particles.vy;
+        float[] fvx = new float[BLOCK], fvy = new float[BLOCK];
+        FloatVector zero = FloatVector.zero(SPECIES), one = FloatVector.broadcast(SPECIES, 1f);
+        int lanes = SPECIES.length();
+        for (int b = from; b < to; b += BLOCK) {
+            int n = Math.min(BLOCK, to - b);
+            int bound = SPECIES.loopBound(n);
+            for (int i = 0; i < n; i++) {
+                fvx[i] = Float.float16ToFloat(vx[b + i]);
+                fvy[i] = Float.float16ToFloat(vy[b + i]);
+            }
+            for (int i = 0; i < bound; i += lanes) {
+                FloatVector px = FloatVector.fromArray(SPECIES, x, b + i);
+                FloatVector py = FloatVector.fromArray(SPECIES, y, b + i);
+                FloatVector ax = zero, ay = zero;
+                boolean near = false;
+                // Broadcast in the loop: vectors kept in an array would not stay in registers.
+                for (int j = 0; j < numTargets; j++) {
+                    FloatVector dx = FloatVector.broadcast(SPECIES, targets[2 * j]).sub(px);
+                    FloatVector dy = FloatVector.broadcast(SPECIES, targets[2 * j + 1]).sub(py);
+                    FloatVector distSq = dx.mul(dx).add(dy.mul(dy));
+                    near |= distSq.compare(VectorOperators.LE, CpuScalarKernel.NEAR_DIST_SQ).anyTrue();
+                    FloatVector invDist = one.div(distSq.max(1f));
+                    ax = ax.add(dx.mul(invDist).mul(attraction));
+                    ay = ay.add(dy.mul(invDist).mul(attraction));
+                }
+                if (near) {
+                    for (int l = 0; l < lanes; l++) {
+                        stepParticle(x, y, fvx, fvy, b, i + l, targets, numTargets, attraction, drag);
+                    }
+                    continue;
+                }
+                FloatVector nvx = FloatVector.fromArray(SPECIES, fvx, i).add(ax).mul(drag);
+                FloatVector nvy = FloatVector.fromArray(SPECIES, fvy, i).add(ay).mul(drag);
+                px.add(nvx).intoArray(x, b + i);
+                py.add(nvy).intoArray(y, b + i);
+                nvx.intoArray(fvx, i);
+                nvy.intoArray(fvy, i);
+            }
+            for (int i = bound; i < n; i++) stepParticle(x, y, fvx, fvy, b, i, targets, numTargets, attraction, drag);
+            for (int i = 0; i < n; i++) {
+                vx[b + i] = Float.floatToFloat16(fvx[i]);
+                vy[b + i] = Float.floatToFloat16(fvy[i]);
+            }
+        }
+    }
+
+    /** Steps particle b + i like CpuScalarKernel, with its velocity unpacked in fvx[i], fvy[i]. */
+    private static void stepParticle(float[] x, float[] y, float[] fvx, float[] fvy, int b, int i,
+            float[] targets, int numTargets, float attraction, float drag) {
+        int k = b + i;
+        float px = x[k], py = y[k], ax = 0f, ay = 0f;
+        for (int j = 0; j < numTargets; j++) {
+            float dx = targets[2 * j] - px, dy = targets[2 * j + 1] - py;
+            float distSq = dx * dx + dy * dy;
+            if (distSq <= CpuScalarKernel.NEAR_DIST_SQ) {
+                float rnd = CpuScalarKernel.getNoiseAngle(k, j);
+                ax += attraction * (float) Math.cos(rnd);
+                ay += attraction * (float) Math.sin(rnd);
+            } else {
+                float invDist = 1f / Math.max(distSq, 1f);
+                ax += attraction * (dx * invDist);
+                ay += attraction * (dy * invDist);
+            }
+        }
+        fvx[i] = (fvx[i] + ax) * drag;
+        fvy[i] = (fvy[i] + ay) * drag;
+        x[k] = px + fvx[i];
+        y[k] = py + fvy[i];
+    }
+}
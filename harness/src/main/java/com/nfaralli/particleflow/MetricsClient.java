@@ -0,0 +1,126 @@
+package com.nfaralli.particleflow;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the live metrics stream of a device (see LiveMetricsServer) and prints it, one JSON
+ * line per renderer sample. Forward the socket first:
+ *   adb forward tcp:7777 localabstract:particleflow_metrics
+ * then run ./gradlew :harness:metricsClient --args="port=7777". The spec is
+ * "host=127.0.0.1;port=7777;lines=0;serve=0" where missing keys keep their defaults and
+ * lines=0 reads until the stream ends. Each line must be a JSON object with the keys of a
+ * sample, the client fails otherwise.
+ * serve=1 stands in for the device: it streams synthetic samples of a MetricsStream over a
+ * local port and reads them back (5 lines by default), without any device.
+ */
+public class MetricsClient {
+
+    private static final String[] SAMPLE_KEYS = {
+        "\"t_ms\":", "\"source\":", "\"config_generation\":", "\"compute_ms\":", "\"draw_ms\":",
+        "\"attractors\":", "\"metrics\":{\"frame_time_ms\":{"};
+
+    private String mHost = "127.0.0.1";
+    private int mPort = 7777;
+    private int mLines = 0;
+    private boolean mServe = false;
+
+    public MetricsClient(String spec) {
+        if (spec == null) return;
+        for (String entry : spec.split(";")) {
+            int eq = entry.indexOf('=');
+            if (eq < 0) continue;
+            String key = entry.substring(0, eq).trim(), value = entry.substring(eq + 1).trim();
+            if (key.equals("host")) mHost = value;
+            else if (key.equals("port")) mPort = Integer.parseInt(value);
+            else if (key.equals("lines")) mLines = Integer.parseInt(value);
+            else if (key.equals("serve")) mServe = !value.equals("0");
+            else throw new IllegalArgumentException("Unknown client key: " + key);
+        }
+    }
+
+    /** Whether line looks like one sample of the stream. */
+    public static boolean isSample(String line) {
+        if (!line.startsWith("{") || !line.endsWith("}")) return false;
+        for (String key : SAMPLE_KEYS) {
+            if (!line.contains(key)) return false;
+        }
+        return true;
+    }
+
+    /** Reads (and prints) the stream, returns false if a line is not a sample. */
+    public boolean run() throws IOException {
+        if (!mServe) return read(mHost, mPort, mLines);
+        MetricsStream stream = new MetricsStream(10);
+        stream.addSource(createSyntheticSource("synthetic-1"));
+        try (ServerSocket server = new ServerSocket(0)) {
+            final ServerSocket listener = server;
+            final MetricsStream published = stream;
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Socket socket = listener.accept();
+                        published.addClient(socket.getOutputStream(), socket);
+                    } catch (IOException e) {
+                        // The server was closed.
+                    }
+                }
+            }, "MetricsClientServer");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            return read("127.0.0.1", server.getLocalPort(), mLines > 0 ? mLines : 5);
+        } finally {
+            stream.closeClients();
+        }
+    }
+
+    private static boolean read(String host, int port, int lines) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            int count = 0;
+            String line;
+            while ((lines == 0 || count < lines) && (line = reader.readLine()) != null) {
+                System.out.println(line);
+                if (!isSample(line)) {
+                    System.err.println("Not a metrics sample: " + line);
+                    return false;
+                }
+                count++;
+            }
+            if (count < lines) {
+                System.err.println("The stream ended after " + count + " lines");
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** A source with the layout of a renderer sample, over fake frames. */
+    private static MetricsStream.Source createSyntheticSource(final String name) {
+        final RenderMetrics metrics = new RenderMetrics();
+        return new MetricsStream.Source() {
+            private int mFrame = 0;
+
+            @Override
+            public String sampleJson() {
+                mFrame++;
+                metrics.recordFrame(16000000L + (mFrame % 7) * 500000L, 100000);
+                metrics.set(RenderMetrics.BUFFER_BYTES, 100000 * 12); // vec2 FP32 + half2 per particle.
+                return "{\"t_ms\":" + System.currentTimeMillis() + ",\"source\":\"" + name + "\""
+                        + ",\"config_generation\":0,\"compute_ms\":0.250,\"draw_ms\":1.500"
+                        + ",\"attractors\":" + (mFrame % 3) + ",\"metrics\":" + metrics.toJson() + "}";
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        MetricsClient client = new MetricsClient(args.length > 0 ? args[0] : null);
+        if (!client.run()) System.exit(1);
+    }
+}